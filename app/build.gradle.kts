@@ -12,6 +12,8 @@ android {
         targetSdk = 34
         versionCode = 1
         versionName = "1.0"
+
+        testInstrumentationRunner = "androidx.test.runner.AndroidJUnitRunner"
     }
 
     signingConfigs {
@@ -35,6 +37,17 @@ android {
         sourceCompatibility = JavaVersion.VERSION_1_8
         targetCompatibility = JavaVersion.VERSION_1_8
     }
+
+    // ./gradlew :app:testDebugUnitTest -PbenchmarkFiles=N runs the timing tests
+    // (DirectoryWalkerTest, MediaFilterTest, MediaIndexTest) on N files; without it they
+    // are skipped
+    testOptions {
+        unitTests.all { test ->
+            providers.gradleProperty("benchmarkFiles").orNull?.let {
+                test.systemProperty("benchmark.files", it)
+            }
+        }
+    }
 }
 
 dependencies {
@@ -42,5 +55,9 @@ dependencies {
     implementation(project(":ui-components"))
     implementation(project(":security-core"))
     implementation(project(":media-crypto-android"))
-    // No external dependencies
+    // No external runtime dependencies
+
+    testImplementation("junit:junit:4.13.2")
+    androidTestImplementation("androidx.test:runner:1.5.2")
+    androidTestImplementation("androidx.test.ext:junit:1.1.5")
 }
@@ -0,0 +1,133 @@
+package com.rulerhao.media_protector.core;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the two ways the Original tab can reach its first grid: a {@code MediaStore}
+ * query ({@link MediaStoreScanner}) and a walk of shared storage ({@link DirectoryWalker}).
+ * Each is timed to its first batch, which is what ends the skeleton screen, and to the end.
+ *
+ * <p>The walk lists with {@link DirectoryWalker#PLAIN_LISTER}, not the {@link MediaIndex},
+ * so it does the work of a first launch. The kernel's caches cannot be dropped without
+ * root, though, so only the first round is cold; the rounds alternate which path goes
+ * first and the report gives the first round apart from the medians. Run on a device with
+ * all-files access granted:
+ *
+ * <pre>
+ * adb shell appops set com.rulerhao.media_protector MANAGE_EXTERNAL_STORAGE allow
+ * ./gradlew :app:connectedDebugAndroidTest \
+ *     -Pandroid.testInstrumentationRunnerArguments.class=com.rulerhao.media_protector.core.ScanPathBenchmark
+ * </pre>
+ *
+ * The numbers appear in logcat under {@value #TAG} and in the instrumentation status.
+ * No device results are recorded yet, so querying MediaStore first remains unverified.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ScanPathBenchmark {
+
+    private static final String TAG = "ScanPathBenchmark";
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void timeToFirstBatch_mediaStoreVersusWalk() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        MediaStoreScanner scanner = new MediaStoreScanner(context);
+        assumeTrue("MediaStore hands out no paths without all-files access",
+                scanner.isAvailable());
+
+        File root = Environment.getExternalStorageDirectory();
+        MediaRepository repository = new MediaRepository(context);
+        // Sized like MediaRepository's walk pool
+        ForkJoinPool pool = new ForkJoinPool(
+                Math.min(8, 2 * Runtime.getRuntime().availableProcessors()));
+        DirectoryWalker walker = new DirectoryWalker(pool, MediaRepository.MAX_DEPTH,
+                MediaRepository::isSystemFolder, DirectoryWalker.PLAIN_LISTER);
+
+        long[][] mediaStore = new long[ROUNDS][];
+        long[][] walk = new long[ROUNDS][];
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                if (round % 2 == 0) {
+                    mediaStore[round] = timeMediaStore(scanner, repository, root);
+                    walk[round] = timeWalk(walker, root);
+                } else {
+                    walk[round] = timeWalk(walker, root);
+                    mediaStore[round] = timeMediaStore(scanner, repository, root);
+                }
+                Log.i(TAG, String.format(Locale.ROOT,
+                        "Round %d: MediaStore first batch %d ms, all %d ms, %d files;"
+                                + " walk first batch %d ms, all %d ms, %d files",
+                        round + 1, mediaStore[round][0], mediaStore[round][1],
+                        mediaStore[round][2], walk[round][0], walk[round][1], walk[round][2]));
+            }
+        } finally {
+            pool.shutdown();
+            repository.destroy();
+        }
+
+        Bundle results = new Bundle();
+        report(results, "mediastore", mediaStore);
+        report(results, "walk", walk);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+        assertTrue("The walk found no media to compare against", walk[0][2] > 0);
+    }
+
+    /** @return time to the first page and to the end in ms, and the file count */
+    private static long[] timeMediaStore(MediaStoreScanner scanner, MediaRepository repository,
+                                         File root) {
+        AtomicLong first = new AtomicLong(-1);
+        long start = SystemClock.elapsedRealtime();
+        List<MediaStoreScanner.Entry> rows = scanner.scan(root,
+                file -> repository.isInScanScope(root, file, false), new ScanToken(),
+                page -> first.compareAndSet(-1, SystemClock.elapsedRealtime() - start));
+        long total = SystemClock.elapsedRealtime() - start;
+        return new long[] { first.get(), total, rows != null ? rows.size() : -1 };
+    }
+
+    /** @return time to the first media directory and to the end in ms, and the file count */
+    private static long[] timeWalk(DirectoryWalker walker, File root) {
+        AtomicLong first = new AtomicLong(-1);
+        long start = SystemClock.elapsedRealtime();
+        List<MediaEntry> found = walker.collect(root,
+                entry -> FileConfig.isRegularMediaFile(entry.getFile().getName()) ? entry : null,
+                new ScanToken(),
+                kept -> first.compareAndSet(-1, SystemClock.elapsedRealtime() - start));
+        long total = SystemClock.elapsedRealtime() - start;
+        return new long[] { first.get(), total, found.size() };
+    }
+
+    private static void report(Bundle results, String path, long[][] rounds) {
+        String summary = String.format(Locale.ROOT,
+                "%s: cold first batch %d ms, all %d ms; median first batch %d ms, all %d ms",
+                path, rounds[0][0], rounds[0][1], median(rounds, 0), median(rounds, 1));
+        Log.i(TAG, summary);
+        results.putString(path, summary);
+    }
+
+    private static long median(long[][] rounds, int column) {
+        long[] values = new long[rounds.length];
+        for (int i = 0; i < rounds.length; i++) values[i] = rounds[i][column];
+        Arrays.sort(values);
+        return values[values.length / 2];
+    }
+}
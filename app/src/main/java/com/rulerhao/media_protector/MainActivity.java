@@ -24,6 +24,7 @@ import com.rulerhao.media_protector.core.MediaRepository;
 import com.rulerhao.media_protector.album.AlbumController;
 import com.rulerhao.media_protector.core.MainContract;
 import com.rulerhao.media_protector.core.MainPresenter;
+import com.rulerhao.media_protector.core.MediaEntry;
 import com.rulerhao.media_protector.security.OriginalPathStore;
 import com.rulerhao.media_protector.media.PreviewPopup;
 import com.rulerhao.media_protector.widget.PullToRefreshLayout;
@@ -69,7 +70,7 @@ public class MainActivity extends Activity implements MainContract.View {
     private EditText    etSearch;
     private ImageButton btnClearSearch;
     private TextView    tvSelectionCount;
-    private List<File>  allProtectedFiles = new ArrayList<>();
+    private List<MediaEntry> allProtectedFiles = new ArrayList<>();
     private String      currentSearchQuery = "";
 
     // ─── Mode state ──────────────────────────────────────────────────────
@@ -115,6 +116,9 @@ public class MainActivity extends Activity implements MainContract.View {
     private View   autoLockDivider;
     private TextView tvAutoLockValue;
     private Switch switchRestoreLocation;
+    private Switch switchFullEncryption;
+    private Switch switchDedup;
+    private Switch switchDeepScan;
     // Disguise settings
     private Switch switchDisguiseMode;
     private boolean isUpdatingDisguiseSwitch = false;
@@ -256,6 +260,9 @@ public class MainActivity extends Activity implements MainContract.View {
         autoLockDivider   = findViewById(R.id.autoLockDivider);
         tvAutoLockValue   = findViewById(R.id.tvAutoLockValue);
         switchRestoreLocation = findViewById(R.id.switchRestoreLocation);
+        switchFullEncryption  = findViewById(R.id.switchFullEncryption);
+        switchDedup           = findViewById(R.id.switchDedup);
+        switchDeepScan        = findViewById(R.id.switchDeepScan);
         // Disguise settings
         switchDisguiseMode = findViewById(R.id.switchDisguiseMode);
 
@@ -338,6 +345,19 @@ public class MainActivity extends Activity implements MainContract.View {
         switchRestoreLocation.setOnCheckedChangeListener((buttonView, isChecked) -> {
             OriginalPathStore.setRestoreToOriginalEnabled(this, isChecked);
         });
+        switchFullEncryption.setChecked(SecurityHelper.isFullEncryptionEnabled(this));
+        switchFullEncryption.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            SecurityHelper.setFullEncryptionEnabled(this, isChecked);
+        });
+        switchDedup.setChecked(SecurityHelper.isDedupEnabled(this));
+        switchDedup.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            SecurityHelper.setDedupEnabled(this, isChecked);
+        });
+        switchDeepScan.setChecked(SecurityHelper.isDeepScanEnabled(this));
+        switchDeepScan.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            SecurityHelper.setDeepScanEnabled(this, isChecked);
+            presenter.switchMode(showEncrypted); // rescan with the new scope
+        });
 
         // ── Search bar ──────────────────────────────────────────────────────
         etSearch.addTextChangedListener(new TextWatcher() {
@@ -557,9 +577,11 @@ public class MainActivity extends Activity implements MainContract.View {
             startActivityForResult(lockIntent, LOCK_SCREEN_REQUEST_CODE);
         } else {
             isAuthenticated = true;
+            SecurityHelper.openVault(this);
         }
 
         presenter.onCreate();
+        if (isAuthenticated) presenter.resumeRekey();
 
         // Handle app shortcuts
         handleShortcutIntent(getIntent());
@@ -589,6 +611,7 @@ public class MainActivity extends Activity implements MainContract.View {
         // Check if we should lock due to timeout
         if (isAuthenticated && SecurityHelper.shouldLockDueToTimeout(this)) {
             isAuthenticated = false;
+            SecurityHelper.lockVault();
             checkLockScreen();
         }
     }
@@ -672,7 +695,7 @@ public class MainActivity extends Activity implements MainContract.View {
     // ─────────────────────────────────────────────────────────────────────
 
     @Override
-    public void showFiles(List<File> files) {
+    public void showFiles(List<MediaEntry> files) {
         // Stop refresh indicators and skeleton
         pullToRefreshProtected.setRefreshing(false);
         pullToRefreshBrowse.setRefreshing(false);
@@ -716,6 +739,62 @@ public class MainActivity extends Activity implements MainContract.View {
         }
     }
 
+    /**
+     * Draws a scan's results so far: the skeleton gives way to the first files, but the
+     * refresh indicators, the found-files toast and the saved scroll position wait for
+     * {@link #showFiles}.
+     */
+    @Override
+    public void showPartialFiles(List<MediaEntry> filesSoFar) {
+        skeletonView.setVisibility(View.GONE);
+        skeletonView.stopShimmer();
+
+        if (showEncrypted) {
+            allProtectedFiles = new ArrayList<>(filesSoFar);
+            if (albumController.isInAlbumView()) {
+                albumController.buildAndShowAlbumGrid(allProtectedFiles);
+            } else {
+                filterProtectedFiles();
+            }
+        } else {
+            List<FolderAdapter.BrowseItem> items =
+                    (browseMode == BrowseMode.DATE)
+                            ? BrowseListBuilder.buildDateItems(filesSoFar)
+                            : BrowseListBuilder.buildFolderItems(filesSoFar);
+            browseAdapter.setItems(items);
+            showEmptyState(false, "");
+        }
+    }
+
+    /**
+     * Redraws the list after files changed without a scan. Unlike {@link #showFiles} it
+     * leaves the scroll position alone and shows no toast, since the user stays where they
+     * were while files come and go.
+     */
+    @Override
+    public void showFileChanges(List<MediaEntry> files, List<File> added, List<File> removed,
+                                List<File> updated) {
+        ThumbnailLoader thumbnails = ThumbnailLoader.getInstance();
+        for (File file : removed) thumbnails.invalidate(file);
+        for (File file : updated) thumbnails.invalidate(file);
+
+        if (showEncrypted) {
+            allProtectedFiles = new ArrayList<>(files);
+            if (albumController.isInAlbumView()) {
+                albumController.buildAndShowAlbumGrid(allProtectedFiles);
+            } else {
+                filterProtectedFiles();
+            }
+        } else {
+            List<FolderAdapter.BrowseItem> items =
+                    (browseMode == BrowseMode.DATE)
+                            ? BrowseListBuilder.buildDateItems(files)
+                            : BrowseListBuilder.buildFolderItems(files);
+            browseAdapter.setItems(items);
+            showEmptyState(items.isEmpty(), R.string.label_no_files);
+        }
+    }
+
     @Override
     public void showPermissionError() {
         Toast.makeText(this, R.string.toast_permission_denied, Toast.LENGTH_SHORT).show();
@@ -904,6 +983,7 @@ public class MainActivity extends Activity implements MainContract.View {
             if (resultCode == RESULT_OK) {
                 Toast.makeText(this, R.string.toast_pin_enabled, Toast.LENGTH_SHORT).show();
                 refreshSecuritySettingsUI();
+                presenter.resumeRekey();
             } else {
                 // User cancelled - reset switch
                 switchPinLock.setChecked(false);
@@ -911,6 +991,7 @@ public class MainActivity extends Activity implements MainContract.View {
         } else if (requestCode == PIN_CHANGE_REQUEST_CODE) {
             if (resultCode == RESULT_OK) {
                 Toast.makeText(this, R.string.toast_pin_enabled, Toast.LENGTH_SHORT).show();
+                presenter.resumeRekey();
             }
         } else if (requestCode == LOCK_SCREEN_REQUEST_CODE) {
             if (resultCode == RESULT_OK) {
@@ -919,6 +1000,7 @@ public class MainActivity extends Activity implements MainContract.View {
                 SecurityHelper.updateLastActivityTime(this);
                 // Ensure the current tab is properly displayed
                 switchNavTab(currentNavTab);
+                presenter.onVaultUnlocked();
             } else {
                 // User didn't authenticate - exit app
                 finishAffinity();
@@ -1099,9 +1181,14 @@ public class MainActivity extends Activity implements MainContract.View {
                 startActivityForResult(intent, PIN_SETUP_REQUEST_CODE);
             } else if (!isChecked && SecurityHelper.isPinEnabled(this)) {
                 // Disable PIN
-                SecurityHelper.clearPin(this);
+                if (!SecurityHelper.clearPin(this)) {
+                    Toast.makeText(this, R.string.toast_pin_unlock_required, Toast.LENGTH_SHORT).show();
+                    refreshSecuritySettingsUI();
+                    return;
+                }
                 Toast.makeText(this, R.string.toast_pin_disabled, Toast.LENGTH_SHORT).show();
                 refreshSecuritySettingsUI();
+                presenter.resumeRekey();
             }
         });
 
@@ -1296,9 +1383,14 @@ public class MainActivity extends Activity implements MainContract.View {
                 intent.putExtra(LockScreenActivity.EXTRA_MODE, LockScreenActivity.MODE_SETUP);
                 startActivityForResult(intent, PIN_SETUP_REQUEST_CODE);
             } else if (!isChecked && SecurityHelper.isPinEnabled(this)) {
-                SecurityHelper.clearPin(this);
+                if (!SecurityHelper.clearPin(this)) {
+                    Toast.makeText(this, R.string.toast_pin_unlock_required, Toast.LENGTH_SHORT).show();
+                    refreshSecuritySettingsUI();
+                    return;
+                }
                 Toast.makeText(this, R.string.toast_pin_disabled, Toast.LENGTH_SHORT).show();
                 refreshSecuritySettingsUI();
+                presenter.resumeRekey();
             }
         });
 
@@ -1367,9 +1459,9 @@ public class MainActivity extends Activity implements MainContract.View {
 
     /** Applies album, search, and sort filters then updates the grid adapter. */
     private void filterProtectedFiles() {
-        List<File> result = MediaFilter.apply(
+        List<MediaEntry> result = MediaFilter.apply(
                 allProtectedFiles, albumController.getCurrentAlbumDir(), currentSearchQuery, currentSortOption);
-        adapter.setFiles(result);
+        adapter.setFiles(MediaEntry.files(result));
         boolean empty = result.isEmpty();
         showEmptyState(empty, currentSearchQuery.isEmpty()
                 ? R.string.label_no_files : R.string.search_no_results);
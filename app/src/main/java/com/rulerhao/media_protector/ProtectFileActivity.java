@@ -7,15 +7,16 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.widget.Toast;
 
+import com.rulerhao.media_protector.crypto.DedupStore;
 import com.rulerhao.media_protector.crypto.HeaderObfuscator;
 import com.rulerhao.media_protector.core.FileConfig;
 import com.rulerhao.media_protector.security.OriginalPathStore;
+import com.rulerhao.media_protector.security.SecurityHelper;
 import com.rulerhao.media_protector.shared.ThemeHelper;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
@@ -26,7 +27,6 @@ import java.util.concurrent.Executors;
  */
 public class ProtectFileActivity extends Activity {
 
-    private final HeaderObfuscator obfuscator = new HeaderObfuscator();
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
 
     @Override
@@ -88,18 +88,6 @@ public class ProtectFileActivity extends Activity {
                 return false;
             }
 
-            // Copy content to a temp file
-            File tempFile = new File(getCacheDir(), fileName);
-            try (InputStream in = getContentResolver().openInputStream(uri);
-                 OutputStream out = new FileOutputStream(tempFile)) {
-                if (in == null) return false;
-                byte[] buffer = new byte[8192];
-                int read;
-                while ((read = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, read);
-                }
-            }
-
             // Get protected folder
             File protectedFolder = FileConfig.getProtectedFolder();
             if (!protectedFolder.exists()) {
@@ -115,10 +103,24 @@ public class ProtectFileActivity extends Activity {
                 OriginalPathStore.storePath(this, outFile.getName(), originalPath);
             }
 
-            obfuscator.encrypt(tempFile, outFile);
+            HeaderObfuscator obfuscator = new HeaderObfuscator(
+                    SecurityHelper.isFullEncryptionEnabled(this)
+                            ? HeaderObfuscator.Mode.FULL_CONTENT
+                            : HeaderObfuscator.Mode.HEADER_ONLY);
 
-            // Clean up temp file
-            tempFile.delete();
+            // Encrypt straight from the shared stream: no plaintext copy in the cache dir
+            try (InputStream in = getContentResolver().openInputStream(uri)) {
+                if (in == null) return false;
+                if (SecurityHelper.isDedupEnabled(this)) {
+                    DedupStore.forVault(protectedFolder).protect(in, outFile, obfuscator);
+                } else {
+                    obfuscator.encrypt(in, outFile);
+                }
+            } catch (IOException e) {
+                outFile.delete();
+                throw e;
+            }
+            SecurityHelper.onFileProtected(this);
 
             return true;
         } catch (Exception e) {
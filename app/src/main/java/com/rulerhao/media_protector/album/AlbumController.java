@@ -16,6 +16,7 @@ import android.widget.Toast;
 
 import com.rulerhao.media_protector.R;
 import com.rulerhao.media_protector.core.FileConfig;
+import com.rulerhao.media_protector.core.MediaEntry;
 import com.rulerhao.media_protector.widget.PullToRefreshLayout;
 
 import java.io.File;
@@ -136,7 +137,7 @@ public class AlbumController {
     // ─── Navigation ────────────────────────────────────────────────────────
 
     /** Switches the Protected tab to the album grid view. */
-    public void showAlbumView(List<File> allFiles) {
+    public void showAlbumView(List<MediaEntry> allFiles) {
         inAlbumView = true;
         currentAlbumDir = null;
         albumBar.setVisibility(View.VISIBLE);
@@ -167,7 +168,7 @@ public class AlbumController {
     }
 
     /** Rebuilds the album grid from the given file list. */
-    public void buildAndShowAlbumGrid(List<File> allFiles) {
+    public void buildAndShowAlbumGrid(List<MediaEntry> allFiles) {
         albumBar.setVisibility(View.VISIBLE);
         albumGridView.setVisibility(View.VISIBLE);
         pullToRefreshProtected.setVisibility(View.GONE);
@@ -178,7 +179,7 @@ public class AlbumController {
         List<AlbumAdapter.AlbumItem> items = new ArrayList<>();
 
         // "All Files" card
-        File allCover = allFiles.isEmpty() ? null : allFiles.get(0);
+        File allCover = allFiles.isEmpty() ? null : allFiles.get(0).getFile();
         items.add(new AlbumAdapter.AlbumItem(
                 null,
                 activity.getString(R.string.album_all) + " Files",
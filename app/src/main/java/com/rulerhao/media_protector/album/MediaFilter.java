@@ -1,6 +1,6 @@
 package com.rulerhao.media_protector.album;
 
-import com.rulerhao.media_protector.crypto.HeaderObfuscator;
+import com.rulerhao.media_protector.core.MediaEntry;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -10,9 +10,10 @@ import java.util.List;
 /**
  * Pure utility for filtering and sorting a list of protected media files.
  * No Android UI dependencies — fully testable in isolation.
+ * Sorts by the attributes the scan captured, so sorting touches no files.
  *
  * Usage:
- *   List<File> result = MediaFilter.apply(allFiles, albumDir, searchQuery, sortOption);
+ *   List<MediaEntry> result = MediaFilter.apply(allFiles, albumDir, searchQuery, sortOption);
  */
 public class MediaFilter {
 
@@ -26,32 +27,32 @@ public class MediaFilter {
      * @param query     Case-insensitive substring match on the original filename (empty = no filter)
      * @param sort      Sort order to apply; null means preserve original order
      */
-    public static List<File> apply(
-            List<File> files,
+    public static List<MediaEntry> apply(
+            List<MediaEntry> files,
             File albumDir,
             String query,
             SortOption sort) {
 
         // 1. Album filter (work on a copy, never mutate the source list)
-        List<File> result = new ArrayList<>(files.size());
+        List<MediaEntry> result = new ArrayList<>(files.size());
         if (albumDir == null) {
             result.addAll(files);
         } else {
-            for (File f : files) {
-                File parent = f.getParentFile();
+            for (MediaEntry e : files) {
+                File parent = e.getFile().getParentFile();
                 if (parent != null && parent.equals(albumDir)) {
-                    result.add(f);
+                    result.add(e);
                 }
             }
         }
 
         // 2. Search filter
         if (query != null && !query.isEmpty()) {
-            List<File> searched = new ArrayList<>(result.size());
+            List<MediaEntry> searched = new ArrayList<>(result.size());
             String lowerQuery = query.toLowerCase();
-            for (File f : result) {
-                if (HeaderObfuscator.getOriginalName(f).toLowerCase().contains(lowerQuery)) {
-                    searched.add(f);
+            for (MediaEntry e : result) {
+                if (e.getOriginalName().toLowerCase().contains(lowerQuery)) {
+                    searched.add(e);
                 }
             }
             result = searched;
@@ -62,19 +63,17 @@ public class MediaFilter {
             Collections.sort(result, (f1, f2) -> {
                 switch (sort) {
                     case NAME_ASC:
-                        return HeaderObfuscator.getOriginalName(f1)
-                                .compareToIgnoreCase(HeaderObfuscator.getOriginalName(f2));
+                        return f1.getOriginalName().compareToIgnoreCase(f2.getOriginalName());
                     case NAME_DESC:
-                        return HeaderObfuscator.getOriginalName(f2)
-                                .compareToIgnoreCase(HeaderObfuscator.getOriginalName(f1));
+                        return f2.getOriginalName().compareToIgnoreCase(f1.getOriginalName());
                     case DATE_ASC:
-                        return Long.compare(f1.lastModified(), f2.lastModified());
+                        return Long.compare(f1.getModified(), f2.getModified());
                     case DATE_DESC:
-                        return Long.compare(f2.lastModified(), f1.lastModified());
+                        return Long.compare(f2.getModified(), f1.getModified());
                     case SIZE_ASC:
-                        return Long.compare(f1.length(), f2.length());
+                        return Long.compare(f1.getSize(), f2.getSize());
                     case SIZE_DESC:
-                        return Long.compare(f2.length(), f1.length());
+                        return Long.compare(f2.getSize(), f1.getSize());
                     default:
                         return 0;
                 }
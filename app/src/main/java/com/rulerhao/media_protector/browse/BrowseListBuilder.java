@@ -1,5 +1,7 @@
 package com.rulerhao.media_protector.browse;
 
+import com.rulerhao.media_protector.core.MediaEntry;
+
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -13,21 +15,22 @@ import java.util.Map;
 /**
  * Shared helper that converts a flat file list into browse adapter items.
  * Used by both FolderBrowserActivity and MainActivity.
+ * Dates come from the scanned entries, so grouping and sorting read no file attributes.
  */
 public class BrowseListBuilder {
 
     /** Groups files by calendar day, newest day first. */
-    public static List<FolderAdapter.BrowseItem> buildDateItems(List<File> allFiles) {
-        List<File> sorted = new ArrayList<>(allFiles);
-        Collections.sort(sorted, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+    public static List<FolderAdapter.BrowseItem> buildDateItems(List<MediaEntry> allFiles) {
+        List<MediaEntry> sorted = new ArrayList<>(allFiles);
+        Collections.sort(sorted, (a, b) -> Long.compare(b.getModified(), a.getModified()));
 
         SimpleDateFormat dayFmt = new SimpleDateFormat("MMM d, yyyy", Locale.ENGLISH);
         Map<String, List<File>> byDate = new LinkedHashMap<>();
-        for (File f : sorted) {
-            String day = dayFmt.format(new Date(f.lastModified())).toUpperCase(Locale.ENGLISH);
+        for (MediaEntry e : sorted) {
+            String day = dayFmt.format(new Date(e.getModified())).toUpperCase(Locale.ENGLISH);
             List<File> group = byDate.get(day);
             if (group == null) { group = new ArrayList<>(); byDate.put(day, group); }
-            group.add(f);
+            group.add(e.getFile());
         }
 
         List<FolderAdapter.BrowseItem> result = new ArrayList<>();
@@ -55,28 +58,29 @@ public class BrowseListBuilder {
      * Groups files by parent folder, folders sorted alphabetically.
      * Files within each folder are sorted newest-first.
      */
-    public static List<FolderAdapter.BrowseItem> buildFolderItems(List<File> allFiles) {
-        Map<File, List<File>> byFolder = new LinkedHashMap<>();
-        for (File f : allFiles) {
-            File parent = f.getParentFile();
+    public static List<FolderAdapter.BrowseItem> buildFolderItems(List<MediaEntry> allFiles) {
+        Map<File, List<MediaEntry>> byFolder = new LinkedHashMap<>();
+        for (MediaEntry e : allFiles) {
+            File parent = e.getFile().getParentFile();
             if (parent == null) continue;
-            List<File> group = byFolder.get(parent);
+            List<MediaEntry> group = byFolder.get(parent);
             if (group == null) { group = new ArrayList<>(); byFolder.put(parent, group); }
-            group.add(f);
+            group.add(e);
         }
 
-        List<Map.Entry<File, List<File>>> entries = new ArrayList<>(byFolder.entrySet());
+        List<Map.Entry<File, List<MediaEntry>>> entries = new ArrayList<>(byFolder.entrySet());
         Collections.sort(entries,
                 (a, b) -> a.getKey().getName().compareToIgnoreCase(b.getKey().getName()));
 
         List<FolderAdapter.BrowseItem> result = new ArrayList<>();
-        for (Map.Entry<File, List<File>> entry : entries) {
-            File       folder = entry.getKey();
-            List<File> group  = entry.getValue();
+        for (Map.Entry<File, List<MediaEntry>> entry : entries) {
+            File             folder = entry.getKey();
+            List<MediaEntry> group  = entry.getValue();
 
-            List<File> sortedGroup = new ArrayList<>(group);
-            Collections.sort(sortedGroup,
-                    (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+            List<MediaEntry> sortedEntries = new ArrayList<>(group);
+            Collections.sort(sortedEntries,
+                    (a, b) -> Long.compare(b.getModified(), a.getModified()));
+            List<File> sortedGroup = MediaEntry.files(sortedEntries);
             String[] paths = toPaths(sortedGroup);
 
             FolderAdapter.BrowseItem header =
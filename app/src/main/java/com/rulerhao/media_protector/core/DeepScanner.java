@@ -0,0 +1,260 @@
+package com.rulerhao.media_protector.core;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.rulerhao.media_protector.crypto.HeaderObfuscator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lists the directories below the scan's depth limit a slice at a time. Over a few idle
+ * minutes, this finds media in trees such as {@code Pictures/Telegram/...} without any one
+ * long walk.
+ *
+ * <p>The directories still to list form a cursor. It is persisted after every slice, so a
+ * pass survives the process. A slice stops when its {@link Budget} of time, files or
+ * directory listings runs out. Listings go through the {@link MediaIndex}, so a directory
+ * that did not change is not listed again; only its media files are stat'ed. The index is
+ * rewritten whole, so it is saved only at the end of a pass, on {@link #flush}, and at most
+ * every {@link #INDEX_SAVE_INTERVAL_MILLIS} in between. Records lost to a kill are only
+ * listings the next pass makes again.
+ *
+ * <p>Scans do not list deep directories themselves. They add what the index recorded for
+ * them ({@link #collect}), which is as current as the last pass. A scan hands over the
+ * directories just past its limit ({@link #noteScan}). New ones are queued at once, and
+ * all of them again once {@link #PASS_INTERVAL_MILLIS} has passed since the last pass
+ * began, which is how deletions deep down are noticed.
+ */
+final class DeepScanner {
+
+    private static final String TAG = "DeepScanner";
+
+    private static final int MAGIC = 0x44534355; // "DSCU"
+    private static final int VERSION = 1;
+    /** How often all deep directories are listed again. */
+    static final long PASS_INTERVAL_MILLIS = 60 * 60 * 1000L;
+    /** How often a pass saves the index it has updated so far. */
+    static final long INDEX_SAVE_INTERVAL_MILLIS = 30 * 1000L;
+
+    /** Limits for one slice; whichever runs out first ends it. */
+    static final class Budget {
+        final long millis;
+        final int files;
+        final int dirs;
+
+        Budget(long millis, int files, int dirs) {
+            this.millis = millis;
+            this.files = files;
+            this.dirs = dirs;
+        }
+    }
+
+    private final MediaIndex index;
+    private final FileFilter pruned;
+    private final File cursorFile;
+    /** Directories still to list, next first. Depth-first keeps it short. */
+    private final Deque<String> frontier = new ArrayDeque<>();
+    private final Set<String> queued = new HashSet<>();
+    /** Wall-clock start of the current or last pass; 0 before the first. */
+    private long passStarted;
+    private boolean loaded;
+    private boolean dirty;
+    /** {@link SystemClock#elapsedRealtime()} of the last index save by a slice. */
+    private long indexSaved;
+
+    DeepScanner(MediaIndex index, FileFilter pruned, File cursorFile) {
+        this.index = index;
+        this.pruned = pruned;
+        this.cursorFile = cursorFile;
+    }
+
+    /** {@code true} while the current pass has directories left. */
+    synchronized boolean hasWork() {
+        ensureLoaded();
+        return !frontier.isEmpty();
+    }
+
+    /**
+     * Queues the directories just past {@code maxDepth} below {@code root}, from the records
+     * a scan of it just made: those never listed, or all of them if a pass is due.
+     */
+    synchronized void noteScan(File root, int maxDepth) {
+        ensureLoaded();
+        List<File> boundary = new ArrayList<>();
+        findBoundary(root, 0, maxDepth, boundary);
+        long now = System.currentTimeMillis();
+        boolean passDue = frontier.isEmpty()
+                && (now - passStarted >= PASS_INTERVAL_MILLIS || now < passStarted);
+        if (passDue) passStarted = now;
+        for (File dir : boundary) {
+            if (passDue || index.peek(dir) == null) enqueue(dir.getPath());
+        }
+        if (dirty) save();
+    }
+
+    private void findBoundary(File dir, int depth, int maxDepth, List<File> out) {
+        DirectoryWalker.Listing listing = index.peek(dir);
+        if (listing == null) return;
+        for (File child : listing.dirs) {
+            if (child.isHidden() || pruned.accept(child)) continue;
+            if (depth == maxDepth) {
+                out.add(child);
+            } else {
+                findBoundary(child, depth + 1, maxDepth, out);
+            }
+        }
+    }
+
+    /**
+     * Lists queued directories until the cursor is empty or {@code budget} runs out, and
+     * saves the cursor; the index only if the pass is complete or its last save is
+     * {@link #INDEX_SAVE_INTERVAL_MILLIS} old. Each file listed, staged ones included, goes
+     * through {@code mapper} first, which may recover it.
+     *
+     * @return the media files, protected or not, that {@code mapper} kept
+     */
+    synchronized List<MediaEntry> runSlice(Budget budget, DirectoryWalker.FileMapper mapper) {
+        ensureLoaded();
+        long deadline = SystemClock.elapsedRealtime() + budget.millis;
+        int files = 0;
+        int dirs = 0;
+        List<MediaEntry> found = new ArrayList<>();
+        while (!frontier.isEmpty() && files < budget.files && dirs < budget.dirs
+                && SystemClock.elapsedRealtime() < deadline) {
+            String path = frontier.pollFirst();
+            queued.remove(path);
+            dirty = true;
+            File dir = new File(path);
+            if (!dir.isDirectory() || pruned.accept(dir)) continue;
+
+            DirectoryWalker.Listing listing = index.list(dir);
+            dirs++;
+            if (listing == null) continue;
+            for (MediaEntry entry : listing.files) {
+                files++;
+                MediaEntry kept = mapper.map(entry);
+                if (kept != null && isMedia(kept.getFile())) found.add(kept);
+            }
+            for (File child : listing.dirs) {
+                if (!child.isHidden()) enqueue(child.getPath());
+            }
+        }
+        if (frontier.isEmpty() && dirs > 0) {
+            Log.i(TAG, "Deep scan pass complete");
+        }
+        save();
+        long now = SystemClock.elapsedRealtime();
+        if (frontier.isEmpty() || now - indexSaved >= INDEX_SAVE_INTERVAL_MILLIS) {
+            index.save(); // does nothing if no slice changed a record
+            indexSaved = now;
+        }
+        return found;
+    }
+
+    /** Saves the cursor and the index as the slices so far left them; before a pause or stop. */
+    synchronized void flush() {
+        save();
+        index.save();
+        indexSaved = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Adds to {@code out} what {@code mapper} keeps of the recorded files deeper than
+     * {@code maxDepth} below {@code root}. Reads records only; nothing is listed.
+     */
+    void collect(File root, int maxDepth, DirectoryWalker.FileMapper mapper,
+                 List<MediaEntry> out) {
+        collect(root, 0, maxDepth, mapper, out);
+    }
+
+    private void collect(File dir, int depth, int maxDepth, DirectoryWalker.FileMapper mapper,
+                         List<MediaEntry> out) {
+        DirectoryWalker.Listing listing = index.peek(dir);
+        if (listing == null) return;
+        if (depth > maxDepth) {
+            for (MediaEntry entry : listing.files) {
+                if (HeaderObfuscator.isStaged(entry.getFile())) continue; // left to the next pass
+                MediaEntry kept = mapper.map(entry);
+                if (kept != null) out.add(kept);
+            }
+        }
+        for (File child : listing.dirs) {
+            if (child.isHidden() || pruned.accept(child)) continue;
+            collect(child, depth + 1, maxDepth, mapper, out);
+        }
+    }
+
+    private void enqueue(String path) {
+        if (queued.add(path)) {
+            frontier.addFirst(path);
+            dirty = true;
+        }
+    }
+
+    private static boolean isMedia(File file) {
+        return FileConfig.isSupportedMediaFile(file.getName()) && !HeaderObfuscator.isStaged(file);
+    }
+
+    // -------------------------------------------------------------------------
+    // Persistence
+    // -------------------------------------------------------------------------
+
+    private void save() {
+        if (!dirty) return;
+        dirty = false;
+        File temp = new File(cursorFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(passStarted);
+            out.writeInt(frontier.size());
+            for (String path : frontier) out.writeUTF(path);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write deep scan cursor", e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(cursorFile)) {
+            Log.w(TAG, "Could not replace deep scan cursor " + cursorFile);
+            temp.delete();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+        loaded = true;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(cursorFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return;
+            passStarted = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                if (queued.add(path)) frontier.addLast(path);
+            }
+        } catch (FileNotFoundException e) {
+            // No pass yet
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Discarding unreadable deep scan cursor", e);
+            frontier.clear();
+            queued.clear();
+        }
+    }
+}
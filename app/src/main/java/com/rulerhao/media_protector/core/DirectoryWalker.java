@@ -0,0 +1,202 @@
+package com.rulerhao.media_protector.core;
+
+import com.rulerhao.media_protector.crypto.DedupStore;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Walks a directory tree on a {@link ForkJoinPool}, one task per directory.
+ *
+ * <p>Listing a directory on external storage is a blocking round trip through the storage
+ * stack, and a scan is thousands of them. Each task forks its subdirectories before it
+ * visits its own files, so idle workers steal whole subtrees and the listings overlap. Each
+ * task returns the files it kept, and a parent appends its children's lists to its own,
+ * so the walk needs no shared collection and no locking. A caller that wants results before
+ * the walk ends gets each directory's files as soon as that directory is listed.
+ *
+ * <p>The rules are the same as the sequential traversal it replaces:
+ * <ul>
+ *   <li>the root is depth 0, and directories deeper than {@code maxDepth} are not listed;</li>
+ *   <li>hidden directories, and directories {@code pruned} accepts, are skipped with
+ *       everything below them;</li>
+ *   <li>regular files, hidden or not, are passed to the mapper.</li>
+ * </ul>
+ *
+ * <p>Files travel as {@link MediaEntry}s, whose size and time the lister reads while it
+ * tells files from directories, so nothing downstream needs to stat them again.
+ */
+final class DirectoryWalker {
+
+    /** Decides what to keep for a file. Called concurrently for files of different directories. */
+    interface FileMapper {
+        /** @return the entry to keep, possibly a different one, or {@code null} to skip it */
+        MediaEntry map(MediaEntry entry);
+    }
+
+    /** Lists directories for the walk. Called concurrently for different directories. */
+    interface DirectoryLister {
+        /** @return the children of {@code dir}, or {@code null} if it cannot be listed */
+        Listing list(File dir);
+    }
+
+    /** The children of one directory, split into files and subdirectories. */
+    static final class Listing {
+        final List<MediaEntry> files;
+        final List<File> dirs;
+
+        Listing(List<MediaEntry> files, List<File> dirs) {
+            this.files = files;
+            this.dirs = dirs;
+        }
+    }
+
+    /** Lists with {@link File#listFiles()}, one {@code stat} per child. */
+    static final DirectoryLister PLAIN_LISTER = dir -> {
+        File[] children = dir.listFiles();
+        if (children == null) return null;
+        List<MediaEntry> files = new ArrayList<>();
+        List<File> dirs = new ArrayList<>();
+        for (File child : children) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(child.toPath(), BasicFileAttributes.class);
+            } catch (IOException e) {
+                files.add(new MediaEntry(child, 0, 0)); // as isDirectory() would have it
+                continue;
+            }
+            if (attrs.isDirectory()) {
+                dirs.add(child);
+            } else {
+                files.add(new MediaEntry(child, DedupStore.displaySize(child, attrs.size()),
+                        attrs.lastModifiedTime().toMillis()));
+            }
+        }
+        return new Listing(files, dirs);
+    };
+
+    /** Receives results while the walk runs. Called concurrently from several directories. */
+    interface DirectoryListener {
+        /** What was kept from one directory's own files; never empty. */
+        void onDirectory(List<MediaEntry> kept);
+    }
+
+    private final ForkJoinPool pool;
+    private final int maxDepth;
+    private final FileFilter pruned;
+    private final DirectoryLister lister;
+
+    DirectoryWalker(ForkJoinPool pool, int maxDepth, FileFilter pruned) {
+        this(pool, maxDepth, pruned, PLAIN_LISTER);
+    }
+
+    /**
+     * @param lister lists each directory; {@link MediaIndex} answers from its records for
+     *               directories that did not change
+     */
+    DirectoryWalker(ForkJoinPool pool, int maxDepth, FileFilter pruned,
+                    DirectoryLister lister) {
+        this.pool = pool;
+        this.maxDepth = maxDepth;
+        this.pruned = pruned;
+        this.lister = lister;
+    }
+
+    /**
+     * Returns what {@code mapper} kept for every file under {@code root}, a directory's own
+     * files ahead of its subdirectories'. Blocks until the walk is done.
+     */
+    List<MediaEntry> collect(File root, FileMapper mapper) {
+        return collect(root, mapper, null, null);
+    }
+
+    /**
+     * Like {@link #collect(File, FileMapper)}, reporting each directory's files to
+     * {@code listener} as they are found, unless it is {@code null}. Once {@code token} is
+     * cancelled, no further directory is listed and the result is incomplete.
+     */
+    List<MediaEntry> collect(File root, FileMapper mapper, ScanToken token,
+                             DirectoryListener listener) {
+        return pool.invoke(new WalkTask(root, 0, mapper, null, token, listener));
+    }
+
+    /**
+     * Returns {@code true} as soon as {@code filter} accepts any file under {@code root}.
+     * Tasks still running stop at their next file or directory.
+     */
+    boolean anyMatch(File root, FileFilter filter) {
+        AtomicBoolean found = new AtomicBoolean();
+        pool.invoke(new WalkTask(root, 0, entry -> filter.accept(entry.getFile()) ? entry : null,
+                found, null, null));
+        return found.get();
+    }
+
+    private final class WalkTask extends RecursiveTask<List<MediaEntry>> {
+
+        private final File dir;
+        private final int depth;
+        private final FileMapper mapper;
+        /** Set once a file is kept, if the walk stops at the first one; else {@code null}. */
+        private final AtomicBoolean stop;
+        private final ScanToken token;
+        private final DirectoryListener listener;
+
+        WalkTask(File dir, int depth, FileMapper mapper, AtomicBoolean stop, ScanToken token,
+                 DirectoryListener listener) {
+            this.dir = dir;
+            this.depth = depth;
+            this.mapper = mapper;
+            this.stop = stop;
+            this.token = token;
+            this.listener = listener;
+        }
+
+        @Override
+        protected List<MediaEntry> compute() {
+            List<MediaEntry> kept = new ArrayList<>();
+            if (depth > maxDepth || stopped()) return kept;
+            if (dir == null || !dir.isDirectory() || !dir.canRead()) return kept;
+            if (pruned.accept(dir)) return kept;
+
+            Listing listing = lister.list(dir);
+            if (listing == null) return kept;
+
+            List<WalkTask> subtasks = new ArrayList<>();
+            for (File child : listing.dirs) {
+                if (stopped()) break;
+                if (child.isHidden()) continue;
+                WalkTask task = new WalkTask(child, depth + 1, mapper, stop, token, listener);
+                task.fork();
+                subtasks.add(task);
+            }
+            for (MediaEntry child : listing.files) {
+                if (stopped()) break;
+                MediaEntry result = mapper.map(child);
+                if (result == null) continue;
+                kept.add(result);
+                if (stop != null) stop.set(true);
+            }
+            if (listener != null && !kept.isEmpty() && !stopped()) {
+                listener.onDirectory(new ArrayList<>(kept));
+            }
+
+            // Join newest first, the order forked tasks are cheapest to reclaim in
+            List<List<MediaEntry>> results = new ArrayList<>(subtasks.size());
+            for (int i = subtasks.size() - 1; i >= 0; i--) results.add(subtasks.get(i).join());
+            for (int i = results.size() - 1; i >= 0; i--) kept.addAll(results.get(i));
+            return kept;
+        }
+
+        private boolean stopped() {
+            return (stop != null && stop.get()) || (token != null && token.isCancelled());
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.rulerhao.media_protector.core;
+
+/**
+ * Media counts of a directory and the subdirectories below it, as the last scan that
+ * listed it found them. Obtained from {@link MediaRepository#getFolderSummary}.
+ */
+public final class FolderSummary {
+
+    /** The directory's mtime when summarised; the summary is stale once it moves. */
+    final long dirModified;
+    /** How many levels below the directory were listed; 0 for its own files only. */
+    final int levels;
+    private final int encryptedCount;
+    private final int plainCount;
+    private final long newestModified;
+
+    FolderSummary(long dirModified, int levels, int encryptedCount, int plainCount,
+                  long newestModified) {
+        this.dirModified = dirModified;
+        this.levels = levels;
+        this.encryptedCount = encryptedCount;
+        this.plainCount = plainCount;
+        this.newestModified = newestModified;
+    }
+
+    /** Protected (.mprot) files. */
+    public int encryptedCount() {
+        return encryptedCount;
+    }
+
+    /** Regular, unprotected media files. */
+    public int plainCount() {
+        return plainCount;
+    }
+
+    /** The latest mtime of any media file counted, or 0 if there is none. */
+    public long newestModified() {
+        return newestModified;
+    }
+}
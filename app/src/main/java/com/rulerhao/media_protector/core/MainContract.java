@@ -5,7 +5,21 @@ import java.util.List;
 
 public interface MainContract {
     interface View {
-        void showFiles(List<File> files);
+        void showFiles(List<MediaEntry> files);
+
+        /**
+         * Shows the files a running scan has found so far. {@link #showFiles} follows with
+         * the full list once the scan finishes.
+         */
+        void showPartialFiles(List<MediaEntry> filesSoFar);
+
+        /**
+         * Applies changes found without a scan, by an operation or by watching the protected
+         * folder. {@code files} is the full list with the changes applied; the other lists
+         * say what changed, e.g. which thumbnails are stale.
+         */
+        void showFileChanges(List<MediaEntry> files, List<File> added, List<File> removed,
+                             List<File> updated);
 
         void showPermissionError();
 
@@ -63,5 +77,14 @@ public interface MainContract {
         void exportSelected(java.io.File destFolder);
 
         void moveToAlbum(List<File> files, File targetDir);
+
+        /**
+         * The vault's master key became available: reloads the list, whose thumbnails could
+         * not be decrypted while locked, and resumes a pending re-key pass.
+         */
+        void onVaultUnlocked();
+
+        /** Runs a pending re-key pass after the PIN was set, changed or cleared. */
+        void resumeRekey();
     }
 }
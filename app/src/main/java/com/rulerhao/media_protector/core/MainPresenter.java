@@ -20,8 +20,18 @@ public class MainPresenter implements MainContract.Presenter {
 
     private boolean showEncrypted = true;
     private final Set<File> selectedFiles = new HashSet<>();
-    private List<File> currentFileList = new ArrayList<>();
+    private List<MediaEntry> currentFileList = new ArrayList<>();
     private File currentFolder = null;
+    /** The scan feeding the list; replaced, and the old one cancelled, by every load. */
+    private ScanToken currentScan;
+    /** Files the current scan has delivered so far. Main thread only. */
+    private final List<MediaEntry> partialFiles = new ArrayList<>();
+    /** A partial redraw is posted and not yet run; batches arriving meanwhile join it. */
+    private boolean partialRenderPending;
+    /** The current scan has not finished. Main thread only. */
+    private boolean scanning;
+    /** Changes that arrived while scanning, applied once the scan's list is in. Main thread only. */
+    private final List<MediaDelta> deferredDeltas = new ArrayList<>();
 
     /** Guards against callbacks firing after onDestroy(). */
     private volatile boolean destroyed = false;
@@ -39,12 +49,16 @@ public class MainPresenter implements MainContract.Presenter {
 
     @Override
     public void onCreate() {
+        repository.selectCryptoProviders();
+        repository.setMediaChangeListener(delta -> postIfAlive(() -> applyDelta(delta)));
+        repository.startWatching();
         checkPermissions();
     }
 
     @Override
     public void onDestroy() {
         destroyed = true;
+        if (currentScan != null) currentScan.cancel();
         repository.destroy();
     }
 
@@ -101,7 +115,7 @@ public class MainPresenter implements MainContract.Presenter {
 
     @Override
     public void selectAll() {
-        selectedFiles.addAll(currentFileList);
+        selectedFiles.addAll(MediaEntry.files(currentFileList));
         withView(v -> v.updateSelectionMode(!selectedFiles.isEmpty(), selectedFiles.size()));
     }
 
@@ -137,10 +151,7 @@ public class MainPresenter implements MainContract.Presenter {
             @Override
             public void onComplete(int succeeded, int failed) {
                 operationInProgress = false;
-                postIfAlive(() -> {
-                    withView(v -> v.showOperationResult(succeeded, failed));
-                    loadMedia();
-                });
+                postIfAlive(() -> withView(v -> v.showOperationResult(succeeded, failed)));
             }
         });
     }
@@ -158,10 +169,7 @@ public class MainPresenter implements MainContract.Presenter {
             @Override
             public void onComplete(int succeeded, int failed) {
                 operationInProgress = false;
-                postIfAlive(() -> {
-                    withView(v -> v.showOperationResult(succeeded, failed));
-                    loadMedia();
-                });
+                postIfAlive(() -> withView(v -> v.showOperationResult(succeeded, failed)));
             }
         });
     }
@@ -179,10 +187,7 @@ public class MainPresenter implements MainContract.Presenter {
             @Override
             public void onComplete(int succeeded, int failed) {
                 operationInProgress = false;
-                postIfAlive(() -> {
-                    withView(v -> v.showOperationResult(succeeded, failed));
-                    loadMedia();
-                });
+                postIfAlive(() -> withView(v -> v.showOperationResult(succeeded, failed)));
             }
         });
     }
@@ -204,10 +209,7 @@ public class MainPresenter implements MainContract.Presenter {
             @Override
             public void onComplete(int succeeded, int failed) {
                 operationInProgress = false;
-                postIfAlive(() -> {
-                    withView(v -> v.showOperationResult(succeeded, failed));
-                    loadMedia();
-                });
+                postIfAlive(() -> withView(v -> v.showOperationResult(succeeded, failed)));
             }
         });
     }
@@ -247,36 +249,91 @@ public class MainPresenter implements MainContract.Presenter {
             @Override public void onProgress(int done, int total, String fn, long bp, long bt) {}
             @Override
             public void onComplete(int succeeded, int failed) {
+                // The moves reach the list through the repository's change listener
                 operationInProgress = false;
-                postIfAlive(MainPresenter.this::loadMedia);
             }
         });
     }
 
+    // -------------------------------------------------------------------------
+    // Vault keys
+    // -------------------------------------------------------------------------
+
+    @Override
+    public void onVaultUnlocked() {
+        // Files listed before the unlock showed without thumbnails; list them again
+        if (!currentFileList.isEmpty()) loadMedia();
+        resumeRekey();
+    }
+
+    @Override
+    public void resumeRekey() {
+        repository.rekeyVault(Environment.getExternalStorageDirectory());
+    }
+
     // -------------------------------------------------------------------------
     // Load / Sort / Folder
     // -------------------------------------------------------------------------
 
+    /**
+     * Scans for the current mode and folder, cancelling a scan still running for a previous
+     * one. Results arrive in batches and are drawn as they come; a batch of a superseded
+     * scan that was already posted is dropped on the main thread.
+     */
     private void loadMedia() {
-        File root = currentFolder != null ? currentFolder : Environment.getExternalStorageDirectory();
+        File root = scanRoot();
+        repository.recoverVault(); // once storage is accessible; later calls do nothing
+
+        if (currentScan != null) currentScan.cancel();
+        ScanToken[] token = new ScanToken[1];
+        partialFiles.clear();
+        partialRenderPending = false;
+        scanning = true;
+        deferredDeltas.clear(); // the new scan sees them on disk
 
         MediaRepository.ScanCallback callback = new MediaRepository.ScanCallback() {
             @Override
-            public void onScanComplete(List<File> files) {
-                currentFileList = files;
-                postIfAlive(() -> withView(v -> v.showFiles(files)));
+            public void onScanBatch(List<MediaEntry> batch) {
+                postIfAlive(() -> {
+                    if (token[0] != currentScan) return;
+                    partialFiles.addAll(batch);
+                    if (partialRenderPending) return;
+                    partialRenderPending = true;
+                    // Redraw once per main-loop turn, however many batches queued up meanwhile
+                    postIfAlive(() -> {
+                        if (token[0] != currentScan) return;
+                        partialRenderPending = false;
+                        List<MediaEntry> soFar = new ArrayList<>(partialFiles);
+                        withView(v -> v.showPartialFiles(soFar));
+                    });
+                });
+            }
+            @Override
+            public void onScanComplete(List<MediaEntry> files) {
+                postIfAlive(() -> {
+                    if (token[0] != currentScan) return;
+                    currentFileList = files;
+                    partialFiles.clear();
+                    scanning = false;
+                    withView(v -> v.showFiles(files));
+                    applyDeferredDeltas();
+                });
             }
             @Override
             public void onScanError(Exception e) {
-                postIfAlive(() -> withView(v -> v.showError(e.getMessage())));
+                postIfAlive(() -> {
+                    if (token[0] != currentScan) return;
+                    scanning = false;
+                    withView(v -> v.showError(e.getMessage()));
+                    applyDeferredDeltas();
+                });
             }
         };
 
-        if (showEncrypted) {
-            repository.scanFiles(root, callback);
-        } else {
-            repository.scanUnencryptedFiles(root, callback);
-        }
+        token[0] = showEncrypted
+                ? repository.scanFiles(root, callback)
+                : repository.scanUnencryptedFiles(root, callback);
+        currentScan = token[0];
     }
 
     @Override
@@ -285,6 +342,72 @@ public class MainPresenter implements MainContract.Presenter {
         loadMedia();
     }
 
+    private File scanRoot() {
+        return currentFolder != null ? currentFolder : Environment.getExternalStorageDirectory();
+    }
+
+    // -------------------------------------------------------------------------
+    // Live changes
+    // -------------------------------------------------------------------------
+
+    /**
+     * Patches the list with changes reported by the repository, instead of scanning again.
+     * Added files are kept only if the current scan would have listed them. While a scan
+     * runs, the changes wait for its list, since a directory it already walked would not
+     * show them.
+     */
+    private void applyDelta(MediaDelta delta) {
+        if (delta.isRescanNeeded()) {
+            loadMedia();
+            return;
+        }
+        if (scanning) {
+            deferredDeltas.add(delta);
+            return;
+        }
+
+        Set<File> gone = new HashSet<>(delta.removed());
+        Set<File> changed = new HashSet<>(delta.updated());
+        List<MediaEntry> files = new ArrayList<>(currentFileList.size() + delta.added().size());
+        List<File> removed = new ArrayList<>();
+        List<File> updated = new ArrayList<>();
+        Set<File> listed = new HashSet<>();
+        for (MediaEntry entry : currentFileList) {
+            File file = entry.getFile();
+            if (gone.contains(file)) {
+                removed.add(file);
+                continue;
+            }
+            if (changed.contains(file)) {
+                entry = MediaEntry.of(file); // new size and time
+                updated.add(file);
+            }
+            files.add(entry);
+            listed.add(file);
+        }
+        File root = scanRoot();
+        List<File> added = new ArrayList<>();
+        for (File file : delta.added()) {
+            if (repository.isInScanScope(root, file, showEncrypted) && listed.add(file)) {
+                files.add(MediaEntry.of(file));
+                added.add(file);
+            }
+        }
+
+        if (selectedFiles.removeAll(gone)) {
+            withView(v -> v.updateSelectionMode(!selectedFiles.isEmpty(), selectedFiles.size()));
+        }
+        if (added.isEmpty() && removed.isEmpty() && updated.isEmpty()) return;
+        currentFileList = files;
+        withView(v -> v.showFileChanges(files, added, removed, updated));
+    }
+
+    private void applyDeferredDeltas() {
+        List<MediaDelta> deltas = new ArrayList<>(deferredDeltas);
+        deferredDeltas.clear();
+        for (MediaDelta delta : deltas) applyDelta(delta);
+    }
+
     // -------------------------------------------------------------------------
     // Helpers
     // -------------------------------------------------------------------------
@@ -0,0 +1,118 @@
+package com.rulerhao.media_protector.core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of changes to the media on disk: files that appeared, disappeared, or were rewritten
+ * in place. Lets the UI patch its list instead of scanning the storage again.
+ *
+ * <p>Changes to one file coalesce, so each file appears in at most one list. A file that
+ * was added and then removed does not appear at all. When the changes cannot be described
+ * file by file, for instance because a whole album directory went away,
+ * {@link #isRescanNeeded()} is set and the lists may be incomplete.
+ */
+public final class MediaDelta {
+
+    private final List<File> added;
+    private final List<File> removed;
+    private final List<File> updated;
+    private final boolean rescanNeeded;
+
+    private MediaDelta(List<File> added, List<File> removed, List<File> updated,
+                       boolean rescanNeeded) {
+        this.added = Collections.unmodifiableList(added);
+        this.removed = Collections.unmodifiableList(removed);
+        this.updated = Collections.unmodifiableList(updated);
+        this.rescanNeeded = rescanNeeded;
+    }
+
+    public List<File> added() {
+        return added;
+    }
+
+    public List<File> removed() {
+        return removed;
+    }
+
+    public List<File> updated() {
+        return updated;
+    }
+
+    /** {@code true} if the lists may be incomplete and only a scan gives the right picture. */
+    public boolean isRescanNeeded() {
+        return rescanNeeded;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && updated.isEmpty() && !rescanNeeded;
+    }
+
+    /** Collects changes as they happen. Thread-safe. */
+    static final class Builder {
+        private static final int ADDED = 0;
+        private static final int REMOVED = 1;
+        private static final int UPDATED = 2;
+
+        private final Map<File, Integer> changes = new LinkedHashMap<>();
+        private boolean rescanNeeded;
+
+        synchronized void added(File file) {
+            Integer before = changes.get(file);
+            // Removed and created again, e.g. replaced by a rename: it changed in place
+            changes.put(file, before != null && before == REMOVED ? UPDATED : ADDED);
+        }
+
+        synchronized void removed(File file) {
+            Integer before = changes.get(file);
+            if (before != null && before == ADDED) {
+                changes.remove(file); // came and went between two deliveries
+            } else {
+                changes.put(file, REMOVED);
+            }
+        }
+
+        synchronized void updated(File file) {
+            if (!changes.containsKey(file)) changes.put(file, UPDATED);
+            // ADDED stays ADDED; REMOVED then written again was handled by added()
+        }
+
+        synchronized void rescanNeeded() {
+            rescanNeeded = true;
+        }
+
+        /**
+         * Returns the changes so far and starts over. Each file is checked against the disk,
+         * so a change that did not happen after all is dropped, or corrected, for instance
+         * for a file whose batch failed before the commit published it.
+         */
+        synchronized MediaDelta drain() {
+            List<File> added = new ArrayList<>();
+            List<File> removed = new ArrayList<>();
+            List<File> updated = new ArrayList<>();
+            for (Map.Entry<File, Integer> e : changes.entrySet()) {
+                File file = e.getKey();
+                boolean exists = file.isFile();
+                switch (e.getValue()) {
+                    case ADDED:
+                        if (exists) added.add(file);
+                        break;
+                    case REMOVED:
+                        if (!exists) removed.add(file); // else: its operation failed
+                        break;
+                    default:
+                        (exists ? updated : removed).add(file);
+                        break;
+                }
+            }
+            MediaDelta delta = new MediaDelta(added, removed, updated, rescanNeeded);
+            changes.clear();
+            rescanNeeded = false;
+            return delta;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.rulerhao.media_protector.core;
+
+import com.rulerhao.media_protector.crypto.DedupStore;
+import com.rulerhao.media_protector.crypto.HeaderObfuscator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A media file as a scan found it: path, size, modification time, type and original name.
+ *
+ * <p>The attributes are captured once, during the walk, and never re-read. Sorting and
+ * grouping a list of these costs no system calls, where {@link File#lastModified()} in a
+ * comparator costs two per comparison. The values are a snapshot, so a file changed since
+ * the scan shows its old size and time until the next one. Two entries are equal when their
+ * files are, so an entry can be looked up by the file alone.
+ */
+public final class MediaEntry {
+
+    private final File file;
+    private final long size;
+    private final long modified;
+    private final boolean video;
+    private final String originalName;
+
+    /** Type and original name are derived from the file name. */
+    public MediaEntry(File file, long size, long modified) {
+        this(file, size, modified, FileConfig.isVideoFile(HeaderObfuscator.getOriginalName(file)));
+    }
+
+    MediaEntry(File file, long size, long modified, boolean video) {
+        this.file = file;
+        this.size = size;
+        this.modified = modified;
+        this.video = video;
+        this.originalName = HeaderObfuscator.getOriginalName(file);
+    }
+
+    /**
+     * Describes {@code file} with a single {@code stat}. A file that cannot be read gets size
+     * and time 0, as {@link File#length()} and {@link File#lastModified()} would report.
+     */
+    public static MediaEntry of(File file) {
+        try {
+            BasicFileAttributes attrs =
+                    Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            return new MediaEntry(file, DedupStore.displaySize(file, attrs.size()),
+                    attrs.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return new MediaEntry(file, 0, 0);
+        }
+    }
+
+    /** The files of {@code entries}, in order. */
+    public static List<File> files(List<MediaEntry> entries) {
+        List<File> files = new ArrayList<>(entries.size());
+        for (MediaEntry entry : entries) files.add(entry.file);
+        return files;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Size in bytes on disk; for a protected file, of the .mprot container, and for a
+     * deduplicated one, of the payload it refers to.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /** Modification time in milliseconds since the epoch. */
+    public long getModified() {
+        return modified;
+    }
+
+    public boolean isVideo() {
+        return video;
+    }
+
+    public boolean isEncrypted() {
+        return FileConfig.isEncryptedFile(file.getName());
+    }
+
+    /** The name without the .mprot extension, as shown to the user. */
+    public String getOriginalName() {
+        return originalName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof MediaEntry && file.equals(((MediaEntry) o).file);
+    }
+
+    @Override
+    public int hashCode() {
+        return file.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+}
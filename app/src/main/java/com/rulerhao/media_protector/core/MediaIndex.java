@@ -0,0 +1,386 @@
+package com.rulerhao.media_protector.core;
+
+import android.util.Log;
+
+import com.rulerhao.media_protector.crypto.DedupStore;
+import com.rulerhao.media_protector.crypto.HeaderObfuscator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk index of the media under the scanned trees. It records each directory's media
+ * entries together with the directory's modification time.
+ *
+ * <p>Creating, deleting or renaming an entry changes its directory's mtime. A directory
+ * whose mtime still matches its record is therefore served from the record, without a
+ * listing. A changed directory is listed again. Rewriting a file in place, as the re-key
+ * pass or an editor saving over a photo does, leaves the directory's mtime alone, so the
+ * record only settles which files there are: their size and mtime are read again, one
+ * {@code stat} per recorded media file. A warm rescan thus costs a {@code stat} per
+ * directory and per media file, instead of a listing plus a {@code stat} per child. Its
+ * results match a full scan's, because a directory is only trusted while nothing can have
+ * been added to, removed from or renamed in it.
+ *
+ * <p>Two details keep that true:
+ * <ul>
+ *   <li>The mtime is read before the listing. A change made during the listing leaves a
+ *       newer mtime behind, so the record is retried on the next scan.</li>
+ *   <li>Filesystems store mtimes coarsely: exFAT on SD cards to 2 s. A change in the same
+ *       tick as the listing would not move the mtime. A record is therefore only trusted
+ *       once its directory was last modified {@link #RACY_WINDOW_MILLIS} before the
+ *       listing.</li>
+ * </ul>
+ *
+ * <p>Only media files, protected files and staged files are recorded; the walk's mappers
+ * skip everything else anyway. Subdirectories are recorded by name, and the walk stats
+ * each one for itself, because a change deep in the tree does not reach its ancestors'
+ * mtimes.
+ *
+ * <p>After a scan, the records it walked are also added up, bottom-up, into a
+ * {@link FolderSummary} per directory. A summary is dropped once its directory's own mtime
+ * moves. A change deeper down does not move it, though, so an ancestor's counts lag until
+ * the next scan.
+ */
+final class MediaIndex implements DirectoryWalker.DirectoryLister {
+
+    private static final String TAG = "MediaIndex";
+
+    private static final int MAGIC = 0x4D494458; // "MIDX"
+    private static final int VERSION = 2; // 2: dedup references record their payload's size
+    /** Records of directories modified this close to their listing are not trusted. */
+    private static final long RACY_WINDOW_MILLIS = 3000;
+
+    static final int FLAG_ENCRYPTED = 0x01;
+    static final int FLAG_VIDEO     = 0x02;
+    static final int FLAG_STAGED    = 0x04;
+
+    /** One media file of a directory. */
+    static final class Entry {
+        final String name;
+        final long size;
+        final long modified;
+        final int flags;
+
+        Entry(String name, long size, long modified, int flags) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.flags = flags;
+        }
+    }
+
+    /** A directory as it was last listed. */
+    private static final class DirRecord {
+        final long modified;
+        final long listedAt;
+        final Entry[] files;
+        final String[] dirs;
+
+        DirRecord(long modified, long listedAt, Entry[] files, String[] dirs) {
+            this.modified = modified;
+            this.listedAt = listedAt;
+            this.files = files;
+            this.dirs = dirs;
+        }
+
+        DirectoryWalker.Listing toListing(File dir) {
+            List<MediaEntry> fileList = new ArrayList<>(files.length);
+            for (Entry entry : files) {
+                fileList.add(new MediaEntry(new File(dir, entry.name), entry.size, entry.modified,
+                        (entry.flags & FLAG_VIDEO) != 0));
+            }
+            List<File> dirList = new ArrayList<>(dirs.length);
+            for (String name : dirs) dirList.add(new File(dir, name));
+            return new DirectoryWalker.Listing(fileList, dirList);
+        }
+    }
+
+    private final File store;
+    private final Map<String, DirRecord> records = new ConcurrentHashMap<>();
+    /** Not persisted: rebuilt from the records by the first scan. */
+    private final Map<String, FolderSummary> summaries = new ConcurrentHashMap<>();
+    private volatile boolean loaded;
+    private volatile boolean dirty;
+
+    /** @param store the index file; created on the first {@link #save()} */
+    MediaIndex(File store) {
+        this.store = store;
+    }
+
+    @Override
+    public DirectoryWalker.Listing list(File dir) {
+        ensureLoaded();
+        String path = dir.getPath();
+        long modified = dir.lastModified();
+        DirRecord record = records.get(path);
+        if (record != null && record.modified == modified
+                && modified < record.listedAt - RACY_WINDOW_MILLIS) {
+            DirRecord current = refresh(dir, record);
+            if (current != record) {
+                records.put(path, current);
+                dirty = true;
+            }
+            return current.toListing(dir);
+        }
+
+        DirRecord fresh = read(dir, modified);
+        if (fresh == null) {
+            forget(path);
+            return null;
+        }
+        if (record != null) forgetRemovedDirs(path, record.dirs, fresh.dirs);
+        records.put(path, fresh);
+        dirty = true;
+        return fresh.toListing(dir);
+    }
+
+    /**
+     * Returns the children of {@code dir} as last listed, without touching the disk, or
+     * {@code null} if it was never listed. The listing may be out of date.
+     */
+    DirectoryWalker.Listing peek(File dir) {
+        ensureLoaded();
+        DirRecord record = records.get(dir.getPath());
+        return record != null ? record.toListing(dir) : null;
+    }
+
+    /**
+     * Reads the size and mtime of each file {@code record} lists again.
+     *
+     * @return {@code record} if none changed, else a copy with the new values
+     */
+    private static DirRecord refresh(File dir, DirRecord record) {
+        Entry[] files = null;
+        for (int i = 0; i < record.files.length; i++) {
+            Entry entry = record.files[i];
+            File file = new File(dir, entry.name);
+            long size = 0;
+            long modified = 0;
+            try {
+                BasicFileAttributes attrs =
+                        Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                size = DedupStore.displaySize(file, attrs.size());
+                modified = attrs.lastModifiedTime().toMillis();
+            } catch (IOException e) {
+                // As read() records it
+            }
+            if (size == entry.size && modified == entry.modified) continue;
+            if (files == null) files = record.files.clone();
+            files[i] = new Entry(entry.name, size, modified, entry.flags);
+        }
+        return files == null ? record
+                : new DirRecord(record.modified, record.listedAt, files, record.dirs);
+    }
+
+    /** Lists {@code dir} from disk, stamping the record with {@code modified}. */
+    private static DirRecord read(File dir, long modified) {
+        long listedAt = System.currentTimeMillis();
+        File[] children = dir.listFiles();
+        if (children == null) return null;
+
+        List<Entry> files = new ArrayList<>();
+        List<String> dirs = new ArrayList<>();
+        for (File child : children) {
+            String name = child.getName();
+            boolean staged = HeaderObfuscator.isStaged(child);
+            boolean media = FileConfig.isSupportedMediaFile(name);
+            BasicFileAttributes attrs = null;
+            try {
+                attrs = Files.readAttributes(child.toPath(), BasicFileAttributes.class);
+            } catch (IOException e) {
+                // Dangling link or vanished meanwhile: a plain listing would see a file too
+            }
+            if (attrs != null && attrs.isDirectory()) {
+                dirs.add(name);
+            } else if (media || staged) {
+                int flags = (FileConfig.isEncryptedFile(name) ? FLAG_ENCRYPTED : 0)
+                        | (FileConfig.isVideoFile(HeaderObfuscator.getOriginalName(child))
+                                ? FLAG_VIDEO : 0)
+                        | (staged ? FLAG_STAGED : 0);
+                files.add(attrs != null
+                        ? new Entry(name, DedupStore.displaySize(child, attrs.size()),
+                                attrs.lastModifiedTime().toMillis(), flags)
+                        : new Entry(name, 0, 0, flags));
+            }
+        }
+        return new DirRecord(modified, listedAt, files.toArray(new Entry[0]),
+                dirs.toArray(new String[0]));
+    }
+
+    /** Drops the records of subdirectories that disappeared from the directory at {@code path}. */
+    private void forgetRemovedDirs(String path, String[] before, String[] after) {
+        Set<String> kept = new HashSet<>(Arrays.asList(after));
+        for (String name : before) {
+            if (!kept.contains(name)) forget(new File(path, name).getPath());
+        }
+    }
+
+    /** Drops the record of the directory at {@code path} and of everything below it. */
+    private void forget(String path) {
+        if (records.remove(path) != null) dirty = true;
+        summaries.remove(path);
+        String prefix = path + File.separator;
+        for (String key : records.keySet()) {
+            if (key.startsWith(prefix)) {
+                records.remove(key);
+                dirty = true;
+            }
+        }
+        for (String key : summaries.keySet()) {
+            if (key.startsWith(prefix)) summaries.remove(key);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Folder summaries
+    // -------------------------------------------------------------------------
+
+    /**
+     * Returns the summary of {@code dir}, or {@code null} if no scan summarised it or it
+     * changed since.
+     */
+    FolderSummary summary(File dir) {
+        FolderSummary summary = summaries.get(dir.getPath());
+        if (summary == null || summary.dirModified != dir.lastModified()) return null;
+        return summary;
+    }
+
+    /**
+     * Summarises {@code root} and every directory below it, down to {@code levels} levels,
+     * from the records alone. Call right after a complete walk of {@code root} with the
+     * same rules, so that the records are the ones it just checked.
+     */
+    void summarize(File root, int levels, FileFilter pruned) {
+        ensureLoaded();
+        summarize(root.getPath(), levels, pruned);
+    }
+
+    private FolderSummary summarize(String path, int levels, FileFilter pruned) {
+        DirRecord record = records.get(path);
+        if (record == null) return null; // the walk could not list it either
+
+        int encrypted = 0;
+        int plain = 0;
+        long newest = 0;
+        for (Entry entry : record.files) {
+            if ((entry.flags & FLAG_STAGED) != 0) continue; // recovered by the walk's mapper
+            if ((entry.flags & FLAG_ENCRYPTED) != 0) {
+                encrypted++;
+            } else {
+                plain++;
+            }
+            newest = Math.max(newest, entry.modified);
+        }
+        if (levels > 0) {
+            for (String name : record.dirs) {
+                File child = new File(path, name);
+                if (child.isHidden() || pruned.accept(child)) continue; // as the walk does
+                FolderSummary sub = summarize(child.getPath(), levels - 1, pruned);
+                if (sub == null) continue;
+                encrypted += sub.encryptedCount();
+                plain += sub.plainCount();
+                newest = Math.max(newest, sub.newestModified());
+            }
+        }
+        FolderSummary summary = new FolderSummary(record.modified, levels, encrypted, plain,
+                newest);
+        summaries.put(path, summary);
+        return summary;
+    }
+
+    // -------------------------------------------------------------------------
+    // Persistence
+    // -------------------------------------------------------------------------
+
+    /**
+     * Writes the index if it changed since it was loaded or last saved. The file is replaced
+     * atomically, so a crash leaves the previous index, which the mtimes then correct.
+     */
+    synchronized void save() {
+        if (!dirty) return;
+        dirty = false;
+        File temp = new File(store.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(records.size());
+            for (Map.Entry<String, DirRecord> e : records.entrySet()) {
+                DirRecord record = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(record.modified);
+                out.writeLong(record.listedAt);
+                out.writeInt(record.files.length);
+                for (Entry entry : record.files) {
+                    out.writeUTF(entry.name);
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.modified);
+                    out.writeByte(entry.flags);
+                }
+                out.writeInt(record.dirs.length);
+                for (String name : record.dirs) out.writeUTF(name);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write media index", e);
+            dirty = true;
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(store)) {
+            Log.w(TAG, "Could not replace media index " + store);
+            dirty = true;
+            temp.delete();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (!loaded) load();
+    }
+
+    private synchronized void load() {
+        if (loaded) return;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(store)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long modified = in.readLong();
+                long listedAt = in.readLong();
+                Entry[] files = new Entry[in.readInt()];
+                for (int f = 0; f < files.length; f++) {
+                    files[f] = new Entry(in.readUTF(), in.readLong(), in.readLong(),
+                            in.readByte());
+                }
+                String[] dirs = new String[in.readInt()];
+                for (int d = 0; d < dirs.length; d++) dirs[d] = in.readUTF();
+                records.put(path, new DirRecord(modified, listedAt, files, dirs));
+            }
+        } catch (FileNotFoundException e) {
+            // First run: everything gets listed
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Discarding unreadable media index", e);
+            records.clear();
+        } finally {
+            loaded = true; // only now may walk threads read the records
+        }
+    }
+}
@@ -1,16 +1,34 @@
 package com.rulerhao.media_protector.core;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.rulerhao.media_protector.crypto.BatchGovernor;
+import com.rulerhao.media_protector.crypto.CryptoBatch;
+import com.rulerhao.media_protector.crypto.DedupStore;
+import com.rulerhao.media_protector.crypto.GroupCommit;
 import com.rulerhao.media_protector.crypto.HeaderObfuscator;
+import com.rulerhao.media_protector.crypto.VaultKeys;
+import com.rulerhao.media_protector.crypto.android.DeviceConditions;
 import com.rulerhao.media_protector.security.OriginalPathStore;
+import com.rulerhao.media_protector.security.SecurityHelper;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.SecretKey;
 
 /**
  * Repository for scanning and processing media files.
@@ -29,10 +47,11 @@ import java.util.concurrent.Executors;
  *   <li><b>Battery:</b> Reducing file system traversal saves CPU cycles and battery.</li>
  * </ul>
  *
- * <p>If you need to scan deeper, increase {@code MAX_DEPTH} in {@link #traverse},
- * but consider adding a timeout or progress callback for cancellation support.</p>
+ * <p>With the deep scan setting on, a {@link DeepScanner} lists the directories below the
+ * limit in short, budgeted slices while the app is idle, and scans include what it found.
+ * Full coverage builds up over time instead of in one long walk.</p>
  *
- * @see #traverse(File, FileVisitor, int)
+ * @see DirectoryWalker
  */
 public class MediaRepository {
 
@@ -41,9 +60,15 @@ public class MediaRepository {
      * Maximum folder depth for recursive file scanning.
      * Depth 0 = root directory, Depth 3 = 3 levels below root.
      *
-     * @see #traverse(File, FileVisitor, int)
+     * @see DirectoryWalker
      */
-    private static final int MAX_DEPTH = 3;
+    static final int MAX_DEPTH = 3;
+    /** Minimum interval between two {@link ScanCallback#onScanBatch} calls of one scan. */
+    public static final long SCAN_BATCH_MILLIS = 250;
+    /** Budget of one deep scan slice at {@link BatchGovernor.Level#FULL}. */
+    private static final DeepScanner.Budget DEEP_SLICE = new DeepScanner.Budget(200, 2000, 100);
+    /** Rest between two deep scan slices. */
+    private static final long DEEP_SLICE_INTERVAL_MILLIS = 2000;
     private final Context context;
 
     // System folders to skip during recursive search
@@ -59,12 +84,46 @@ public class MediaRepository {
         EXPORT
     }
 
-    private final ExecutorService scanExecutor = Executors.newSingleThreadExecutor();
+    /** Runs scans, and deep scan slices between them. */
+    private final ScheduledExecutorService scanExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+    /**
+     * Runs directory walks. Listing blocks on storage rather than the CPU, so it gets more
+     * threads than there are cores.
+     */
+    private final ForkJoinPool walkPool = new ForkJoinPool(
+            Math.min(8, 2 * Runtime.getRuntime().availableProcessors()));
+    private final MediaIndex mediaIndex;
+    private final DirectoryWalker walker;
+    /** Answers the Original tab's scans first, see {@link MediaStoreScanner}. */
+    private final MediaStoreScanner mediaStoreScanner;
+    private final DeepScanner deepScanner;
+    private final AtomicBoolean deepSliceScheduled = new AtomicBoolean();
+    private final AtomicBoolean vaultRecovered = new AtomicBoolean();
+    private final BatchGovernor governor;
     private final ExecutorService cryptoExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService batchExecutor =
+            Executors.newFixedThreadPool(CryptoBatch.DEFAULT_MAX_FILES);
+    /** Paced by device temperature, battery and screen state, see {@link BatchGovernor}. */
+    private final CryptoBatch cryptoBatch;
+    /** Target names handed out to the running batch that may not exist on disk yet. */
+    private final Set<File> reservedFiles = new HashSet<>();
     private final HeaderObfuscator obfuscator = new HeaderObfuscator();
+    private final DedupStore dedupStore = DedupStore.forVault(FileConfig.getProtectedFolder());
+    private volatile MediaChangeListener changeListener;
+    private VaultWatcher vaultWatcher;
 
     public MediaRepository(Context context) {
         this.context = context.getApplicationContext();
+        this.mediaIndex = new MediaIndex(new File(this.context.getNoBackupFilesDir(), "media_index"));
+        this.walker = new DirectoryWalker(walkPool, MAX_DEPTH, MediaRepository::isSystemFolder,
+                mediaIndex);
+        this.mediaStoreScanner = new MediaStoreScanner(this.context);
+        this.deepScanner = new DeepScanner(mediaIndex, MediaRepository::isSystemFolder,
+                new File(this.context.getNoBackupFilesDir(), "deep_scan_cursor"));
+        this.governor = new BatchGovernor(new DeviceConditions(this.context));
+        this.cryptoBatch = new CryptoBatch(CryptoBatch.DEFAULT_MAX_FILES,
+                CryptoBatch.DEFAULT_MAX_BYTES, governor);
     }
 
     // -------------------------------------------------------------------------
@@ -72,7 +131,15 @@ public class MediaRepository {
     // -------------------------------------------------------------------------
 
     public interface ScanCallback {
-        void onScanComplete(List<File> files);
+        /**
+         * Files found since the previous batch, delivered while the scan runs: the first as
+         * soon as a directory yields anything, then at most every {@link #SCAN_BATCH_MILLIS}.
+         */
+        void onScanBatch(List<MediaEntry> batch);
+
+        /** Every file found, the batches included; not called if the scan was cancelled. */
+        void onScanComplete(List<MediaEntry> files);
+
         void onScanError(Exception e);
     }
 
@@ -81,35 +148,252 @@ public class MediaRepository {
         void onComplete(int succeeded, int failed);
     }
 
+    /**
+     * Receives what the repository's own operations, and changes seen in the protected
+     * folder, did to the files on disk. Called on a background thread; for an operation,
+     * before its {@link OperationCallback#onComplete}.
+     */
+    public interface MediaChangeListener {
+        void onMediaChanged(MediaDelta delta);
+    }
+
+    public void setMediaChangeListener(MediaChangeListener listener) {
+        this.changeListener = listener;
+    }
+
     // -------------------------------------------------------------------------
     // Scan
     // -------------------------------------------------------------------------
 
-    public void scanFiles(File rootDir, ScanCallback callback) {
-        scanFilesInternal(rootDir, true, callback);
+    /** Scans for protected files; cancel the returned token to abandon the scan. */
+    public ScanToken scanFiles(File rootDir, ScanCallback callback) {
+        return scanFilesInternal(rootDir, true, callback);
     }
 
-    public void scanUnencryptedFiles(File rootDir, ScanCallback callback) {
-        scanFilesInternal(rootDir, false, callback);
+    /**
+     * Scans for unprotected media; cancel the returned token to abandon the scan. Where
+     * MediaStore hands out paths, its index supplies the first batches, and the walk that
+     * follows adds what it missed; the complete list is the walk's.
+     */
+    public ScanToken scanUnencryptedFiles(File rootDir, ScanCallback callback) {
+        return scanFilesInternal(rootDir, false, callback);
     }
 
-    private void scanFilesInternal(File rootDir, boolean encrypted, ScanCallback callback) {
+    private ScanToken scanFilesInternal(File rootDir, boolean encrypted, ScanCallback callback) {
+        ScanToken token = new ScanToken();
         scanExecutor.execute(() -> {
+            if (token.isCancelled()) return; // superseded while queued
+            long started = SystemClock.elapsedRealtime();
+            ScanBatcher batcher = new ScanBatcher(token, callback, started);
             try {
-                List<File> result = new ArrayList<>();
-                traverse(rootDir, file -> {
+                DirectoryWalker.DirectoryListener listener = batcher;
+                if (!encrypted && mediaStoreScanner.isAvailable()) {
+                    batcher.source = "MediaStore";
+                    List<MediaStoreScanner.Entry> indexed = mediaStoreScanner.scan(rootDir,
+                            file -> inScope(rootDir, file, false, MAX_DEPTH), token,
+                            page -> batcher.onDirectory(entries(page)));
+                    if (indexed != null) {
+                        Log.i(TAG, "MediaStore listed " + indexed.size() + " files in "
+                                + (SystemClock.elapsedRealtime() - started) + " ms");
+                        // The walk only reports what MediaStore did not
+                        Set<MediaEntry> seen = new HashSet<>(entries(indexed));
+                        listener = kept -> {
+                            List<MediaEntry> fresh = new ArrayList<>();
+                            for (MediaEntry entry : kept) {
+                                if (!seen.contains(entry)) fresh.add(entry);
+                            }
+                            if (!fresh.isEmpty()) batcher.onDirectory(fresh);
+                        };
+                    }
+                    batcher.flush(); // the last pages, before the walk takes its time
+                    batcher.source = "walk";
+                }
+                DirectoryWalker.FileMapper byMode = entry -> {
+                    String name = entry.getFile().getName();
                     boolean match = encrypted
-                            ? FileConfig.isEncryptedFile(file.getName())
-                            : FileConfig.isRegularMediaFile(file.getName());
-                    if (match) result.add(file);
-                    return true; // always continue
-                }, 0);
-                callback.onScanComplete(result);
+                            ? FileConfig.isEncryptedFile(name)
+                            : FileConfig.isRegularMediaFile(name);
+                    return match ? entry : null;
+                };
+                List<MediaEntry> result = walker.collect(rootDir, entry -> {
+                    MediaEntry settled = settle(entry);
+                    return settled == null ? null : byMode.map(settled);
+                }, token, listener);
+                if (!token.isCancelled()) {
+                    mediaIndex.summarize(rootDir, MAX_DEPTH, MediaRepository::isSystemFolder);
+                    if (SecurityHelper.isDeepScanEnabled(context)) {
+                        // What earlier slices found below the limit; queue what they have not
+                        List<MediaEntry> deep = new ArrayList<>();
+                        deepScanner.collect(rootDir, MAX_DEPTH, byMode, deep);
+                        if (!deep.isEmpty()) {
+                            batcher.onDirectory(deep);
+                            result.addAll(deep);
+                        }
+                        deepScanner.noteScan(rootDir, MAX_DEPTH);
+                        scheduleDeepSlice(DEEP_SLICE_INTERVAL_MILLIS);
+                    }
+                }
+                batcher.flush();
+                Log.i(TAG, "Scan of " + rootDir + " found " + result.size() + " files in "
+                        + (SystemClock.elapsedRealtime() - started) + " ms");
+                mediaIndex.save();
+                if (!token.isCancelled()) callback.onScanComplete(result);
             } catch (Exception e) {
                 Log.e(TAG, "Scan failed", e);
-                callback.onScanError(e);
+                if (!token.isCancelled()) callback.onScanError(e);
             }
         });
+        return token;
+    }
+
+    private static List<MediaEntry> entries(List<MediaStoreScanner.Entry> rows) {
+        List<MediaEntry> entries = new ArrayList<>(rows.size());
+        for (MediaStoreScanner.Entry row : rows) entries.add(row.toMediaEntry());
+        return entries;
+    }
+
+    /**
+     * Collects the walker's per-directory results and hands them to the callback in
+     * batches, so the UI redraws a few times a second instead of once per directory.
+     */
+    private static final class ScanBatcher implements DirectoryWalker.DirectoryListener {
+        private final ScanToken token;
+        private final ScanCallback callback;
+        private final long started;
+        /** Where the files come from, for the time-to-first-batch log. */
+        volatile String source = "walk";
+        private List<MediaEntry> pending = new ArrayList<>();
+        private long lastFlush;
+        private boolean flushedAny;
+
+        ScanBatcher(ScanToken token, ScanCallback callback, long started) {
+            this.token = token;
+            this.callback = callback;
+            this.started = started;
+        }
+
+        @Override
+        public synchronized void onDirectory(List<MediaEntry> kept) {
+            pending.addAll(kept);
+            // The first files go out at once: that is what ends the skeleton screen
+            long now = SystemClock.elapsedRealtime();
+            if (!flushedAny || now - lastFlush >= SCAN_BATCH_MILLIS) flush();
+        }
+
+        synchronized void flush() {
+            if (pending.isEmpty() || token.isCancelled()) return;
+            List<MediaEntry> batch = pending;
+            pending = new ArrayList<>();
+            lastFlush = SystemClock.elapsedRealtime();
+            if (!flushedAny) {
+                // Time to first grid, to compare MediaStore with the walk on a device
+                Log.i(TAG, "First " + batch.size() + " files after " + (lastFlush - started)
+                        + " ms from " + source);
+                flushedAny = true;
+            }
+            callback.onScanBatch(batch);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Change tracking
+    // -------------------------------------------------------------------------
+
+    /**
+     * Starts reporting changes made in the protected folder and its albums by anything but
+     * this repository, e.g. a file deleted from the viewer, to the
+     * {@link MediaChangeListener}. Does nothing if already watching.
+     */
+    public synchronized void startWatching() {
+        if (vaultWatcher != null) return;
+        vaultWatcher = new VaultWatcher(FileConfig.getProtectedFolder(), this::publish);
+        vaultWatcher.start();
+    }
+
+    public synchronized void stopWatching() {
+        if (vaultWatcher == null) return;
+        vaultWatcher.stop();
+        vaultWatcher = null;
+    }
+
+    /**
+     * Returns {@code true} if a scan of {@code rootDir} in the given mode would list
+     * {@code file}, judged by its path alone. Lets a {@link MediaDelta} be applied to a scan's
+     * results without scanning again.
+     */
+    public boolean isInScanScope(File rootDir, File file, boolean encrypted) {
+        return inScope(rootDir, file, encrypted,
+                SecurityHelper.isDeepScanEnabled(context) ? Integer.MAX_VALUE : MAX_DEPTH);
+    }
+
+    private static boolean inScope(File rootDir, File file, boolean encrypted, int maxDepth) {
+        String name = file.getName();
+        boolean match = encrypted
+                ? FileConfig.isEncryptedFile(name)
+                : FileConfig.isRegularMediaFile(name);
+        if (!match) return false;
+        // The same rules the walk applies to each directory on the way down
+        int depth = 0;
+        for (File dir = file.getParentFile(); !rootDir.equals(dir); dir = dir.getParentFile()) {
+            if (dir == null || dir.isHidden() || isSystemFolder(dir)) return false;
+            depth++;
+        }
+        return depth <= maxDepth && !isSystemFolder(rootDir);
+    }
+
+    /** Passes a finished batch's or the watcher's changes to the listener, if any. */
+    private void publish(MediaDelta.Builder delta) {
+        publish(delta.drain());
+    }
+
+    private void publish(MediaDelta delta) {
+        MediaChangeListener listener = changeListener;
+        if (listener != null && !delta.isEmpty()) listener.onMediaChanged(delta);
+    }
+
+    // -------------------------------------------------------------------------
+    // Deep scan
+    // -------------------------------------------------------------------------
+
+    private void scheduleDeepSlice(long delayMillis) {
+        if (!deepSliceScheduled.compareAndSet(false, true)) return;
+        try {
+            scanExecutor.schedule(this::runDeepSlice, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Destroyed; the cursor is saved and the next start resumes it
+        }
+    }
+
+    /**
+     * Lists one budgeted slice of deep directories and reports their media as added files.
+     * Runs on {@code scanExecutor}, so it never competes with a scan. The slice shrinks
+     * with the {@link BatchGovernor}'s level, and waits while the device is too hot or
+     * its battery is low.
+     */
+    private void runDeepSlice() {
+        deepSliceScheduled.set(false);
+        if (!SecurityHelper.isDeepScanEnabled(context)) {
+            deepScanner.flush(); // turned off mid-pass
+            return;
+        }
+        if (!deepScanner.hasWork()) return;
+
+        BatchGovernor.Level level = governor.level();
+        if (level.concurrency == 0) {
+            deepScanner.flush();
+            scheduleDeepSlice(BatchGovernor.RAISE_HOLD_NANOS / 1_000_000);
+            return;
+        }
+        // Staged files deep down are recovered here; no scan lists them
+        List<MediaEntry> found = deepScanner.runSlice(new DeepScanner.Budget(
+                (long) (DEEP_SLICE.millis * level.dutyCycle),
+                DEEP_SLICE.files, DEEP_SLICE.dirs), this::settle);
+        if (!found.isEmpty()) {
+            MediaDelta.Builder delta = new MediaDelta.Builder();
+            for (MediaEntry entry : found) delta.added(entry.getFile());
+            publish(delta);
+        }
+        if (deepScanner.hasWork()) scheduleDeepSlice(DEEP_SLICE_INTERVAL_MILLIS);
     }
 
     // -------------------------------------------------------------------------
@@ -153,7 +437,8 @@ public class MediaRepository {
 
     /**
      * Unified file processing method that handles encrypt, decrypt, and export operations.
-     * Runs on a managed ExecutorService for proper lifecycle management.
+     * Batches are coordinated on {@code cryptoExecutor}, so operations never overlap, while
+     * the files of one batch run concurrently on {@code batchExecutor} (see {@link CryptoBatch}).
      *
      * @param op         the operation to perform
      * @param files      the files to process
@@ -163,52 +448,27 @@ public class MediaRepository {
     private void processFiles(Operation op, List<File> files, File destFolder,
                               OperationCallback callback) {
         cryptoExecutor.execute(() -> {
-            int succeeded = 0;
-            int failed = 0;
-            int total = files.size();
-
-            // Calculate total bytes for progress reporting
-            long bytesTotal = 0;
-            for (File file : files) {
-                bytesTotal += file.length();
-            }
-            long bytesProcessed = 0;
-
             // For export: ensure destination folder exists
             if (op == Operation.EXPORT && destFolder != null && !destFolder.exists()) {
                 destFolder.mkdirs();
             }
 
-            for (int i = 0; i < total; i++) {
-                File file = files.get(i);
-                long fileSize = file.length();
-                String fileName = file.getName();
-                // For encrypted files, show the original name
-                if (op == Operation.DECRYPT || op == Operation.EXPORT) {
-                    fileName = HeaderObfuscator.getOriginalName(file);
+            GroupCommit commit = new GroupCommit();
+            MediaDelta.Builder delta = new MediaDelta.Builder();
+            runBatch(op.name().toLowerCase(), files, file -> {
+                switch (op) {
+                    case ENCRYPT:
+                        processEncrypt(file, commit, delta);
+                        break;
+                    case DECRYPT:
+                        processDecrypt(file, commit, delta);
+                        break;
+                    case EXPORT:
+                        processExport(file, destFolder, commit, delta);
+                        break;
                 }
-                callback.onProgress(i + 1, total, fileName, bytesProcessed, bytesTotal);
-                try {
-                    switch (op) {
-                        case ENCRYPT:
-                            processEncrypt(file);
-                            break;
-                        case DECRYPT:
-                            processDecrypt(file);
-                            break;
-                        case EXPORT:
-                            processExport(file, destFolder);
-                            break;
-                    }
-                    succeeded++;
-                    bytesProcessed += fileSize;
-                } catch (Exception e) {
-                    Log.e(TAG, "Failed to " + op.name().toLowerCase() + ": " + file, e);
-                    failed++;
-                    bytesProcessed += fileSize; // Count failed file size too for accurate progress
-                }
-            }
-            callback.onComplete(succeeded, failed);
+            }, op != Operation.ENCRYPT, commit, delta, callback);
+            if (op == Operation.DECRYPT) collectDedupStore();
         });
     }
 
@@ -217,68 +477,103 @@ public class MediaRepository {
      */
     private void processFilesToAlbum(List<File> files, File targetAlbum, OperationCallback callback) {
         cryptoExecutor.execute(() -> {
-            int succeeded = 0;
-            int failed = 0;
-            int total = files.size();
-
-            // Calculate total bytes for progress reporting
-            long bytesTotal = 0;
-            for (File file : files) {
-                bytesTotal += file.length();
-            }
-            long bytesProcessed = 0;
-
             // Ensure target album folder exists
             if (!targetAlbum.exists()) {
                 targetAlbum.mkdirs();
             }
 
-            for (int i = 0; i < total; i++) {
-                File file = files.get(i);
-                long fileSize = file.length();
-                String fileName = file.getName();
-                callback.onProgress(i + 1, total, fileName, bytesProcessed, bytesTotal);
-                try {
-                    processEncryptToAlbum(file, targetAlbum);
-                    succeeded++;
-                    bytesProcessed += fileSize;
-                } catch (Exception e) {
-                    Log.e(TAG, "Failed to encrypt to album: " + file, e);
-                    failed++;
-                    bytesProcessed += fileSize;
+            GroupCommit commit = new GroupCommit();
+            MediaDelta.Builder delta = new MediaDelta.Builder();
+            runBatch("encrypt to album", files,
+                    file -> processEncryptToAlbum(file, targetAlbum, commit, delta), false, commit,
+                    delta, callback);
+        });
+    }
+
+    /**
+     * Runs {@code task} over {@code files} with {@link #cryptoBatch}, commits whatever the
+     * tasks staged in {@code commit}, and forwards progress and the final counts to
+     * {@code callback}. Must be called on {@code cryptoExecutor}.
+     *
+     * @param showOriginalName report encrypted files by their original name
+     * @param delta            what the tasks changed; checked against the disk once committed
+     *                         and passed to the {@link MediaChangeListener}
+     */
+    private void runBatch(String opName, List<File> files, CryptoBatch.FileTask task,
+                          boolean showOriginalName, GroupCommit commit, MediaDelta.Builder delta,
+                          OperationCallback callback) {
+        CryptoBatch.Result result = null;
+        try {
+            result = cryptoBatch.run(files, task, batchExecutor, new CryptoBatch.Listener() {
+                @Override
+                public void onProgress(int started, int total, File file,
+                                       long bytesDone, long bytesTotal) {
+                    String fileName = showOriginalName
+                            ? HeaderObfuscator.getOriginalName(file)
+                            : file.getName();
+                    callback.onProgress(started, total, fileName, bytesDone, bytesTotal);
+                }
+
+                @Override
+                public void onFailure(File file, Exception e) {
+                    Log.e(TAG, "Failed to " + opName + ": " + file, e);
                 }
+            });
+        } catch (InterruptedException e) {
+            // Repository destroyed mid-batch; nobody is listening any more
+            Thread.currentThread().interrupt();
+        } finally {
+            // Publish the last group, even if the batch was cut short
+            try {
+                commit.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to commit " + opName + " batch", e);
             }
-            callback.onComplete(succeeded, failed);
-        });
+            synchronized (reservedFiles) {
+                reservedFiles.clear();
+            }
+            publish(delta);
+        }
+        if (result != null) {
+            callback.onComplete(result.succeeded, result.failed);
+        }
     }
 
-    private void processEncryptToAlbum(File file, File targetAlbum) throws Exception {
+    private void processEncryptToAlbum(File file, File targetAlbum, GroupCommit commit,
+                                       MediaDelta.Builder delta) throws Exception {
         // Create encrypted file in target album instead of default location
         String encryptedName = file.getName() + FileConfig.ENCRYPTED_EXTENSION;
-        File outFile = getUniqueFile(new File(targetAlbum, encryptedName));
+        File outFile = reserveUniqueFile(new File(targetAlbum, encryptedName));
 
         // Store original path before encrypting
         OriginalPathStore.storePath(context, outFile.getName(), file.getAbsolutePath());
+        delta.removed(file);
+        delta.added(outFile);
 
-        obfuscator.encrypt(file, outFile);
-        if (!file.delete()) {
-            Log.w(TAG, "Could not delete original after encrypt: " + file);
+        if (SecurityHelper.isDedupEnabled(context)) {
+            // outFile becomes a reference; a duplicate's original goes right away
+            dedupStore.protect(file, outFile, newEncryptor(), commit);
+            return;
         }
+        // Staged under a temporary name; outFile appears and the original goes once durable
+        newEncryptor().encryptInPlace(file, outFile, commit, null);
     }
 
-    private void processEncrypt(File file) throws Exception {
+    private void processEncrypt(File file, GroupCommit commit, MediaDelta.Builder delta)
+            throws Exception {
         File outFile = HeaderObfuscator.getObfuscatedFile(file);
 
         // Store original path before encrypting (for potential restore later)
         OriginalPathStore.storePath(context, outFile.getName(), file.getAbsolutePath());
+        delta.removed(file);
+        delta.added(outFile);
 
-        obfuscator.encrypt(file, outFile);
-        if (!file.delete()) {
-            Log.w(TAG, "Could not delete original after encrypt: " + file);
-        }
+        // Staged under a temporary name; outFile appears and the original goes once durable
+        newEncryptor().encryptInPlace(file, outFile, commit, null);
     }
 
-    private void processDecrypt(File file) throws Exception {
+    private void processDecrypt(File file, GroupCommit commit, MediaDelta.Builder delta)
+            throws Exception {
         String originalName = HeaderObfuscator.getOriginalName(file);
         File outFile;
 
@@ -301,21 +596,109 @@ public class MediaRepository {
             outFile = new File(file.getParent(), originalName);
         }
 
-        obfuscator.decrypt(file, outFile);
+        // A reference's payload may be shared; let the next collection decide about it
+        DedupStore.release(file);
+        delta.removed(file);
+        delta.added(outFile);
+
+        // Remove stored path once the decrypted file is durable and the .mprot is gone
+        String encryptedName = file.getName();
+        obfuscator.decryptInPlace(file, outFile, commit,
+                () -> OriginalPathStore.removePath(context, encryptedName));
+    }
+
+    private void processExport(File file, File destFolder, GroupCommit commit,
+                               MediaDelta.Builder delta) throws Exception {
+        String originalName = HeaderObfuscator.getOriginalName(file);
+        File outFile = reserveUniqueFile(new File(destFolder, originalName));
+        delta.added(outFile);
+        obfuscator.decrypt(file, outFile, commit);
+    }
 
-        // Remove stored path after successful decrypt
-        OriginalPathStore.removePath(context, file.getName());
+    /**
+     * Finishes the crash-safe operations interrupted in the protected folder and its albums,
+     * e.g. an encrypt to album, whose staged files sit next to their targets. Scans never
+     * list that tree, since it is hidden, so nothing else would recover them. Runs once per
+     * repository, on {@code cryptoExecutor}, and reports what it recovered as added files.
+     */
+    public void recoverVault() {
+        if (!vaultRecovered.compareAndSet(false, true)) return;
+        cryptoExecutor.execute(() -> {
+            MediaDelta.Builder delta = new MediaDelta.Builder();
+            walker.collect(FileConfig.getProtectedFolder(), entry -> {
+                if (HeaderObfuscator.isStaged(entry.getFile())) {
+                    File recovered = recoverStaged(entry.getFile());
+                    if (recovered != null) delta.added(recovered);
+                }
+                return null;
+            });
+            publish(delta);
+        });
+    }
 
-        if (!file.delete()) {
-            Log.w(TAG, "Could not delete encrypted file after decrypt: " + file);
+    /**
+     * The walk's view of {@code entry}: itself, or for a staged file, what recovering it
+     * left behind, or {@code null} if nothing.
+     */
+    private MediaEntry settle(MediaEntry entry) {
+        if (!HeaderObfuscator.isStaged(entry.getFile())) return entry;
+        File recovered = recoverStaged(entry.getFile());
+        return recovered == null ? null : MediaEntry.of(recovered);
+    }
+
+    /**
+     * Finishes a crash-safe operation that the process did not live to commit.
+     *
+     * @return the recovered file, or {@code null} if nothing is left to list
+     */
+    private File recoverStaged(File file) {
+        try {
+            File recovered = obfuscator.recover(file);
+            if (recovered != null) Log.i(TAG, "Recovered interrupted file: " + recovered);
+            return recovered;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not recover " + file, e);
+            return null;
         }
     }
 
-    private void processExport(File file, File destFolder) throws Exception {
-        String originalName = HeaderObfuscator.getOriginalName(file);
-        File outFile = new File(destFolder, originalName);
-        outFile = getUniqueFile(outFile);
-        obfuscator.decrypt(file, outFile);
+    /**
+     * Deletes deduplicated payloads that lost their last reference, and logs those whose
+     * references vanished without a release. Must be called on {@code cryptoExecutor}, after
+     * the batch that released them has committed.
+     */
+    private void collectDedupStore() {
+        try {
+            DedupStore.Collected collected = dedupStore.collect(obfuscator);
+            if (collected.deleted > 0) {
+                Log.i(TAG, "Deleted " + collected.deleted + " unreferenced payloads");
+            }
+            for (File payload : collected.unaccounted) {
+                Log.w(TAG, "Leaving unreferenced payload nobody released: " + payload);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not collect dedup store", e);
+        }
+    }
+
+    /** Returns an obfuscator for newly protected files, honouring the full-encryption setting. */
+    private HeaderObfuscator newEncryptor() {
+        return new HeaderObfuscator(SecurityHelper.isFullEncryptionEnabled(context)
+                ? HeaderObfuscator.Mode.FULL_CONTENT
+                : HeaderObfuscator.Mode.HEADER_ONLY);
+    }
+
+    /**
+     * Like {@link #getUniqueFile} but also avoids names already handed out to the running
+     * batch, whose files only appear once their group is committed. Files processed
+     * concurrently therefore never pick the same name.
+     */
+    private File reserveUniqueFile(File file) {
+        synchronized (reservedFiles) {
+            File candidate = getUniqueFile(file);
+            reservedFiles.add(candidate);
+            return candidate;
+        }
     }
 
     /**
@@ -324,7 +707,7 @@ public class MediaRepository {
      * photo.jpg.mprot → photo(1).jpg.mprot (not photo.jpg(1).mprot)
      */
     private File getUniqueFile(File file) {
-        if (!file.exists()) return file;
+        if (!isTaken(file)) return file;
 
         String name = file.getName();
         String baseName;
@@ -356,13 +739,19 @@ public class MediaRepository {
 
         int counter = 1;
         File parent = file.getParentFile();
-        while (file.exists()) {
+        while (isTaken(file)) {
             file = new File(parent, baseName + "(" + counter + ")" + originalExt + mprotExt);
             counter++;
         }
         return file;
     }
 
+    private boolean isTaken(File file) {
+        synchronized (reservedFiles) {
+            return file.exists() || reservedFiles.contains(file);
+        }
+    }
+
     // -------------------------------------------------------------------------
     // Folder filter (used by FolderBrowserActivity)
     // -------------------------------------------------------------------------
@@ -371,22 +760,94 @@ public class MediaRepository {
      * Returns {@code true} if {@code dir} contains media files matching the given mode
      * within 3 levels of depth. Runs synchronously — must be called from a background thread.
      *
+     * <p>Answered from the folder's {@link FolderSummary} when a scan left one that settles
+     * it: any file counted lies within 3 levels, and a count of zero settles it if the scan
+     * listed all 3 levels below {@code dir}. Otherwise the folder is walked.
+     *
      * @param encrypted {@code true} to look for encrypted (.mprot) files,
      *                  {@code false} to look for regular unencrypted media files.
      */
     public boolean hasMediaFiles(File dir, boolean encrypted) {
-        boolean[] found = {false};
-        traverse(dir, file -> {
-            boolean match = encrypted
-                    ? FileConfig.isEncryptedFile(file.getName())
-                    : FileConfig.isRegularMediaFile(file.getName());
-            if (match) {
-                found[0] = true;
-                return false; // stop early
+        FolderSummary summary = mediaIndex.summary(dir);
+        if (summary != null) {
+            int count = encrypted ? summary.encryptedCount() : summary.plainCount();
+            if (count > 0) return true;
+            if (summary.levels >= MAX_DEPTH) return false;
+        }
+        return walker.anyMatch(dir, file -> encrypted
+                ? FileConfig.isEncryptedFile(file.getName())
+                : FileConfig.isRegularMediaFile(file.getName()));
+    }
+
+    /**
+     * Returns the media counts of {@code dir} and its subfolders from the last scan that
+     * listed it, e.g. for a folder subtitle, or {@code null} if none did or the folder
+     * changed since. Cheap enough for the main thread: one {@code stat}.
+     */
+    public FolderSummary getFolderSummary(File dir) {
+        return mediaIndex.summary(dir);
+    }
+
+    // -------------------------------------------------------------------------
+    // Crypto providers
+    // -------------------------------------------------------------------------
+
+    /**
+     * Pins the fastest crypto provider before the first batch (see
+     * {@link SecurityHelper#selectCryptoProviders}). Runs on {@code cryptoExecutor}, so a
+     * first-run measurement neither blocks the UI nor competes with a batch for the CPU.
+     */
+    public void selectCryptoProviders() {
+        cryptoExecutor.execute(() -> SecurityHelper.selectCryptoProviders(context));
+    }
+
+    // -------------------------------------------------------------------------
+    // Re-key
+    // -------------------------------------------------------------------------
+
+    /**
+     * Moves every protected file under {@code rootDir} and in the protected folder to the
+     * current master key, if a PIN change left a re-key pass pending. Each file costs a
+     * trailer read and, unless it was moved already, a 20-byte write; no content is
+     * re-encrypted.
+     *
+     * <p>The pass is resumable: files record which master key wraps them, so a pass cut short
+     * by the process dying is simply run again and skips the files already moved. The
+     * pending flag is cleared only once a pass got through without errors. Runs on
+     * {@code cryptoExecutor}, so it never overlaps an encrypt or decrypt batch.
+     */
+    public void rekeyVault(File rootDir) {
+        if (!SecurityHelper.isRekeyPending(context)) return;
+        cryptoExecutor.execute(() -> {
+            SecretKey master = VaultKeys.sessionKey();
+            DirectoryWalker.FileMapper encryptedOnly =
+                    entry -> entry.isEncrypted() ? entry : null;
+            // The protected folder is hidden, so the storage walk does not descend into it
+            List<File> files = MediaEntry.files(
+                    walker.collect(FileConfig.getProtectedFolder(), encryptedOnly));
+            files.addAll(MediaEntry.files(walker.collect(rootDir, encryptedOnly)));
+
+            int rewrapped = 0;
+            boolean complete = true;
+            for (File file : files) {
+                if (Thread.currentThread().isInterrupted()) {
+                    complete = false;
+                    break;
+                }
+                try {
+                    if (obfuscator.rewrap(file)) rewrapped++;
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not re-key " + file, e);
+                    complete = false;
+                }
             }
-            return true;
-        }, 0);
-        return found[0];
+
+            Log.i(TAG, "Re-keyed " + rewrapped + " files" + (complete ? "" : ", incomplete"));
+            // A PIN change during the pass left the files done so far behind; go again later
+            if (complete && VaultKeys.sessionKey() == master) {
+                SecurityHelper.setRekeyPending(context, false);
+            }
+        });
     }
 
     // -------------------------------------------------------------------------
@@ -394,8 +855,13 @@ public class MediaRepository {
     // -------------------------------------------------------------------------
 
     public void destroy() {
+        stopWatching();
         scanExecutor.shutdownNow();
+        walkPool.shutdownNow();
         cryptoExecutor.shutdownNow();
+        batchExecutor.shutdownNow();
+        // Off the main thread: it waits for a running slice to end
+        new Thread(deepScanner::flush, "DeepScanFlush").start();
     }
 
     /**
@@ -404,11 +870,14 @@ public class MediaRepository {
     public void moveFiles(List<File> files, File targetDir, OperationCallback callback) {
         cryptoExecutor.execute(() -> {
             int succeeded = 0, failed = 0;
+            MediaDelta.Builder delta = new MediaDelta.Builder();
             targetDir.mkdirs();
             for (File file : files) {
                 try {
                     File dest = getUniqueFile(new File(targetDir, file.getName()));
                     if (file.renameTo(dest)) {
+                        delta.removed(file);
+                        delta.added(dest);
                         succeeded++;
                     } else {
                         Log.w(TAG, "Failed to move: " + file);
@@ -419,55 +888,17 @@ public class MediaRepository {
                     failed++;
                 }
             }
+            publish(delta);
             final int s = succeeded, f = failed;
             callback.onComplete(s, f);
         });
     }
 
     // -------------------------------------------------------------------------
-    // Unified recursive traversal (replaces scanRecursiveInternal + hasMediaFilesInternal)
+    // Traversal rules (see DirectoryWalker)
     // -------------------------------------------------------------------------
 
-    /**
-     * Traverses {@code dir} recursively up to {@link #MAX_DEPTH} levels deep.
-     *
-     * <p>Uses {@link File#listFiles()} for directory enumeration. Calls
-     * {@code visitor.visit(file)} for every regular file found. If the visitor
-     * returns {@code false}, traversal stops immediately (early exit).</p>
-     *
-     * <p><b>Depth limit rationale:</b> See class-level Javadoc for details on why
-     * recursion is limited to 3 levels.</p>
-     *
-     * @param dir     the directory to traverse
-     * @param visitor callback invoked for each file; return false to stop
-     * @param depth   current recursion depth (0 = root)
-     */
-    private void traverse(File dir, FileVisitor visitor, int depth) {
-        if (depth > MAX_DEPTH) return;
-        if (dir == null || !dir.isDirectory() || !dir.canRead()) return;
-        if (isSystemFolder(dir)) return;
-
-        File[] children = dir.listFiles();
-        if (children == null) return;
-
-        for (File child : children) {
-            if (child.isDirectory()) {
-                if (!child.isHidden()) {
-                    traverse(child, visitor, depth + 1);
-                }
-            } else {
-                boolean continueTraversal = visitor.visit(child);
-                if (!continueTraversal) return;
-            }
-        }
-    }
-
-    private interface FileVisitor {
-        /** @return {@code true} to continue traversal, {@code false} to stop. */
-        boolean visit(File file);
-    }
-
-    private static boolean isSystemFolder(File dir) {
+    static boolean isSystemFolder(File dir) {
         String path = dir.getAbsolutePath().toLowerCase();
         for (String sysFolder : SYSTEM_FOLDERS) {
             if (path.contains("/" + sysFolder + "/") || path.endsWith("/" + sysFolder)) {
@@ -0,0 +1,188 @@
+package com.rulerhao.media_protector.core;
+
+import android.Manifest;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Environment;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists regular media from {@link MediaStore} instead of walking the storage.
+ *
+ * <p>The media provider has already indexed the images and videos on shared storage, so
+ * one cursor pass returns what a cold walk finds with a listing per directory and a stat
+ * per child. The query asks only for the columns a listing needs. It is read in pages,
+ * keyed on {@code _id}, so the first page reaches the grid while the rest is still being
+ * read, and no page costs more than {@link #PAGE_SIZE} rows of memory.
+ * That the query reaches the first grid sooner than the walk is not yet measured on a
+ * device; {@code ScanPathBenchmark} in the instrumented tests compares the two.
+ *
+ * <p>MediaStore does not see everything the walk does: directories with a
+ * {@code .nomedia} file, files copied in since its last scan, and, below API 30 without
+ * legacy storage, paths at all. Its results are therefore a fast first answer that a walk
+ * then completes. Rows are held to the walk's rules with
+ * {@link MediaRepository#isInScanScope}, so the first answer never lists a file the walk
+ * would not.
+ */
+final class MediaStoreScanner {
+
+    private static final String TAG = "MediaStoreScanner";
+
+    /** Rows per query. */
+    static final int PAGE_SIZE = 500;
+
+    // The Files table carries both images and videos; "datetaken" is there on every level
+    private static final String[] PROJECTION = {
+            MediaStore.Files.FileColumns._ID,
+            MediaStore.Files.FileColumns.DATA,
+            MediaStore.Files.FileColumns.SIZE,
+            MediaStore.Files.FileColumns.DATE_MODIFIED,
+            MediaStore.Images.ImageColumns.DATE_TAKEN,
+            MediaStore.Files.FileColumns.MIME_TYPE,
+    };
+    private static final String SELECTION = MediaStore.Files.FileColumns._ID + " > ? AND "
+            + MediaStore.Files.FileColumns.MEDIA_TYPE + " IN ("
+            + MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE + ","
+            + MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO + ") AND "
+            + MediaStore.Files.FileColumns.DATA + " LIKE ?";
+    private static final String ORDER = MediaStore.Files.FileColumns._ID + " ASC";
+
+    /** One media file as MediaStore describes it. */
+    static final class Entry {
+        final File file;
+        final long size;
+        /** Milliseconds since the epoch, as recorded at MediaStore's last scan of the file. */
+        final long modified;
+        /** Milliseconds since the epoch; 0 if MediaStore does not know. */
+        final long dateTaken;
+        final String mimeType;
+
+        Entry(File file, long size, long modified, long dateTaken, String mimeType) {
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+            this.dateTaken = dateTaken;
+            this.mimeType = mimeType;
+        }
+
+        /** The entry a walk would produce, from the row alone. */
+        MediaEntry toMediaEntry() {
+            return mimeType != null
+                    ? new MediaEntry(file, size, modified, mimeType.startsWith("video/"))
+                    : new MediaEntry(file, size, modified);
+        }
+    }
+
+    /** Receives each page's entries as soon as it is read. */
+    interface PageListener {
+        void onPage(List<Entry> page);
+    }
+
+    /** Decides whether a row is one the walk would list. */
+    interface ScopeFilter {
+        boolean inScope(File file);
+    }
+
+    private final Context context;
+
+    MediaStoreScanner(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Returns {@code true} if MediaStore can hand this app file paths: with all-files
+     * access from API 30, or with the storage permission before API 29. On API 29 scoped
+     * storage hides them.
+     */
+    boolean isAvailable() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            return Environment.isExternalStorageManager();
+        }
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.Q
+                && context.checkSelfPermission(Manifest.permission.READ_EXTERNAL_STORAGE)
+                        == PackageManager.PERMISSION_GRANTED;
+    }
+
+    /**
+     * Lists the images and videos under {@code rootDir} that {@code scope} accepts, page by
+     * page. Stops early once {@code token} is cancelled.
+     *
+     * @return every entry read, or {@code null} if MediaStore could not be queried, in
+     *         which case the caller walks instead
+     */
+    List<Entry> scan(File rootDir, ScopeFilter scope, ScanToken token, PageListener listener) {
+        ContentResolver resolver = context.getContentResolver();
+        Uri uri = MediaStore.Files.getContentUri("external");
+        String pathPattern = rootDir.getAbsolutePath() + "/%";
+        List<Entry> all = new ArrayList<>();
+        long lastId = -1;
+        try {
+            while (!token.isCancelled()) {
+                int rows = 0;
+                List<Entry> page = new ArrayList<>();
+                try (Cursor cursor = resolver.query(uri, PROJECTION,
+                        pageArgs(lastId, pathPattern), null)) {
+                    if (cursor == null) return null;
+                    int idCol = cursor.getColumnIndexOrThrow(PROJECTION[0]);
+                    int dataCol = cursor.getColumnIndexOrThrow(PROJECTION[1]);
+                    int sizeCol = cursor.getColumnIndexOrThrow(PROJECTION[2]);
+                    int modifiedCol = cursor.getColumnIndexOrThrow(PROJECTION[3]);
+                    int dateCol = cursor.getColumnIndexOrThrow(PROJECTION[4]);
+                    int mimeCol = cursor.getColumnIndexOrThrow(PROJECTION[5]);
+                    while (cursor.moveToNext()) {
+                        rows++;
+                        lastId = cursor.getLong(idCol);
+                        String path = cursor.getString(dataCol);
+                        if (path == null) continue; // withheld; the walk will find it
+                        File file = new File(path);
+                        if (!scope.inScope(file)) continue;
+                        page.add(new Entry(file, cursor.getLong(sizeCol),
+                                cursor.getLong(modifiedCol) * 1000, // stored in seconds
+                                cursor.isNull(dateCol) ? 0 : cursor.getLong(dateCol),
+                                cursor.getString(mimeCol)));
+                    }
+                }
+                if (!page.isEmpty()) {
+                    all.addAll(page);
+                    listener.onPage(page);
+                }
+                if (rows < PAGE_SIZE) break;
+            }
+        } catch (RuntimeException e) {
+            // SecurityException, or a provider that rejects the arguments
+            Log.w(TAG, "MediaStore query failed", e);
+            return null;
+        }
+        return all;
+    }
+
+    /**
+     * The query arguments for the page after {@code lastId}. The provider honours
+     * {@link ContentResolver#QUERY_ARG_LIMIT} from API 30; before that, and only before,
+     * it accepts a limit appended to the sort order.
+     */
+    private static Bundle pageArgs(long lastId, String pathPattern) {
+        Bundle args = new Bundle();
+        args.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, SELECTION);
+        args.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS,
+                new String[] { Long.toString(lastId), pathPattern });
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            args.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, ORDER);
+            args.putInt(ContentResolver.QUERY_ARG_LIMIT, PAGE_SIZE);
+        } else {
+            args.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER,
+                    ORDER + " LIMIT " + PAGE_SIZE);
+        }
+        return args;
+    }
+}
@@ -0,0 +1,19 @@
+package com.rulerhao.media_protector.core;
+
+/**
+ * Cancels a scan started by {@link MediaRepository}. The walk checks it between
+ * directories and stops within one listing; after {@link #cancel()} the scan delivers
+ * nothing more to its callback.
+ */
+public final class ScanToken {
+
+    private volatile boolean cancelled;
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,156 @@
+package com.rulerhao.media_protector.core;
+
+import android.os.Build;
+import android.os.FileObserver;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the protected folder and its album directories for changes made by anything other
+ * than this repository's own batches: the viewer, the share target, a file manager. It
+ * reports them as {@link MediaDelta}s.
+ *
+ * <p>Events are debounced. The first event of a burst schedules a delivery
+ * {@link #DEBOUNCE_MILLIS} later, and everything that happens until then coalesces into that
+ * one delta. Copying a hundred files in therefore costs one list update, not a hundred. A
+ * new album directory is watched from then on, and its files are reported. An album that
+ * disappears, or an event queue that overflowed, asks for a rescan, because the files that
+ * went with it are not known here.
+ */
+final class VaultWatcher {
+
+    /** Quiet time after the first event of a burst before its delta is delivered. */
+    static final long DEBOUNCE_MILLIS = 300;
+
+    private static final int FILE_EVENTS = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE;
+    private static final int SELF_EVENTS = FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+    /** inotify's IN_Q_OVERFLOW: events were dropped. */
+    private static final int Q_OVERFLOW = 0x00004000;
+
+    /** Receives debounced changes on the watcher's own thread. */
+    interface Listener {
+        void onVaultChanged(MediaDelta delta);
+    }
+
+    private final File root;
+    private final Listener listener;
+    private final Map<File, FileObserver> observers = new HashMap<>();
+    private final MediaDelta.Builder pending = new MediaDelta.Builder();
+    private final ScheduledExecutorService debouncer = Executors.newSingleThreadScheduledExecutor();
+    private boolean deliveryScheduled;
+    private boolean started;
+
+    VaultWatcher(File root, Listener listener) {
+        this.root = root;
+        this.listener = listener;
+    }
+
+    /** Starts watching the protected folder and every album in it. */
+    synchronized void start() {
+        if (started) return;
+        started = true;
+        watch(root);
+        File[] children = root.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            if (isAlbum(child)) watch(child);
+        }
+    }
+
+    /** Stops watching; pending changes are dropped. */
+    synchronized void stop() {
+        started = false;
+        for (FileObserver observer : observers.values()) observer.stopWatching();
+        observers.clear();
+        debouncer.shutdownNow();
+    }
+
+    private void watch(File dir) {
+        if (observers.containsKey(dir)) return;
+        FileObserver observer = newObserver(dir);
+        observer.startWatching();
+        observers.put(dir, observer);
+    }
+
+    @SuppressWarnings("deprecation") // the File constructor needs API 29
+    private FileObserver newObserver(File dir) {
+        int mask = FILE_EVENTS | SELF_EVENTS;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return new FileObserver(dir, mask) {
+                @Override
+                public void onEvent(int event, String path) {
+                    onDirEvent(dir, event, path);
+                }
+            };
+        }
+        return new FileObserver(dir.getPath(), mask) {
+            @Override
+            public void onEvent(int event, String path) {
+                onDirEvent(dir, event, path);
+            }
+        };
+    }
+
+    /** Called on FileObserver's thread. */
+    private synchronized void onDirEvent(File dir, int event, String path) {
+        if (!started) return;
+        if ((event & Q_OVERFLOW) != 0) {
+            pending.rescanNeeded();
+        } else if ((event & SELF_EVENTS) != 0) {
+            // The album itself was deleted or moved away, with whatever it held
+            FileObserver observer = observers.remove(dir);
+            if (observer != null) observer.stopWatching();
+            if (!dir.equals(root)) pending.rescanNeeded();
+        } else if (path != null) {
+            onChildEvent(dir, new File(dir, path), event);
+        }
+        if (!deliveryScheduled) {
+            deliveryScheduled = true;
+            debouncer.schedule(this::deliver, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void onChildEvent(File dir, File child, int event) {
+        if (dir.equals(root) && (event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0
+                && isAlbum(child)) {
+            // A new album: watch it, and report what it already holds (moved in whole)
+            watch(child);
+            File[] files = child.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (FileConfig.isEncryptedFile(file.getName())) pending.added(file);
+                }
+            }
+            return;
+        }
+        if (!FileConfig.isEncryptedFile(child.getName())) return; // staged, temp, other
+        if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+            pending.removed(child);
+        } else if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0) {
+            pending.added(child);
+        } else if ((event & FileObserver.CLOSE_WRITE) != 0) {
+            pending.updated(child);
+        }
+    }
+
+    private void deliver() {
+        MediaDelta delta;
+        synchronized (this) {
+            deliveryScheduled = false;
+            if (!started) return;
+            delta = pending.drain();
+        }
+        if (!delta.isEmpty()) listener.onVaultChanged(delta);
+    }
+
+    private static boolean isAlbum(File file) {
+        // The same rule AlbumManager lists albums by
+        return file.isDirectory() && !file.isHidden();
+    }
+}
@@ -12,6 +12,9 @@ import com.rulerhao.media_protector.R;
 import com.rulerhao.media_protector.security.SecurityHelper;
 import com.rulerhao.media_protector.shared.ThemeHelper;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 /**
  * A functional calculator that serves as a decoy/disguise for the app.
  * Entering the secret code (default: pressing "=" after typing the code)
@@ -26,6 +29,8 @@ public class DecoyCalculatorActivity extends Activity {
     private String pendingOperator = null;
     private boolean newInput = true;
 
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -102,16 +107,16 @@ public class DecoyCalculatorActivity extends Activity {
     }
 
     private void onEqualsPress() {
-        // Check if the input ends with the PIN code
+        // Check if the input ends with the PIN code, in the background since that derives
+        // the vault key; the calculator answers meanwhile
         if (SecurityHelper.isPinEnabled(this)) {
             String buffer = secretBuffer.toString();
-            for (int len = 1; len <= buffer.length(); len++) {
-                String suffix = buffer.substring(buffer.length() - len);
-                if (SecurityHelper.verifyPin(this, suffix)) {
-                    launchRealApp();
-                    return;
-                }
-            }
+            executor.execute(() -> {
+                if (!SecurityHelper.verifyPinSuffix(this, buffer)) return;
+                runOnUiThread(() -> {
+                    if (!isDestroyed()) launchRealApp();
+                });
+            });
         }
 
         if (pendingOperator != null) {
@@ -246,6 +251,12 @@ public class DecoyCalculatorActivity extends Activity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        executor.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     public void onBackPressed() {
         // Normal back behavior - minimize the app
@@ -15,6 +15,9 @@ import com.rulerhao.media_protector.R;
 import com.rulerhao.media_protector.security.SecurityHelper;
 import com.rulerhao.media_protector.shared.ThemeHelper;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 public class DecoyNotesActivity extends Activity {
 
     private static final String PREFS_NAME = "decoy_notes";
@@ -24,6 +27,8 @@ public class DecoyNotesActivity extends Activity {
     private EditText etTitle;
     private EditText etContent;
 
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -64,22 +69,32 @@ public class DecoyNotesActivity extends Activity {
                 .setTitle("Search")
                 .setView(input)
                 .setPositiveButton("Search", (d, which) -> {
-                    String query = input.getText().toString();
-                    if (checkPin(query)) {
-                        launchRealApp();
-                    }
+                    checkPin(input.getText().toString(), null);
                 })
                 .setNegativeButton("Cancel", null)
                 .show();
     }
 
-    private boolean checkPin(String input) {
-        if (!SecurityHelper.isPinEnabled(this)) return true;
-        for (int len = 1; len <= input.length(); len++) {
-            String suffix = input.substring(input.length() - len);
-            if (SecurityHelper.verifyPin(this, suffix)) return true;
+    /**
+     * Launches the real app if {@code input} ends with the PIN, or runs {@code otherwise}.
+     * Checked in the background, as verifying the PIN derives the vault key.
+     */
+    private void checkPin(String input, Runnable otherwise) {
+        if (!SecurityHelper.isPinEnabled(this)) {
+            launchRealApp();
+            return;
         }
-        return false;
+        executor.execute(() -> {
+            boolean match = SecurityHelper.verifyPinSuffix(this, input);
+            runOnUiThread(() -> {
+                if (isDestroyed()) return;
+                if (match) {
+                    launchRealApp();
+                } else if (otherwise != null) {
+                    otherwise.run();
+                }
+            });
+        });
     }
 
     private void launchRealApp() {
@@ -90,6 +105,12 @@ public class DecoyNotesActivity extends Activity {
         finish();
     }
 
+    @Override
+    protected void onDestroy() {
+        executor.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     public void onBackPressed() {
         moveTaskToBack(true);
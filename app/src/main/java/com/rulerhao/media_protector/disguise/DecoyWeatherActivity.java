@@ -16,6 +16,8 @@ import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DecoyWeatherActivity extends Activity {
 
@@ -26,6 +28,8 @@ public class DecoyWeatherActivity extends Activity {
 
     private TextView tvCity;
 
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -87,23 +91,32 @@ public class DecoyWeatherActivity extends Activity {
                 .setPositiveButton("Set", (d, which) -> {
                     String query = input.getText().toString().trim();
                     if (query.isEmpty()) return;
-                    if (checkPin(query)) {
-                        launchRealApp();
-                    } else {
-                        tvCity.setText(query);
-                    }
+                    checkPin(query, () -> tvCity.setText(query));
                 })
                 .setNegativeButton("Cancel", null)
                 .show();
     }
 
-    private boolean checkPin(String input) {
-        if (!SecurityHelper.isPinEnabled(this)) return true;
-        for (int len = 1; len <= input.length(); len++) {
-            String suffix = input.substring(input.length() - len);
-            if (SecurityHelper.verifyPin(this, suffix)) return true;
+    /**
+     * Launches the real app if {@code input} ends with the PIN, or runs {@code otherwise}.
+     * Checked in the background, as verifying the PIN derives the vault key.
+     */
+    private void checkPin(String input, Runnable otherwise) {
+        if (!SecurityHelper.isPinEnabled(this)) {
+            launchRealApp();
+            return;
         }
-        return false;
+        executor.execute(() -> {
+            boolean match = SecurityHelper.verifyPinSuffix(this, input);
+            runOnUiThread(() -> {
+                if (isDestroyed()) return;
+                if (match) {
+                    launchRealApp();
+                } else if (otherwise != null) {
+                    otherwise.run();
+                }
+            });
+        });
     }
 
     private void launchRealApp() {
@@ -114,6 +127,12 @@ public class DecoyWeatherActivity extends Activity {
         finish();
     }
 
+    @Override
+    protected void onDestroy() {
+        executor.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     public void onBackPressed() {
         moveTaskToBack(true);
@@ -37,22 +37,23 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.rulerhao.media_protector.R;
+import com.rulerhao.media_protector.crypto.DedupStore;
 import com.rulerhao.media_protector.crypto.HeaderObfuscator;
 import com.rulerhao.media_protector.album.AlbumManager;
 import com.rulerhao.media_protector.core.FileConfig;
 import com.rulerhao.media_protector.crypto.android.EncryptedMediaDataSource;
+import com.rulerhao.media_protector.crypto.android.FileStreamFactory;
 import com.rulerhao.media_protector.security.OriginalPathStore;
+import com.rulerhao.media_protector.security.SecurityHelper;
 import com.rulerhao.media_protector.shared.ThemeHelper;
 
 import android.app.AlertDialog;
 import android.widget.EditText;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -467,46 +468,21 @@ public class MediaViewerActivity extends Activity implements TextureView.Surface
         });
     }
 
-    /** Maximum file size (50MB) to load entirely into memory for ImageDecoder. */
-    private static final long MAX_MEMORY_DECODE_SIZE = 50 * 1024 * 1024;
-
     /**
      * Decodes an image using ImageDecoder (API 28+).
      * Supports GIF, HEIC, HEIF, and other formats.
-     * For large files, falls back to sampled bitmap decoding to avoid OOM.
+     * Encrypted files are decoded from a memory-mapped view, so no full copy lands on the heap.
      */
     private Drawable decodeWithImageDecoder(File file) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
             return null;
         }
 
-        // Check file size to avoid OOM on large files
-        if (file.length() > MAX_MEMORY_DECODE_SIZE && encrypted) {
-            // For large encrypted files, fall back to bitmap decode with sampling
-            Bitmap bmp = decodeImage(file);
-            if (bmp != null) {
-                return new android.graphics.drawable.BitmapDrawable(getResources(), bmp);
-            }
-            return null;
-        }
-
         try {
-            ImageDecoder.Source source;
-            if (encrypted) {
-                // For encrypted files, we need to decrypt to a byte array first
-                try (InputStream is = obfuscator.getDecryptedStream(file)) {
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    byte[] buffer = new byte[8192];
-                    int len;
-                    while ((len = is.read(buffer)) != -1) {
-                        baos.write(buffer, 0, len);
-                    }
-                    byte[] data = baos.toByteArray();
-                    source = ImageDecoder.createSource(ByteBuffer.wrap(data));
-                }
-            } else {
-                source = ImageDecoder.createSource(file);
-            }
+            // Encrypted files: mapped view with only the decrypted header patched in
+            ImageDecoder.Source source = encrypted
+                    ? ImageDecoder.createSource(FileStreamFactory.mapContent(file))
+                    : ImageDecoder.createSource(file);
             return ImageDecoder.decodeDrawable(source);
         } catch (IOException | OutOfMemoryError e) {
             // Fall back to sampled bitmap on OOM
@@ -520,35 +496,18 @@ public class MediaViewerActivity extends Activity implements TextureView.Surface
 
     /**
      * Decodes a HEIC/HEIF image to bitmap using ImageDecoder (API 28+).
-     * For large files, uses sampling to avoid OOM.
+     * Falls back to a sampled decode if the full-size bitmap does not fit.
      */
     private Bitmap decodeHeifImage(File file) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
             return null;
         }
 
-        // Check file size to avoid OOM on large files
-        if (file.length() > MAX_MEMORY_DECODE_SIZE && encrypted) {
-            return decodeImage(file);
-        }
-
         try {
-            ImageDecoder.Source source;
-            if (encrypted) {
-                // For encrypted files, decrypt to byte array
-                try (InputStream is = obfuscator.getDecryptedStream(file)) {
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    byte[] buffer = new byte[8192];
-                    int len;
-                    while ((len = is.read(buffer)) != -1) {
-                        baos.write(buffer, 0, len);
-                    }
-                    byte[] data = baos.toByteArray();
-                    source = ImageDecoder.createSource(ByteBuffer.wrap(data));
-                }
-            } else {
-                source = ImageDecoder.createSource(file);
-            }
+            // Encrypted files: mapped view with only the decrypted header patched in
+            ImageDecoder.Source source = encrypted
+                    ? ImageDecoder.createSource(FileStreamFactory.mapContent(file))
+                    : ImageDecoder.createSource(file);
             return ImageDecoder.decodeBitmap(source);
         } catch (IOException | OutOfMemoryError e) {
             // Fall back to regular decode on OOM
@@ -557,33 +516,24 @@ public class MediaViewerActivity extends Activity implements TextureView.Surface
     }
 
     private Bitmap decodeImage(File file) {
-        try {
-            android.util.DisplayMetrics dm = getResources().getDisplayMetrics();
-            int maxW = dm.widthPixels;
-            int maxH = dm.heightPixels;
+        android.util.DisplayMetrics dm = getResources().getDisplayMetrics();
+        int maxW = dm.widthPixels;
+        int maxH = dm.heightPixels;
 
+        // One stream serves both passes; reset() rewinds it without reopening the file.
+        try (InputStream is = FileStreamFactory.createInputStream(file)) {
             // Pass 1: read image dimensions without allocating any pixel memory.
             BitmapFactory.Options opts = new BitmapFactory.Options();
             opts.inJustDecodeBounds = true;
-            if (encrypted) {
-                try (InputStream is = obfuscator.getDecryptedStream(file)) {
-                    BitmapFactory.decodeStream(is, null, opts);
-                }
-            } else {
-                BitmapFactory.decodeFile(file.getAbsolutePath(), opts);
-            }
+            is.mark(Integer.MAX_VALUE);
+            BitmapFactory.decodeStream(is, null, opts);
 
             // Pass 2: decode with an inSampleSize that keeps the bitmap within
             // screen dimensions so it never exceeds the Canvas texture limit.
             opts.inSampleSize = calculateInSampleSize(opts.outWidth, opts.outHeight, maxW, maxH);
             opts.inJustDecodeBounds = false;
-            if (encrypted) {
-                try (InputStream is = obfuscator.getDecryptedStream(file)) {
-                    return BitmapFactory.decodeStream(is, null, opts);
-                }
-            } else {
-                return BitmapFactory.decodeFile(file.getAbsolutePath(), opts);
-            }
+            is.reset();
+            return BitmapFactory.decodeStream(is, null, opts);
         } catch (IOException | OutOfMemoryError e) {
             return null;
         }
@@ -859,8 +809,13 @@ public class MediaViewerActivity extends Activity implements TextureView.Surface
         // File name
         info.append(getString(R.string.info_filename, originalName)).append("\n\n");
 
-        // File size
+        // File size (original content, excluding .mprot nonce/trailer bytes)
         long sizeBytes = mediaFile.length();
+        if (encrypted) {
+            try {
+                sizeBytes = FileStreamFactory.getContentLength(mediaFile);
+            } catch (IOException ignored) {}
+        }
         String sizeStr = formatFileSize(sizeBytes);
         info.append(getString(R.string.info_size, sizeStr)).append("\n\n");
 
@@ -950,13 +905,16 @@ public class MediaViewerActivity extends Activity implements TextureView.Surface
                     // Decrypt: .mprot → original
                     String originalName = HeaderObfuscator.getOriginalName(sourceFile);
                     newFile = new File(sourceFile.getParent(), originalName);
-                    obfuscator.decrypt(sourceFile, newFile);
-                    sourceFile.delete();
+                    DedupStore.release(sourceFile);
+                    if (!obfuscator.decryptInPlace(sourceFile, newFile)) {
+                        sourceFile.delete();
+                    }
                 } else {
                     // Encrypt: original → .mprot
                     newFile = HeaderObfuscator.getObfuscatedFile(sourceFile);
-                    obfuscator.encrypt(sourceFile, newFile);
-                    sourceFile.delete();
+                    if (!newEncryptor().encryptInPlace(sourceFile, newFile)) {
+                        sourceFile.delete();
+                    }
                 }
                 success = true;
             } catch (Exception e) {
@@ -990,6 +948,13 @@ public class MediaViewerActivity extends Activity implements TextureView.Surface
         });
     }
 
+    /** Returns an obfuscator for newly protected files, honouring the full-encryption setting. */
+    private HeaderObfuscator newEncryptor() {
+        return new HeaderObfuscator(SecurityHelper.isFullEncryptionEnabled(this)
+                ? HeaderObfuscator.Mode.FULL_CONTENT
+                : HeaderObfuscator.Mode.HEADER_ONLY);
+    }
+
     private void rebuildThumbnailStrip() {
         thumbnailContainer.removeAllViews();
         buildThumbnailStrip();
@@ -1147,8 +1112,14 @@ public class MediaViewerActivity extends Activity implements TextureView.Surface
                 // Store original path
                 OriginalPathStore.storePath(this, newFile.getName(), sourceFile.getAbsolutePath());
 
-                obfuscator.encrypt(sourceFile, newFile);
-                sourceFile.delete();
+                HeaderObfuscator encryptor = newEncryptor();
+                if (SecurityHelper.isDedupEnabled(this)) {
+                    DedupStore.forVault(FileConfig.getProtectedFolder())
+                            .protect(sourceFile, newFile, encryptor);
+                } else {
+                    encryptor.encrypt(sourceFile, newFile);
+                    sourceFile.delete();
+                }
                 success = true;
             } catch (Exception e) {
                 // Crypto failed
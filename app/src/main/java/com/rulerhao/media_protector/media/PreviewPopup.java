@@ -20,6 +20,7 @@ import android.widget.TextView;
 import com.rulerhao.media_protector.crypto.HeaderObfuscator;
 import com.rulerhao.media_protector.core.FileConfig;
 import com.rulerhao.media_protector.crypto.android.EncryptedMediaDataSource;
+import com.rulerhao.media_protector.crypto.android.FileStreamFactory;
 
 import java.io.File;
 import java.io.IOException;
@@ -39,7 +40,6 @@ public class PreviewPopup {
     private final Context context;
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
-    private final HeaderObfuscator obfuscator = new HeaderObfuscator();
 
     private PopupWindow popupWindow;
     private ImageView previewImage;
@@ -134,7 +134,7 @@ public class PreviewPopup {
                 bitmap = decodeVideoFrame(file, encrypted);
             } else {
                 // For images, decode at a larger size
-                bitmap = decodeImage(file, encrypted);
+                bitmap = decodeImage(file);
             }
 
             final Bitmap result = bitmap;
@@ -147,22 +147,17 @@ public class PreviewPopup {
         });
     }
 
-    private Bitmap decodeImage(File file, boolean encrypted) {
-        try {
-            float density = context.getResources().getDisplayMetrics().density;
-            int targetSize = (int) (PREVIEW_SIZE_DP * density);
+    private Bitmap decodeImage(File file) {
+        float density = context.getResources().getDisplayMetrics().density;
+        int targetSize = (int) (PREVIEW_SIZE_DP * density);
 
+        // One stream serves both passes; reset() rewinds it without reopening the file.
+        try (InputStream is = FileStreamFactory.createInputStream(file)) {
             // First pass: get dimensions
             BitmapFactory.Options opts = new BitmapFactory.Options();
             opts.inJustDecodeBounds = true;
-
-            if (encrypted) {
-                try (InputStream is = obfuscator.getDecryptedStream(file)) {
-                    BitmapFactory.decodeStream(is, null, opts);
-                }
-            } else {
-                BitmapFactory.decodeFile(file.getAbsolutePath(), opts);
-            }
+            is.mark(Integer.MAX_VALUE);
+            BitmapFactory.decodeStream(is, null, opts);
 
             // Calculate sample size
             int sampleSize = 1;
@@ -174,14 +169,8 @@ public class PreviewPopup {
             // Second pass: decode
             opts.inJustDecodeBounds = false;
             opts.inSampleSize = sampleSize;
-
-            if (encrypted) {
-                try (InputStream is = obfuscator.getDecryptedStream(file)) {
-                    return BitmapFactory.decodeStream(is, null, opts);
-                }
-            } else {
-                return BitmapFactory.decodeFile(file.getAbsolutePath(), opts);
-            }
+            is.reset();
+            return BitmapFactory.decodeStream(is, null, opts);
         } catch (IOException e) {
             return null;
         }
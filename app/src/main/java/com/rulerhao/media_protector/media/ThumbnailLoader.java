@@ -146,6 +146,14 @@ public class ThumbnailLoader {
         cache.evictAll();
     }
 
+    /**
+     * Drops the cached bitmap of one file, so a file rewritten or replaced under the same
+     * path is decoded again instead of showing its old thumbnail.
+     */
+    public void invalidate(File file) {
+        cache.remove(file.getAbsolutePath());
+    }
+
     // -------------------------------------------------------------------------
 
     private Bitmap decode(File file, boolean encrypted) {
@@ -157,13 +165,13 @@ public class ThumbnailLoader {
         }
 
         // Image path: decode with adaptive sampling based on target thumbnail size.
-        try {
+        // One stream serves both passes; reset() rewinds it without reopening the file.
+        try (InputStream is = FileStreamFactory.createInputStream(file)) {
             // First, decode bounds only to calculate optimal sample size
             BitmapFactory.Options boundsOpts = new BitmapFactory.Options();
             boundsOpts.inJustDecodeBounds = true;
-            try (InputStream is = FileStreamFactory.createInputStream(file)) {
-                BitmapFactory.decodeStream(is, null, boundsOpts);
-            }
+            is.mark(Integer.MAX_VALUE);
+            BitmapFactory.decodeStream(is, null, boundsOpts);
 
             // Calculate optimal sample size
             int sampleSize = calculateSampleSize(boundsOpts.outWidth, boundsOpts.outHeight, targetThumbnailSize);
@@ -171,9 +179,8 @@ public class ThumbnailLoader {
             // Now decode with calculated sample size
             BitmapFactory.Options decodeOpts = new BitmapFactory.Options();
             decodeOpts.inSampleSize = sampleSize;
-            try (InputStream is = FileStreamFactory.createInputStream(file)) {
-                return BitmapFactory.decodeStream(is, null, decodeOpts);
-            }
+            is.reset();
+            return BitmapFactory.decodeStream(is, null, decodeOpts);
         } catch (IOException e) {
             // File may be unreadable or corrupt; silently skip
             return null;
@@ -13,9 +13,15 @@ import android.widget.TextView;
 import com.rulerhao.media_protector.R;
 import com.rulerhao.media_protector.shared.ThemeHelper;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 /**
  * Lock screen activity for PIN and fingerprint authentication.
  * Supports three modes: UNLOCK (verify PIN), SETUP (create new PIN), CHANGE (change existing PIN).
+ * A new PIN can only replace the current one while the vault is unlocked, so SETUP and CHANGE
+ * ask for the current PIN first when it is not. PINs are checked and saved off the main
+ * thread, since both derive the vault key.
  */
 public class LockScreenActivity extends Activity {
 
@@ -30,6 +36,10 @@ public class LockScreenActivity extends Activity {
     private int mode = MODE_UNLOCK;
     private StringBuilder pinBuilder = new StringBuilder();
     private String firstPin = null; // Used in setup mode for confirmation
+    private boolean needsCurrentPin;   // Vault locked: verify the current PIN before a new one
+    private boolean busy;              // A PIN is being checked or saved
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
 
     private View[] pinDots;
     private TextView tvSubtitle;
@@ -46,6 +56,9 @@ public class LockScreenActivity extends Activity {
         setContentView(R.layout.activity_lock_screen);
 
         mode = getIntent().getIntExtra(EXTRA_MODE, MODE_UNLOCK);
+        needsCurrentPin = mode != MODE_UNLOCK
+                && SecurityHelper.isPinEnabled(this)
+                && !SecurityHelper.isVaultUnlocked();
 
         // Initialize views
         tvSubtitle = findViewById(R.id.tvLockSubtitle);
@@ -74,10 +87,12 @@ public class LockScreenActivity extends Activity {
         // Backspace button
         findViewById(R.id.btnBackspace).setOnClickListener(v -> onBackspaceClick());
 
-        // Fingerprint button (only shown in unlock mode if enabled)
+        // Fingerprint button (only shown in unlock mode if enabled). Biometrics cannot derive
+        // the vault key, so the first unlock of a process always takes the PIN.
         if (mode == MODE_UNLOCK
                 && SecurityHelper.isFingerprintEnabled(this)
-                && SecurityHelper.isFingerprintAvailable(this)) {
+                && SecurityHelper.isFingerprintAvailable(this)
+                && SecurityHelper.isVaultUnlocked()) {
             btnFingerprint.setVisibility(View.VISIBLE);
             btnFingerprint.setOnClickListener(v -> startFingerprintAuth());
         } else {
@@ -91,7 +106,8 @@ public class LockScreenActivity extends Activity {
         // Auto-start fingerprint listening in unlock mode
         if (mode == MODE_UNLOCK
                 && SecurityHelper.isFingerprintEnabled(this)
-                && SecurityHelper.isFingerprintAvailable(this)) {
+                && SecurityHelper.isFingerprintAvailable(this)
+                && SecurityHelper.isVaultUnlocked()) {
             startFingerprintAuth();
         }
     }
@@ -102,6 +118,12 @@ public class LockScreenActivity extends Activity {
         stopFingerprintAuth();
     }
 
+    @Override
+    protected void onDestroy() {
+        executor.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     public void onBackPressed() {
         if (mode == MODE_UNLOCK) {
@@ -114,7 +136,9 @@ public class LockScreenActivity extends Activity {
     }
 
     private void updateSubtitle() {
-        if (mode == MODE_SETUP) {
+        if (needsCurrentPin) {
+            tvSubtitle.setText(R.string.lock_subtitle_current);
+        } else if (mode == MODE_SETUP) {
             if (firstPin == null) {
                 tvSubtitle.setText(R.string.lock_subtitle_setup);
             } else {
@@ -132,21 +156,21 @@ public class LockScreenActivity extends Activity {
     }
 
     private void onNumberClick(View v) {
-        if (pinBuilder.length() >= 4) return;
+        if (busy || pinBuilder.length() >= SecurityHelper.PIN_LENGTH) return;
 
         String digit = ((android.widget.Button) v).getText().toString();
         pinBuilder.append(digit);
         updatePinDots();
         tvError.setVisibility(View.GONE);
 
-        if (pinBuilder.length() == 4) {
+        if (pinBuilder.length() == SecurityHelper.PIN_LENGTH) {
             // Small delay before processing
             v.postDelayed(this::processPin, 150);
         }
     }
 
     private void onBackspaceClick() {
-        if (pinBuilder.length() > 0) {
+        if (!busy && pinBuilder.length() > 0) {
             pinBuilder.deleteCharAt(pinBuilder.length() - 1);
             updatePinDots();
             tvError.setVisibility(View.GONE);
@@ -168,16 +192,19 @@ public class LockScreenActivity extends Activity {
 
         switch (mode) {
             case MODE_UNLOCK:
-                if (SecurityHelper.verifyPin(this, pin)) {
-                    onAuthSuccess();
-                } else {
-                    onAuthFailed();
-                }
+                checkPin(pin, this::onAuthSuccess);
                 break;
 
             case MODE_SETUP:
             case MODE_CHANGE:
-                if (firstPin == null) {
+                if (needsCurrentPin) {
+                    checkPin(pin, () -> {
+                        needsCurrentPin = false;
+                        pinBuilder.setLength(0);
+                        updatePinDots();
+                        updateSubtitle();
+                    });
+                } else if (firstPin == null) {
                     // First entry - store and ask for confirmation
                     firstPin = pin;
                     pinBuilder.setLength(0);
@@ -186,8 +213,7 @@ public class LockScreenActivity extends Activity {
                 } else {
                     // Confirmation entry
                     if (pin.equals(firstPin)) {
-                        SecurityHelper.setPin(this, pin);
-                        onAuthSuccess();
+                        savePin(pin);
                     } else {
                         // Mismatch - reset
                         firstPin = null;
@@ -201,6 +227,44 @@ public class LockScreenActivity extends Activity {
         }
     }
 
+    /** Verifies {@code pin} in the background and runs {@code onValid} if it is correct. */
+    private void checkPin(String pin, Runnable onValid) {
+        busy = true;
+        executor.execute(() -> {
+            boolean valid = SecurityHelper.verifyPin(this, pin);
+            runOnUiThread(() -> {
+                busy = false;
+                if (isDestroyed()) return;
+                if (valid) {
+                    onValid.run();
+                } else {
+                    onAuthFailed();
+                }
+            });
+        });
+    }
+
+    private void savePin(String pin) {
+        busy = true;
+        executor.execute(() -> {
+            boolean saved = SecurityHelper.setPin(this, pin);
+            runOnUiThread(() -> {
+                busy = false;
+                if (isDestroyed()) return;
+                if (saved) {
+                    onAuthSuccess();
+                    return;
+                }
+                // The vault is locked after all: start over from the current PIN
+                needsCurrentPin = true;
+                firstPin = null;
+                pinBuilder.setLength(0);
+                updatePinDots();
+                updateSubtitle();
+            });
+        });
+    }
+
     private void onAuthSuccess() {
         setResult(RESULT_AUTHENTICATED);
         finish();
@@ -60,7 +60,11 @@ public class SecuritySettingsController {
                 callback.startPinSetup();
             } else if (!isChecked && SecurityHelper.isPinEnabled(activity)) {
                 // Disable PIN
-                SecurityHelper.clearPin(activity);
+                if (!SecurityHelper.clearPin(activity)) {
+                    Toast.makeText(activity, R.string.toast_pin_unlock_required, Toast.LENGTH_SHORT).show();
+                    refreshUI();
+                    return;
+                }
                 Toast.makeText(activity, R.string.toast_pin_disabled, Toast.LENGTH_SHORT).show();
                 refreshUI();
             }
@@ -98,7 +102,11 @@ public class SecuritySettingsController {
             if (isChecked && !SecurityHelper.isPinEnabled(activity)) {
                 callback.startPinSetup();
             } else if (!isChecked && SecurityHelper.isPinEnabled(activity)) {
-                SecurityHelper.clearPin(activity);
+                if (!SecurityHelper.clearPin(activity)) {
+                    Toast.makeText(activity, R.string.toast_pin_unlock_required, Toast.LENGTH_SHORT).show();
+                    refreshUI();
+                    return;
+                }
                 Toast.makeText(activity, R.string.toast_pin_disabled, Toast.LENGTH_SHORT).show();
                 refreshUI();
             }
@@ -0,0 +1,166 @@
+package com.rulerhao.media_protector.album;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.rulerhao.media_protector.browse.BrowseListBuilder;
+import com.rulerhao.media_protector.core.MediaEntry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that sorting, filtering and grouping scan results read no file attributes, and
+ * measures what that saves against the {@link File#lastModified()} / {@link File#length()}
+ * comparators they replaced.
+ *
+ * <p>The timing runs on real files and is skipped unless the {@code benchmarkFiles} Gradle
+ * property gives their number.
+ */
+public class MediaFilterTest {
+
+    private static final SortOption[] ATTRIBUTE_SORTS = {
+            SortOption.DATE_ASC, SortOption.DATE_DESC, SortOption.SIZE_ASC, SortOption.SIZE_DESC
+    };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void sortFilterAndGroup_readNoFileAttributes() {
+        AtomicLong stats = new AtomicLong();
+        List<MediaEntry> entries = syntheticEntries(5000, stats);
+        File album = entries.get(0).getFile().getParentFile();
+
+        for (SortOption sort : SortOption.values()) {
+            MediaFilter.apply(entries, null, null, sort);
+            MediaFilter.apply(entries, album, "img", sort);
+        }
+        BrowseListBuilder.buildDateItems(entries);
+        BrowseListBuilder.buildFolderItems(entries);
+
+        assertEquals(0, stats.get());
+    }
+
+    @Test
+    public void sortByAttributes_matchesFileBasedSort() {
+        AtomicLong stats = new AtomicLong();
+        List<MediaEntry> entries = syntheticEntries(5000, stats);
+        List<File> files = MediaEntry.files(entries);
+
+        for (SortOption sort : ATTRIBUTE_SORTS) {
+            List<File> expected = new ArrayList<>(files);
+            Collections.sort(expected, fileComparator(sort));
+            assertEquals(sort.name(), expected,
+                    MediaEntry.files(MediaFilter.apply(entries, null, null, sort)));
+        }
+        // Every comparison of the file-based sort stats both files
+        assertTrue(stats.get() > 2L * entries.size());
+    }
+
+    @Test
+    public void timing_sortOnDisk() throws IOException {
+        int count = Integer.getInteger("benchmark.files", 0);
+        assumeTrue("set -PbenchmarkFiles to time sorting on disk", count > 0);
+
+        Random random = new Random(7);
+        long now = System.currentTimeMillis();
+        List<File> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            File file = new File(tmp.getRoot(), "d" + i % 100 + "/f" + i + ".jpg");
+            file.getParentFile().mkdirs();
+            if (!file.createNewFile()) throw new IOException("Cannot create " + file);
+            file.setLastModified(now - random.nextInt(1_000_000_000));
+            files.add(file);
+        }
+        Collections.shuffle(files, random);
+        List<MediaEntry> entries = new ArrayList<>(count);
+        for (File file : files) entries.add(MediaEntry.of(file));
+
+        long start = System.nanoTime();
+        List<File> byFile = new ArrayList<>(files);
+        Collections.sort(byFile, fileComparator(SortOption.DATE_DESC));
+        long fileNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<MediaEntry> byEntry = MediaFilter.apply(entries, null, null, SortOption.DATE_DESC);
+        long entryNanos = System.nanoTime() - start;
+
+        assertEquals(byFile, MediaEntry.files(byEntry));
+        String timings = String.format(Locale.ROOT,
+                "%d files by date: File.lastModified() %d ms, MediaEntry %d ms",
+                count, fileNanos / 1_000_000, entryNanos / 1_000_000);
+        assertTrue(timings, entryNanos < fileNanos);
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    /** The comparators MediaFilter used before it sorted by captured attributes. */
+    private static Comparator<File> fileComparator(SortOption sort) {
+        switch (sort) {
+            case DATE_ASC:  return (f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified());
+            case DATE_DESC: return (f1, f2) -> Long.compare(f2.lastModified(), f1.lastModified());
+            case SIZE_ASC:  return (f1, f2) -> Long.compare(f1.length(), f2.length());
+            case SIZE_DESC: return (f1, f2) -> Long.compare(f2.length(), f1.length());
+            default:        throw new IllegalArgumentException(sort.name());
+        }
+    }
+
+    /**
+     * Entries over files that report fixed attributes without touching the disk, counting
+     * every time one is asked for.
+     */
+    private static List<MediaEntry> syntheticEntries(int count, AtomicLong stats) {
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        List<MediaEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = (i % 3 == 0 ? "img_" : "clip_") + i + (i % 3 == 0 ? ".jpg" : ".mp4");
+            long modified = now - random.nextInt(1_000_000_000);
+            long size = random.nextInt(50_000_000);
+            File file = new CountingFile("/storage/emulated/0/d" + i % 50 + "/" + name,
+                    modified, size, stats);
+            entries.add(new MediaEntry(file, size, modified));
+        }
+        return entries;
+    }
+
+    private static final class CountingFile extends File {
+        private final long modified;
+        private final long size;
+        private final AtomicLong stats;
+
+        CountingFile(String path, long modified, long size, AtomicLong stats) {
+            super(path);
+            this.modified = modified;
+            this.size = size;
+            this.stats = stats;
+        }
+
+        @Override
+        public long lastModified() {
+            stats.incrementAndGet();
+            return modified;
+        }
+
+        @Override
+        public long length() {
+            stats.incrementAndGet();
+            return size;
+        }
+    }
+}
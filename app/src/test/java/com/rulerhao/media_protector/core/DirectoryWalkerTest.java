@@ -0,0 +1,225 @@
+package com.rulerhao.media_protector.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.AfterClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the parallel walk against a sequential traversal of the same rules, and times
+ * both on a large synthetic tree.
+ *
+ * <p>The timing is skipped unless the {@code benchmarkFiles} Gradle property gives the
+ * number of files in that tree.
+ */
+public class DirectoryWalkerTest {
+
+    private static final int MAX_DEPTH = 3;
+
+    private static final FileFilter PRUNED = dir -> dir.getName().equals("pruned");
+    private static final DirectoryWalker.FileMapper ALL = entry -> entry;
+    private static final DirectoryWalker.FileMapper JPEG =
+            entry -> entry.getFile().getName().endsWith(".jpg") ? entry : null;
+
+    /** Sized like the one {@link MediaRepository} walks with. */
+    private static final ForkJoinPool POOL = new ForkJoinPool(8);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @AfterClass
+    public static void shutDownPool() {
+        POOL.shutdown();
+    }
+
+    @Test
+    public void collect_appliesDepthHiddenAndPrunedRules() throws IOException {
+        File root = tmp.getRoot();
+        touch(root, "a.jpg");
+        touch(root, "b.txt");
+        touch(root, ".hidden.jpg");                  // hidden files are still mapped
+        touch(root, "d1/c.jpg");
+        touch(root, "d1/d2/d.mp4");
+        touch(root, "d1/d2/d3/e.jpg");               // depth 3: listed
+        touch(root, "d1/d2/d3/d4/f.jpg");            // depth 4: not listed
+        touch(root, ".hidden/g.jpg");
+        touch(root, "pruned/h.jpg");
+        touch(root, "d1/pruned/i.jpg");
+        new File(root, "empty").mkdir();
+
+        Set<String> names = new HashSet<>();
+        for (MediaEntry entry : walker().collect(root, ALL)) names.add(entry.getFile().getName());
+
+        Set<String> expected = new HashSet<>();
+        for (String name : new String[] {"a.jpg", "b.txt", ".hidden.jpg", "c.jpg", "d.mp4", "e.jpg"}) {
+            expected.add(name);
+        }
+        assertEquals(expected, names);
+    }
+
+    @Test
+    public void collect_matchesSequentialWalk() throws IOException {
+        File root = tmp.getRoot();
+        buildRandomTree(root, new Random(42), 0, 6);
+
+        for (DirectoryWalker.FileMapper mapper : new DirectoryWalker.FileMapper[] {ALL, JPEG}) {
+            List<MediaEntry> parallel = walker().collect(root, mapper);
+            List<MediaEntry> sequential = new ArrayList<>();
+            walkSequentially(root, 0, mapper, sequential);
+
+            assertEquals(sequential.size(), parallel.size());
+            assertEquals(new HashSet<>(sequential), new HashSet<>(parallel));
+        }
+    }
+
+    @Test
+    public void collect_returnsDirectorysOwnFilesFirst() throws IOException {
+        File root = tmp.getRoot();
+        touch(root, "sub/deep.jpg");
+        touch(root, "top1.jpg");
+        touch(root, "top2.jpg");
+
+        List<MediaEntry> kept = walker().collect(root, ALL);
+
+        assertEquals(3, kept.size());
+        assertEquals(root, kept.get(0).getFile().getParentFile());
+        assertEquals(root, kept.get(1).getFile().getParentFile());
+        assertEquals("deep.jpg", kept.get(2).getFile().getName());
+    }
+
+    @Test
+    public void anyMatch_ignoresFilesTheWalkWouldSkip() throws IOException {
+        File root = tmp.getRoot();
+        touch(root, ".hidden/a.jpg");
+        touch(root, "pruned/b.jpg");
+        touch(root, "d1/d2/d3/d4/c.jpg");
+        touch(root, "d1/notes.txt");
+        FileFilter jpeg = file -> file.getName().endsWith(".jpg");
+
+        assertFalse(walker().anyMatch(root, jpeg));
+
+        touch(root, "d1/d2/d3/d.jpg");
+        assertTrue(walker().anyMatch(root, jpeg));
+    }
+
+    @Test
+    public void anyMatch_stopsAtFirstMatch() throws IOException {
+        File root = tmp.getRoot();
+        touch(root, "match.jpg");
+        for (int d = 0; d < 20; d++) {
+            for (int f = 0; f < 20; f++) touch(root, "dir" + d + "/file" + f + ".jpg");
+        }
+        AtomicInteger visited = new AtomicInteger();
+
+        // One worker: the root's subtasks are only queued when its own file matches
+        ForkJoinPool single = new ForkJoinPool(1);
+        try {
+            DirectoryWalker walker = new DirectoryWalker(single, MAX_DEPTH, PRUNED);
+            assertTrue(walker.anyMatch(root, file -> {
+                visited.incrementAndGet();
+                return true;
+            }));
+        } finally {
+            single.shutdown();
+        }
+        assertEquals(1, visited.get());
+    }
+
+    @Test
+    public void timing_syntheticTree() throws IOException {
+        int files = Integer.getInteger("benchmark.files", 0);
+        assumeTrue("set -PbenchmarkFiles to time the walk", files > 0);
+
+        // 20 x 20 directories two levels down, the files spread evenly over them
+        File root = tmp.getRoot();
+        int dirs = 400;
+        for (int i = 0; i < files; i++) {
+            int dir = i % dirs;
+            touch(root, "a" + dir / 20 + "/b" + dir % 20 + "/f" + i + ".jpg");
+        }
+
+        long start = System.nanoTime();
+        List<MediaEntry> sequential = new ArrayList<>();
+        walkSequentially(root, 0, JPEG, sequential);
+        long sequentialNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<MediaEntry> parallel = walker().collect(root, JPEG);
+        long parallelNanos = System.nanoTime() - start;
+
+        assertEquals(files, parallel.size());
+        assertEquals(new HashSet<>(sequential), new HashSet<>(parallel));
+        String timings = String.format(Locale.ROOT,
+                "%d files: sequential %d ms, parallel %d ms (%d threads)",
+                files, sequentialNanos / 1_000_000, parallelNanos / 1_000_000,
+                POOL.getParallelism());
+        assertTrue(timings, parallelNanos < sequentialNanos);
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    private static DirectoryWalker walker() {
+        return new DirectoryWalker(POOL, MAX_DEPTH, PRUNED);
+    }
+
+    /** The sequential traversal the walker replaced, with the rules its class doc lists. */
+    private static void walkSequentially(File dir, int depth, DirectoryWalker.FileMapper mapper,
+                                         List<MediaEntry> out) {
+        if (depth > MAX_DEPTH || !dir.isDirectory() || PRUNED.accept(dir)) return;
+        File[] children = dir.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                if (!child.isHidden()) walkSequentially(child, depth + 1, mapper, out);
+            } else {
+                MediaEntry kept = mapper.map(MediaEntry.of(child));
+                if (kept != null) out.add(kept);
+            }
+        }
+    }
+
+    /** A few files and subdirectories per level, some hidden or pruned, down to {@code levels}. */
+    private static void buildRandomTree(File dir, Random random, int depth, int levels)
+            throws IOException {
+        int files = random.nextInt(6);
+        for (int i = 0; i < files; i++) {
+            String name = (random.nextInt(8) == 0 ? "." : "") + "f" + i
+                    + (random.nextBoolean() ? ".jpg" : ".txt");
+            touch(dir, name);
+        }
+        if (depth == levels) return;
+        int dirs = random.nextInt(4);
+        for (int i = 0; i < dirs; i++) {
+            int kind = random.nextInt(10);
+            String name = kind == 0 ? ".d" + i : kind == 1 ? "pruned" : "d" + i;
+            File child = new File(dir, name);
+            child.mkdir();
+            buildRandomTree(child, random, depth + 1, levels);
+        }
+    }
+
+    private static void touch(File root, String path) throws IOException {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        if (!file.exists() && !file.createNewFile()) throw new IOException("Cannot create " + file);
+    }
+}
@@ -0,0 +1,231 @@
+package com.rulerhao.media_protector.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks that a walk served by the {@link MediaIndex} finds exactly what a walk listing
+ * every directory with {@link DirectoryWalker#PLAIN_LISTER} finds, whether the index is
+ * cold, warm, or stale.
+ *
+ * <p>The index only trusts a directory modified more than its racy window before it was
+ * listed, so the tests back-date directory mtimes to get warm records. The timing is
+ * skipped unless the {@code benchmarkFiles} Gradle property gives the number of files.
+ */
+public class MediaIndexTest {
+
+    private static final int MAX_DEPTH = 3;
+    /** Far enough back that every record of the directory is trusted. */
+    private static final long SETTLED_MILLIS = 60_000;
+
+    private static final FileFilter PRUNED = dir -> dir.getName().equals("pruned");
+    private static final DirectoryWalker.FileMapper MEDIA =
+            entry -> FileConfig.isSupportedMediaFile(entry.getFile().getName()) ? entry : null;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(8);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File root;
+    private File store;
+
+    @AfterClass
+    public static void shutDownPool() {
+        POOL.shutdown();
+    }
+
+    @Before
+    public void createTree() throws IOException {
+        root = tmp.newFolder("storage");
+        store = new File(tmp.getRoot(), "media.idx");
+        write(root, "a.jpg", 10);
+        write(root, "notes.txt", 10);
+        write(root, "d1/b.mp4", 20);
+        write(root, "d1/c.png", 30);
+        write(root, "d1/d2/e.jpg", 40);
+        write(root, "d1/d2/d3/f.mprot", 50);
+        write(root, "gone/g.jpg", 60);
+        write(root, "gone/deeper/h.jpg", 70);
+        write(root, ".hidden/i.jpg", 80);
+        write(root, "pruned/j.jpg", 90);
+        settle(root);
+    }
+
+    @Test
+    public void coldIndex_matchesFullWalk() {
+        assertEquals(walkPlain(), walkIndexed(new MediaIndex(store)));
+    }
+
+    @Test
+    public void warmIndex_matchesFullWalk() {
+        MediaIndex index = new MediaIndex(store);
+        walkIndexed(index);
+        index.save();
+
+        // Served from the saved records: no directory changed
+        assertEquals(walkPlain(), walkIndexed(new MediaIndex(store)));
+    }
+
+    @Test
+    public void warmIndex_seesFilesRewrittenInPlace() throws IOException {
+        MediaIndex index = new MediaIndex(store);
+        walkIndexed(index);
+
+        // Rewriting a file leaves its directory's mtime alone
+        File d1 = new File(root, "d1");
+        long dirModified = d1.lastModified();
+        write(root, "d1/c.png", 300);
+        new File(d1, "b.mp4").setLastModified(System.currentTimeMillis() - 5_000);
+        assertEquals(dirModified, d1.lastModified());
+
+        assertEquals(walkPlain(), walkIndexed(index));
+    }
+
+    @Test
+    public void racyRecord_isListedAgain() throws IOException {
+        MediaIndex index = new MediaIndex(store);
+        File racy = new File(root, "d1/racy");
+        write(root, "d1/racy/k.jpg", 100);
+        long modified = System.currentTimeMillis() - 1_000; // inside the racy window
+        racy.setLastModified(modified);
+        walkIndexed(index);
+
+        // A change within the same coarse mtime tick does not move the mtime
+        write(root, "d1/racy/l.jpg", 110);
+        racy.setLastModified(modified);
+
+        Set<String> plain = walkPlain();
+        assertTrue(plain.contains(key(new File(racy, "l.jpg"))));
+        assertEquals(plain, walkIndexed(index));
+    }
+
+    @Test
+    public void deletedDirectory_dropsOut() throws IOException {
+        MediaIndex index = new MediaIndex(store);
+        walkIndexed(index);
+
+        delete(new File(root, "gone"));
+        Set<String> plain = walkPlain();
+        assertEquals(plain, walkIndexed(index));
+
+        // Even when the parent's mtime does not show the deletion
+        write(root, "gone2/m.jpg", 120);
+        settle(root);
+        walkIndexed(index);
+        long rootModified = root.lastModified();
+        delete(new File(root, "gone2"));
+        root.setLastModified(rootModified);
+
+        assertEquals(plain, walkPlain());
+        assertEquals(plain, walkIndexed(index));
+    }
+
+    @Test
+    public void timing_warmIndexScan() throws IOException {
+        int count = Integer.getInteger("benchmark.files", 0);
+        assumeTrue("set -PbenchmarkFiles to time a warm index scan", count > 0);
+
+        // 20 x 20 directories two levels down, one media file in four among other files
+        for (int i = 0; i < count; i++) {
+            int dir = i % 400;
+            String name = i % 4 == 0 ? "f" + i + ".jpg" : "f" + i + ".txt";
+            write(root, "a" + dir / 20 + "/b" + dir % 20 + "/" + name, 0);
+        }
+        settle(root);
+        walkIndexed(new MediaIndex(store)); // warms the page cache like the others
+
+        long start = System.nanoTime();
+        Set<String> plain = walkPlain();
+        long plainNanos = System.nanoTime() - start;
+
+        MediaIndex index = new MediaIndex(store);
+        start = System.nanoTime();
+        walkIndexed(index);
+        long coldNanos = System.nanoTime() - start;
+        index.save();
+
+        start = System.nanoTime();
+        Set<String> warm = walkIndexed(new MediaIndex(store));
+        long warmNanos = System.nanoTime() - start;
+
+        assertEquals(plain, warm);
+        String timings = String.format(Locale.ROOT,
+                "%d files: full walk %d ms, cold index %d ms, warm index %d ms",
+                count, plainNanos / 1_000_000, coldNanos / 1_000_000, warmNanos / 1_000_000);
+        assertTrue(timings, warmNanos < plainNanos);
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    private Set<String> walkPlain() {
+        return keys(new DirectoryWalker(POOL, MAX_DEPTH, PRUNED, DirectoryWalker.PLAIN_LISTER)
+                .collect(root, MEDIA));
+    }
+
+    private Set<String> walkIndexed(MediaIndex index) {
+        return keys(new DirectoryWalker(POOL, MAX_DEPTH, PRUNED, index).collect(root, MEDIA));
+    }
+
+    /** Everything a scan result carries, so a stale size or mtime shows up as a mismatch. */
+    private static Set<String> keys(List<MediaEntry> entries) {
+        Set<String> keys = new TreeSet<>();
+        for (MediaEntry entry : entries) {
+            keys.add(entry.getFile().getPath() + " " + entry.getSize() + " "
+                    + entry.getModified() + " " + entry.isVideo() + " " + entry.isEncrypted());
+        }
+        return keys;
+    }
+
+    private static String key(File file) {
+        return file.getPath() + " " + file.length() + " " + file.lastModified() + " "
+                + FileConfig.isVideoFile(file.getName()) + " "
+                + FileConfig.isEncryptedFile(file.getName());
+    }
+
+    /** Back-dates {@code dir} and every directory below it out of the racy window. */
+    private static void settle(File dir) {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) settle(child);
+            }
+        }
+        dir.setLastModified(System.currentTimeMillis() - SETTLED_MILLIS);
+    }
+
+    private static void write(File root, String path, int size) throws IOException {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        if (!file.delete()) throw new IOException("Cannot delete " + file);
+    }
+}
@@ -2,4 +2,5 @@
 plugins {
     id("com.android.application") version "8.2.0" apply false
     id("com.android.library") version "8.2.0" apply false
+    id("me.champeau.jmh") version "0.7.2" apply false
 }
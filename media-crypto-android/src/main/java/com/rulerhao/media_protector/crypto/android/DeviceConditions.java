@@ -0,0 +1,53 @@
+package com.rulerhao.media_protector.crypto.android;
+
+import android.content.Context;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+import com.rulerhao.media_protector.crypto.BatchGovernor;
+
+/**
+ * {@link BatchGovernor.Sensors} backed by {@link PowerManager} and {@link BatteryManager}.
+ *
+ * <p>Each call is a single system-service query; the governor samples them every couple
+ * of seconds. The thermal status needs API 29; older devices always report
+ * {@link BatchGovernor#THERMAL_NONE}, so only battery and screen state pace their batches.
+ */
+public final class DeviceConditions implements BatchGovernor.Sensors {
+
+    private final PowerManager powerManager;
+    private final BatteryManager batteryManager;
+
+    public DeviceConditions(Context context) {
+        Context app = context.getApplicationContext();
+        powerManager = (PowerManager) app.getSystemService(Context.POWER_SERVICE);
+        batteryManager = (BatteryManager) app.getSystemService(Context.BATTERY_SERVICE);
+    }
+
+    @Override
+    public int thermalStatus() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || powerManager == null) {
+            return BatchGovernor.THERMAL_NONE;
+        }
+        return powerManager.getCurrentThermalStatus();
+    }
+
+    @Override
+    public int batteryPercent() {
+        if (batteryManager == null) return -1;
+        int percent = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+        // Integer.MIN_VALUE (or 0 on some devices) when the property is not supported
+        return percent > 0 && percent <= 100 ? percent : -1;
+    }
+
+    @Override
+    public boolean isCharging() {
+        return batteryManager != null && batteryManager.isCharging();
+    }
+
+    @Override
+    public boolean isScreenOn() {
+        return powerManager == null || powerManager.isInteractive();
+    }
+}
@@ -1,11 +1,18 @@
 package com.rulerhao.media_protector.crypto.android;
 
+import com.rulerhao.media_protector.crypto.DedupStore;
 import com.rulerhao.media_protector.crypto.HeaderObfuscator;
+import com.rulerhao.media_protector.crypto.MprotLayout;
+import com.rulerhao.media_protector.crypto.RangeMap;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Factory for creating input streams that handle both encrypted and unencrypted files.
@@ -15,12 +22,20 @@ public final class FileStreamFactory {
 
     private static final HeaderObfuscator obfuscator = new HeaderObfuscator();
 
+    /** Staging size when decrypting a mapped full-content file. */
+    private static final int DECRYPT_CHUNK = 64 * 1024;
+
     private FileStreamFactory() {} // Prevent instantiation
 
     /**
      * Creates an input stream for the given file.
      * If the file is encrypted (.mprot), returns a decrypted stream.
-     * Otherwise, returns a regular FileInputStream.
+     * Otherwise, returns a FileInputStream.
+     *
+     * <p>Either stream supports {@link InputStream#mark}/{@link InputStream#reset} without
+     * buffering: a reset just moves the read position. A bounds-then-decode bitmap load can
+     * therefore mark, run the bounds pass, reset and decode from the one stream, instead of
+     * opening (and, for encrypted files, setting up decryption for) the file twice.
      *
      * @param file The file to read
      * @return An InputStream for reading the file's content
@@ -30,8 +45,79 @@ public final class FileStreamFactory {
         if (file.getName().toLowerCase().endsWith(".mprot")) {
             return obfuscator.getDecryptedStream(file);
         } else {
-            return new FileInputStream(file);
+            return new RewindableFileInputStream(file);
+        }
+    }
+
+    /**
+     * Returns the file's original content as a read-only {@link ByteBuffer} backed by a
+     * memory-mapped view of the file, suitable for {@code ImageDecoder.createSource(ByteBuffer)}.
+     * No copy of the file is made on the Java heap, so large images decode without the
+     * transient full-size byte arrays a stream slurp would need.
+     *
+     * <p>Encrypted files are mapped copy-on-write ({@link FileChannel.MapMode#PRIVATE}) and
+     * decrypted in the mapping. For header-only files this touches just the first 1 KB, so
+     * only that page becomes private memory and the rest stays a clean, page-cache-backed
+     * view. Full-content files are decrypted throughout, which costs anonymous memory equal
+     * to the content length — off-heap, but still resident. Writes to a private mapping
+     * never reach the file.
+     *
+     * <p>If the encrypted file is not writable (a private mapping requires a read-write
+     * channel) the content is decrypted into a direct buffer instead.
+     *
+     * @param file The file to map
+     * @return A read-only buffer positioned at the first content byte
+     * @throws IOException If the file cannot be read, or its content exceeds 2 GB
+     */
+    public static ByteBuffer mapContent(File file) throws IOException {
+        if (!isEncrypted(file)) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                FileChannel channel = raf.getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        file = DedupStore.resolve(file);
+        boolean writable = file.canWrite();
+        try (RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r")) {
+            FileChannel channel = raf.getChannel();
+            MprotLayout layout = MprotLayout.read(channel, file);
+            long length = layout.contentLength();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + file);
+            }
+
+            ByteBuffer content;
+            if (writable) {
+                content = channel.map(FileChannel.MapMode.PRIVATE, layout.dataOffset(), length);
+            } else {
+                content = ByteBuffer.allocateDirect((int) length);
+                while (content.hasRemaining()) {
+                    if (channel.read(content, layout.dataOffset() + content.position()) < 0) {
+                        throw new IOException("Unexpected end of file: " + file);
+                    }
+                }
+                content.clear();
+            }
+            decryptInBuffer(layout, content);
+            return content.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Returns the length of the file's original content.
+     * For encrypted files this reads the .mprot layout (prefix or trailer) to exclude
+     * the nonce and trailer bytes; otherwise it is simply {@link File#length()}.
+     *
+     * @param file The file to measure
+     * @return The content length in bytes
+     * @throws IOException If an encrypted file's layout cannot be read
+     */
+    public static long getContentLength(File file) throws IOException {
+        if (isEncrypted(file)) {
+            return MprotLayout.read(DedupStore.resolve(file)).contentLength();
         }
+        return file.length();
     }
 
     /**
@@ -57,6 +143,29 @@ public final class FileStreamFactory {
         return file.getName();
     }
 
+    /**
+     * Decrypts the encrypted ranges of {@code content} in place. The cipher works on arrays,
+     * so each range is staged through a small scratch buffer; for header-only files that is a
+     * 1 KB round trip plus one per metadata range.
+     */
+    private static void decryptInBuffer(MprotLayout layout, ByteBuffer content) throws IOException {
+        RangeMap encrypted = layout.encryptedRanges();
+        if (encrypted.size() == 0) return;
+        byte[] scratch = new byte[(int) Math.min(encrypted.totalLength(), DECRYPT_CHUNK)];
+        ByteBuffer view = content.duplicate();
+        for (int i = 0; i < encrypted.size(); i++) {
+            for (long pos = encrypted.start(i); pos < encrypted.end(i); ) {
+                int n = (int) Math.min(scratch.length, encrypted.end(i) - pos);
+                view.position((int) pos);
+                view.get(scratch, 0, n);
+                obfuscator.decryptRange(layout, pos, scratch, 0, n);
+                view.position((int) pos);
+                view.put(scratch, 0, n);
+                pos += n;
+            }
+        }
+    }
+
     /**
      * Checks if a file is a video based on its original name.
      *
@@ -67,4 +176,35 @@ public final class FileStreamFactory {
         String name = getOriginalName(file);
         return name.endsWith(".mp4");
     }
+
+    /** A FileInputStream whose mark is a channel position, so reset never re-reads anything. */
+    private static final class RewindableFileInputStream extends FileInputStream {
+
+        private long mark = 0;
+
+        RewindableFileInputStream(File file) throws FileNotFoundException {
+            super(file);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        /** Marks the current position; {@code readLimit} is ignored, a mark never expires. */
+        @Override
+        public synchronized void mark(int readLimit) {
+            try {
+                mark = getChannel().position();
+            } catch (IOException e) {
+                mark = -1; // reported by reset()
+            }
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            if (mark < 0) throw new IOException("Mark is invalid");
+            getChannel().position(mark);
+        }
+    }
 }
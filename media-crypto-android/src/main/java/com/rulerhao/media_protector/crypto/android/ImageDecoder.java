@@ -23,14 +23,14 @@ public final class ImageDecoder {
      * @return Decoded bitmap, or null if decoding fails
      */
     public static Bitmap decode(File file, int maxWidth, int maxHeight) {
-        try {
+        // Both passes share one stream; reset() rewinds it without reopening the file
+        try (InputStream in = FileStreamFactory.createInputStream(file)) {
             // Pass 1: Get dimensions without loading pixels
             BitmapFactory.Options opts = new BitmapFactory.Options();
             opts.inJustDecodeBounds = true;
 
-            try (InputStream in = FileStreamFactory.createInputStream(file)) {
-                BitmapFactory.decodeStream(in, null, opts);
-            }
+            in.mark(Integer.MAX_VALUE);
+            BitmapFactory.decodeStream(in, null, opts);
 
             if (opts.outWidth <= 0 || opts.outHeight <= 0) {
                 return null;
@@ -41,9 +41,8 @@ public final class ImageDecoder {
             opts.inJustDecodeBounds = false;
 
             // Pass 2: Decode with sample size
-            try (InputStream in = FileStreamFactory.createInputStream(file)) {
-                return BitmapFactory.decodeStream(in, null, opts);
-            }
+            in.reset();
+            return BitmapFactory.decodeStream(in, null, opts);
         } catch (Exception e) {
             return null;
         }
@@ -0,0 +1,40 @@
+plugins {
+    id("java")
+    id("me.champeau.jmh")
+}
+
+// media-crypto is an Android library module, which a plain JVM project cannot depend on.
+// Its sources have no Android dependencies, so compile them straight into this module.
+sourceSets {
+    main {
+        java.srcDir("../media-crypto/src/main/java")
+    }
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+// ./gradlew :media-crypto-benchmarks:jmh runs every benchmark. Narrow a run with
+//   -PjmhIncludes=StreamRead     regex of benchmarks to run
+//   -PjmhSizes=10KB,1MB          override the "size" parameter
+//   -PjmhThreads=4               JMH worker threads (StreamRead, FirstByte)
+//   -PjmhResults=path/to.json    where to write the JSON results
+jmh {
+    jmhVersion.set("1.37")
+    fork.set(1)
+    resultFormat.set("JSON")
+    resultsFile.set(
+        providers.gradleProperty("jmhResults")
+            .map { layout.projectDirectory.file(it) }
+            .orElse(layout.buildDirectory.file("results/jmh/results.json"))
+    )
+    humanOutputFile.set(layout.buildDirectory.file("results/jmh/human.txt"))
+
+    providers.gradleProperty("jmhIncludes").orNull?.let { includes.add(it) }
+    providers.gradleProperty("jmhThreads").orNull?.let { threads.set(it.toInt()) }
+    providers.gradleProperty("jmhSizes").orNull?.let {
+        benchmarkParameters.put("size", objects.listProperty(String::class.java).value(it.split(",")))
+    }
+}
@@ -0,0 +1,134 @@
+package com.rulerhao.media_protector.crypto.benchmarks;
+
+import com.rulerhao.media_protector.crypto.CryptoBatch;
+import com.rulerhao.media_protector.crypto.GroupCommit;
+import com.rulerhao.media_protector.crypto.HeaderObfuscator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypts a batch of files in place through {@link CryptoBatch} with a given number of
+ * worker threads, the way a multi-select protect runs in the app. The {@code commit}
+ * parameter picks how results are made durable, so the cost of a {@link GroupCommit} can be
+ * read against an fsync per file and against no fsync at all.
+ *
+ * <p>Every invocation consumes its plain files, so they are written again before each one,
+ * outside the measured time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchBenchmark {
+
+    private static final int FILE_COUNT = 32;
+
+    private static final CryptoBatch.Listener NO_PROGRESS = new CryptoBatch.Listener() {
+        @Override
+        public void onProgress(int started, int total, File file, long bytesDone, long bytesTotal) {}
+
+        @Override
+        public void onFailure(File file, Exception e) {}
+    };
+
+    @Param({"10KB", "1MB", "16MB"})
+    public String size;
+
+    @Param({"HEADER_ONLY", "FULL_CONTENT"})
+    public HeaderObfuscator.Mode mode;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    /** How a batch's results reach their final names. */
+    public enum Commit {
+        /** Rewritten in place, without staging or fsync, as before {@link GroupCommit}. */
+        NONE,
+        /** Staged, then fsynced and published one file at a time. */
+        PER_FILE,
+        /** Staged, then fsynced and published in groups, as the app does. */
+        GROUP
+    }
+
+    @Param({"NONE", "PER_FILE", "GROUP"})
+    public Commit commit;
+
+    private File dir;
+    private long length;
+    private final List<File> files = new ArrayList<>();
+    private final List<File> targets = new ArrayList<>();
+    private HeaderObfuscator obfuscator;
+    private CryptoBatch batch;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkFiles.newDirectory();
+        length = BenchmarkFiles.parseSize(size);
+        for (int i = 0; i < FILE_COUNT; i++) {
+            files.add(new File(dir, "plain" + i + ".jpg"));
+            targets.add(new File(dir, "plain" + i + ".jpg.mprot"));
+        }
+        obfuscator = new HeaderObfuscator(mode);
+        batch = new CryptoBatch(threads, CryptoBatch.DEFAULT_MAX_BYTES);
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /** Puts back the plain files the previous invocation encrypted. */
+    @Setup(Level.Invocation)
+    public void restoreFiles() throws IOException {
+        for (int i = 0; i < FILE_COUNT; i++) {
+            File target = targets.get(i);
+            if (target.exists() && !target.delete()) {
+                throw new IOException("Cannot delete " + target);
+            }
+            BenchmarkFiles.createPlain(dir, files.get(i).getName(), length);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    /** Returns the number of files that failed, which should be zero. */
+    @Benchmark
+    public int encryptBatch() throws InterruptedException, IOException {
+        GroupCommit group = commit == Commit.PER_FILE
+                ? new GroupCommit(1, GroupCommit.DEFAULT_MAX_DELAY_MILLIS)
+                : commit == Commit.GROUP ? new GroupCommit() : null;
+        CryptoBatch.Result result = batch.run(files, file -> {
+            File target = new File(dir, file.getName() + ".mprot");
+            if (group == null) {
+                obfuscator.encryptInPlace(file, target);
+            } else {
+                obfuscator.encryptInPlace(file, target, group, null);
+            }
+        }, executor, NO_PROGRESS);
+        if (group != null) group.close();
+        return result.failed;
+    }
+}
@@ -0,0 +1,81 @@
+package com.rulerhao.media_protector.crypto.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Test files for the benchmarks.
+ *
+ * <p>Files up to {@link #DENSE_LIMIT} are filled with random bytes. Larger ones get
+ * {@link #DENSE_LIMIT} random bytes followed by a sparse hole, so a 2 GB case costs no disk
+ * space to set up. Reads of the hole come back as zeros from the filesystem without touching
+ * storage, which keeps those runs about the crypto and copy paths; outputs written from them
+ * are dense.
+ */
+final class BenchmarkFiles {
+
+    /** Files up to this size are written out in full. */
+    static final long DENSE_LIMIT = 64L * 1024 * 1024;
+
+    private static final int WRITE_CHUNK = 1024 * 1024;
+
+    private BenchmarkFiles() {}
+
+    /** Parses a size parameter such as {@code "10KB"}, {@code "1MB"} or {@code "2GB"}. */
+    static long parseSize(String size) {
+        String s = size.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+        if (s.endsWith("KB")) {
+            unit = 1024;
+        } else if (s.endsWith("MB")) {
+            unit = 1024 * 1024;
+        } else if (s.endsWith("GB")) {
+            unit = 1024L * 1024 * 1024;
+        }
+        String digits = unit == 1 ? s : s.substring(0, s.length() - 2);
+        return Long.parseLong(digits.trim()) * unit;
+    }
+
+    /** Creates a new temporary directory for one benchmark trial. */
+    static File newDirectory() throws IOException {
+        return Files.createTempDirectory("mprot-bench").toFile();
+    }
+
+    /** Creates {@code name} in {@code dir} with {@code size} bytes of content (see above). */
+    static File createPlain(File dir, String name, long size) throws IOException {
+        File file = new File(dir, name);
+        Random random = new Random(size);
+        byte[] chunk = new byte[WRITE_CHUNK];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long dense = Math.min(size, DENSE_LIMIT);
+            for (long pos = 0; pos < dense; ) {
+                int n = (int) Math.min(chunk.length, dense - pos);
+                random.nextBytes(chunk);
+                raf.write(chunk, 0, n);
+                pos += n;
+            }
+            raf.setLength(size);
+        }
+        return file;
+    }
+
+    /** Deletes {@code dir} and the files in it. */
+    static void deleteRecursively(File dir) {
+        if (dir == null) return;
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    deleteRecursively(child);
+                } else {
+                    child.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,72 @@
+package com.rulerhao.media_protector.crypto.benchmarks;
+
+import com.rulerhao.media_protector.crypto.HeaderObfuscator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copying {@link HeaderObfuscator#encrypt(File, File)} and
+ * {@link HeaderObfuscator#decrypt(File, File)}: the protect and export paths used when the
+ * file cannot be renamed in place. Each operation rewrites the same output file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EncryptBenchmark {
+
+    @Param({"10KB", "1MB", "64MB", "2GB"})
+    public String size;
+
+    @Param({"HEADER_ONLY", "FULL_CONTENT"})
+    public HeaderObfuscator.Mode mode;
+
+    private File dir;
+    private File plain;
+    private File encrypted;
+    private File output;
+    private HeaderObfuscator obfuscator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkFiles.newDirectory();
+        plain = BenchmarkFiles.createPlain(dir, "plain.jpg", BenchmarkFiles.parseSize(size));
+        encrypted = new File(dir, "encrypted.jpg.mprot");
+        output = new File(dir, "output");
+        obfuscator = new HeaderObfuscator(mode);
+        obfuscator.encrypt(plain, encrypted);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void encrypt() throws IOException {
+        obfuscator.encrypt(plain, output);
+    }
+
+    @Benchmark
+    public void decrypt() throws IOException {
+        obfuscator.decrypt(encrypted, output);
+    }
+}
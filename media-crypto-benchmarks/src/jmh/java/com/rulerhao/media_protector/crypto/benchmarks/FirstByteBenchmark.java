@@ -0,0 +1,88 @@
+package com.rulerhao.media_protector.crypto.benchmarks;
+
+import com.rulerhao.media_protector.crypto.HeaderObfuscator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency from opening a decrypting stream to the first bytes a decoder needs — what a
+ * thumbnail or preview waits for before any pixels. Sampled, so the results carry
+ * percentiles rather than just a mean.
+ *
+ * <p>Opening reads the trailer at the end of the file, so with the sparse 2 GB case this
+ * also shows whether that cost depends on file size.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FirstByteBenchmark {
+
+    /** Roughly what a bounds decode of a JPEG or PNG reads before it knows the size. */
+    private static final int BOUNDS_WINDOW = 64 * 1024;
+
+    @Param({"10KB", "1MB", "64MB", "2GB"})
+    public String size;
+
+    @Param({"HEADER_ONLY", "FULL_CONTENT"})
+    public HeaderObfuscator.Mode mode;
+
+    private File dir;
+    private File encrypted;
+    private HeaderObfuscator obfuscator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkFiles.newDirectory();
+        File plain = BenchmarkFiles.createPlain(dir, "plain.jpg", BenchmarkFiles.parseSize(size));
+        encrypted = new File(dir, "encrypted.jpg.mprot");
+        obfuscator = new HeaderObfuscator(mode);
+        obfuscator.encrypt(plain, encrypted);
+        plain.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public int firstByte() throws IOException {
+        try (InputStream in = obfuscator.getDecryptedStream(encrypted)) {
+            return in.read();
+        }
+    }
+
+    /** Returns the number of bytes read, so the reads cannot be optimized away. */
+    @Benchmark
+    public int boundsWindow() throws IOException {
+        byte[] buf = new byte[BOUNDS_WINDOW];
+        int total = 0;
+        try (InputStream in = obfuscator.getDecryptedStream(encrypted)) {
+            int n;
+            while (total < buf.length && (n = in.read(buf, total, buf.length - total)) != -1) {
+                total += n;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,81 @@
+package com.rulerhao.media_protector.crypto.benchmarks;
+
+import com.rulerhao.media_protector.crypto.HeaderObfuscator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a whole file through {@link HeaderObfuscator#getDecryptedStream(File)} with a given
+ * caller buffer size, as a decoder or an export to a content URI does. Divide the file size
+ * by the reported time for throughput.
+ *
+ * <p>The file is shared by all JMH worker threads, so {@code -PjmhThreads=N} measures N
+ * concurrent readers of one file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamReadBenchmark {
+
+    @Param({"10KB", "1MB", "64MB", "2GB"})
+    public String size;
+
+    @Param({"HEADER_ONLY", "FULL_CONTENT"})
+    public HeaderObfuscator.Mode mode;
+
+    @Param({"8192", "65536", "262144"})
+    public int bufferSize;
+
+    private File dir;
+    private File encrypted;
+    private HeaderObfuscator obfuscator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkFiles.newDirectory();
+        File plain = BenchmarkFiles.createPlain(dir, "plain.jpg", BenchmarkFiles.parseSize(size));
+        encrypted = new File(dir, "encrypted.jpg.mprot");
+        obfuscator = new HeaderObfuscator(mode);
+        obfuscator.encrypt(plain, encrypted);
+        plain.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    /** Returns the number of bytes read, so the reads cannot be optimized away. */
+    @Benchmark
+    public long readAll() throws IOException {
+        byte[] buf = new byte[bufferSize];
+        long total = 0;
+        try (InputStream in = obfuscator.getDecryptedStream(encrypted)) {
+            int n;
+            while ((n = in.read(buf, 0, buf.length)) != -1) {
+                total += n;
+            }
+        }
+        return total;
+    }
+}
@@ -18,5 +18,7 @@ android {
 }
 
 dependencies {
-    // No external dependencies
+    // No external runtime dependencies
+
+    testImplementation("junit:junit:4.13.2")
 }
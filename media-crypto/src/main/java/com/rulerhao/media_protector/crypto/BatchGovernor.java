@@ -0,0 +1,211 @@
+package com.rulerhao.media_protector.crypto;
+
+/**
+ * Paces long {@link CryptoBatch} runs by the device's condition, for the best sustained
+ * throughput over the whole job instead of the best first minute.
+ *
+ * <p>A phone that runs every core flat out for minutes heats up until the kernel throttles
+ * its clocks. At that point the job slows down and the whole device stutters. Backing off
+ * early, when the thermal status first turns {@link #THERMAL_LIGHT}, keeps the device below
+ * that cliff. The governor also backs off on a low, discharging battery and while the screen
+ * is on without a charger. It has two controls:
+ * <ul>
+ *   <li>concurrency: the share of the batch's file slots that may be in use;</li>
+ *   <li>duty cycle: after a file, its worker rests in proportion to the time the file took,
+ *       so at a duty cycle of 0.5 it is busy half of the time.</li>
+ * </ul>
+ *
+ * <p>Conditions come from a {@link Sensors} and time from a {@link Clock}, so the policy
+ * runs on a plain JVM with both scripted. Sensors are sampled at most every
+ * {@link #SAMPLE_INTERVAL_NANOS}. A worse condition takes effect at the next sample. A
+ * better one takes effect only after it has held for {@link #RAISE_HOLD_NANOS}, so that the
+ * governor does not oscillate around a thermal threshold.
+ */
+public final class BatchGovernor {
+
+    // Thermal status, with the values of android.os.PowerManager's THERMAL_STATUS_*
+    public static final int THERMAL_NONE      = 0;
+    public static final int THERMAL_LIGHT     = 1;
+    public static final int THERMAL_MODERATE  = 2;
+    public static final int THERMAL_SEVERE    = 3;
+    public static final int THERMAL_CRITICAL  = 4;
+    public static final int THERMAL_EMERGENCY = 5;
+    public static final int THERMAL_SHUTDOWN  = 6;
+
+    /** Minimum time between two sensor samples. */
+    public static final long SAMPLE_INTERVAL_NANOS = 2_000_000_000L;
+    /** How long a better condition must hold before the governor steps back up. */
+    public static final long RAISE_HOLD_NANOS = 30_000_000_000L;
+
+    /** Battery share below which a discharging device runs at {@link Level#MINIMAL}. */
+    private static final int BATTERY_CRITICAL_PERCENT = 15;
+    /** Battery share below which a discharging device runs at {@link Level#REDUCED}. */
+    private static final int BATTERY_LOW_PERCENT = 30;
+
+    /** The device conditions the policy reads. Calls must be cheap and must not throw. */
+    public interface Sensors {
+        /** One of the {@code THERMAL_*} constants; {@link #THERMAL_NONE} if unknown. */
+        int thermalStatus();
+
+        /** Battery charge in percent, or -1 if unknown. */
+        int batteryPercent();
+
+        /** {@code true} while on external power. */
+        boolean isCharging();
+
+        /** {@code true} while the screen is on and the user may be interacting. */
+        boolean isScreenOn();
+    }
+
+    /** Source of time and sleep. */
+    public interface Clock {
+        long nanoTime();
+
+        void sleepNanos(long nanos) throws InterruptedException;
+    }
+
+    /** {@link System#nanoTime()} and {@link Thread#sleep(long, int)}. */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepNanos(long nanos) throws InterruptedException {
+            Thread.sleep(nanos / 1_000_000L, (int) (nanos % 1_000_000L));
+        }
+    };
+
+    /**
+     * Operating levels, from unrestricted to stopped. At every level but {@link #PAUSED} at
+     * least one file runs; while paused, no new file starts and files in flight finish.
+     */
+    public enum Level {
+        FULL(1.0, 1.0),
+        EASED(0.75, 0.8),
+        REDUCED(0.5, 0.5),
+        MINIMAL(0, 0.25),
+        PAUSED(0, 0);
+
+        /** Share of the batch's file slots in use. */
+        public final double concurrency;
+        /** Share of time a worker is busy. */
+        public final double dutyCycle;
+
+        Level(double concurrency, double dutyCycle) {
+            this.concurrency = concurrency;
+            this.dutyCycle = dutyCycle;
+        }
+
+        /** Files allowed in flight out of {@code maxFiles}. */
+        public int files(int maxFiles) {
+            if (this == PAUSED) return 0;
+            return Math.max(1, (int) (maxFiles * concurrency));
+        }
+    }
+
+    private final Sensors sensors;
+    private final Clock clock;
+
+    private Level level = Level.FULL;
+    private long lastSample;
+    private boolean sampled;
+    /** Since when every sample has been better than {@link #level}; -1 while none is. */
+    private long betterSince = -1;
+    private Level betterTarget;
+
+    public BatchGovernor(Sensors sensors) {
+        this(sensors, SYSTEM_CLOCK);
+    }
+
+    public BatchGovernor(Sensors sensors, Clock clock) {
+        this.sensors = sensors;
+        this.clock = clock;
+    }
+
+    /** The current level, re-sampling the sensors if the last sample is old enough. */
+    public synchronized Level level() {
+        long now = clock.nanoTime();
+        if (sampled && now - lastSample < SAMPLE_INTERVAL_NANOS) return level;
+        sampled = true;
+        lastSample = now;
+
+        Level target = target(sensors.thermalStatus(), sensors.batteryPercent(),
+                sensors.isCharging(), sensors.isScreenOn());
+        if (target.ordinal() >= level.ordinal()) {
+            // Worse or the same: follow at once, and any step back up starts over
+            level = target;
+            betterSince = -1;
+        } else {
+            if (betterSince < 0) {
+                betterSince = now;
+                betterTarget = target;
+            } else if (target.ordinal() > betterTarget.ordinal()) {
+                betterTarget = target; // still better, but less so: step up only that far
+            }
+            if (now - betterSince >= RAISE_HOLD_NANOS) {
+                level = betterTarget;
+                betterSince = -1;
+            }
+        }
+        return level;
+    }
+
+    /**
+     * Blocks while the level is {@link Level#PAUSED}, re-sampling every
+     * {@link #SAMPLE_INTERVAL_NANOS}, and returns the first level at which files may run.
+     */
+    public Level awaitRunnable() throws InterruptedException {
+        Level current;
+        while ((current = level()) == Level.PAUSED) clock.sleepNanos(SAMPLE_INTERVAL_NANOS);
+        return current;
+    }
+
+    /**
+     * Rests after a file whose work began at {@link #now()} value {@code startedNanos}, for as
+     * long as the current duty cycle asks. Nothing rests while paused: no file can start
+     * until the level rises anyway.
+     */
+    public void pace(long startedNanos) throws InterruptedException {
+        double duty = level().dutyCycle;
+        if (duty >= 1.0 || duty <= 0) return;
+        long busy = clock.nanoTime() - startedNanos;
+        if (busy > 0) clock.sleepNanos((long) (busy * (1.0 - duty) / duty));
+    }
+
+    /** The current time on this governor's clock. */
+    public long now() {
+        return clock.nanoTime();
+    }
+
+    /** The level the given conditions call for: the most restrictive any of them asks. */
+    static Level target(int thermal, int batteryPercent, boolean charging, boolean screenOn) {
+        Level level;
+        if (thermal >= THERMAL_CRITICAL) {
+            level = Level.PAUSED;
+        } else if (thermal == THERMAL_SEVERE) {
+            level = Level.MINIMAL;
+        } else if (thermal == THERMAL_MODERATE) {
+            level = Level.REDUCED;
+        } else if (thermal == THERMAL_LIGHT) {
+            level = Level.EASED;
+        } else {
+            level = Level.FULL;
+        }
+        if (!charging) {
+            if (batteryPercent >= 0 && batteryPercent <= BATTERY_CRITICAL_PERCENT) {
+                level = atLeast(level, Level.MINIMAL);
+            } else if (batteryPercent >= 0 && batteryPercent <= BATTERY_LOW_PERCENT) {
+                level = atLeast(level, Level.REDUCED);
+            }
+            // Leave the interactive UI a core, and the display's heat some headroom
+            if (screenOn) level = atLeast(level, Level.EASED);
+        }
+        return level;
+    }
+
+    private static Level atLeast(Level level, Level floor) {
+        return level.ordinal() >= floor.ordinal() ? level : floor;
+    }
+}
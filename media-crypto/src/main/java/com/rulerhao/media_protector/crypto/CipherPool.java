@@ -0,0 +1,144 @@
+package com.rulerhao.media_protector.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Reuses {@code AES/CTR/NoPadding} {@link Cipher} instances across files. They come from the
+ * provider {@link CryptoProviders} pinned, if any.
+ *
+ * <p>{@link Cipher#getInstance(String)} walks the installed providers on every call, which
+ * is measurable when thousands of files are protected or thumbnailed in a row. Two reuse
+ * strategies are offered:
+ * <ul>
+ *   <li>{@link #forThread()} — one cipher per thread, for work that starts and finishes
+ *       inside a single method call (encrypt / decrypt of a header).</li>
+ *   <li>{@link #acquire()} / {@link #release(Cipher)} — a small shared pool, for objects
+ *       such as decrypting streams whose lifetime is not bound to one thread.</li>
+ * </ul>
+ *
+ * <p>Callers always re-{@link #init} a cipher before use, so no keystream state leaks from
+ * one file to the next. All transforms are done in place with
+ * {@link Cipher#update(byte[], int, int, byte[], int)}, which never allocates.
+ */
+final class CipherPool {
+
+    static final String TRANSFORMATION = "AES/CTR/NoPadding";
+    static final int BLOCK_SIZE = 16;
+
+    /** Upper bound on idle pooled ciphers; extra releases are simply dropped. */
+    private static final int MAX_IDLE = 8;
+
+    private static final ThreadLocal<Cipher> PER_THREAD = new ThreadLocal<>();
+
+    private static final ConcurrentLinkedQueue<Cipher> IDLE = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger idleCount = new AtomicInteger();
+
+    private CipherPool() {}
+
+    /**
+     * Returns the calling thread's cipher. It must not be handed to another thread or kept
+     * beyond the current call, since the next call on this thread will re-initialise it.
+     */
+    static Cipher forThread() throws GeneralSecurityException {
+        Cipher cipher = PER_THREAD.get();
+        if (cipher == null || !CryptoProviders.isPinned(cipher, CryptoProviders.Primitive.CTR)) {
+            cipher = CryptoProviders.newCipher(CryptoProviders.Primitive.CTR);
+            PER_THREAD.set(cipher);
+        }
+        return cipher;
+    }
+
+    /** Borrows a cipher from the shared pool. Return it with {@link #release(Cipher)}. */
+    static Cipher acquire() throws GeneralSecurityException {
+        Cipher cipher;
+        while ((cipher = IDLE.poll()) != null) {
+            idleCount.decrementAndGet();
+            // Created before a provider was pinned; let it go
+            if (CryptoProviders.isPinned(cipher, CryptoProviders.Primitive.CTR)) return cipher;
+        }
+        return CryptoProviders.newCipher(CryptoProviders.Primitive.CTR);
+    }
+
+    /** Returns a borrowed cipher to the shared pool. Null is ignored. */
+    static void release(Cipher cipher) {
+        if (cipher == null) return;
+        if (idleCount.incrementAndGet() <= MAX_IDLE) {
+            IDLE.offer(cipher);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /** (Re)initialises {@code cipher} for CTR with the given key and 16-byte counter block. */
+    static void init(Cipher cipher, SecretKey key, byte[] counterBlock)
+            throws GeneralSecurityException {
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counterBlock)); // CTR: enc == dec
+    }
+
+    /**
+     * (Re)initialises {@code cipher} so that its keystream starts at byte {@code offset} of a
+     * CTR stream whose first counter block is {@code nonce}. This is what makes random
+     * access and chunk-parallel work possible: any offset can be reached without touching
+     * the bytes before it.
+     */
+    static void initAt(Cipher cipher, SecretKey key, byte[] nonce, long offset)
+            throws GeneralSecurityException {
+        byte[] block = counterBlock(nonce, offset / BLOCK_SIZE);
+        init(cipher, key, block);
+        int skip = (int) (offset % BLOCK_SIZE);
+        if (skip > 0) {
+            // Discard the head of the first block; the spec already copied the counter.
+            cipher.update(block, 0, skip, block, 0);
+        }
+    }
+
+    /**
+     * Returns {@code nonce + blockIndex} as a 128-bit big-endian integer, matching how
+     * every JCE/Conscrypt CTR implementation increments its counter.
+     */
+    static byte[] counterBlock(byte[] nonce, long blockIndex) {
+        byte[] block = nonce.clone();
+        long carry = blockIndex;
+        for (int i = BLOCK_SIZE - 1; i >= 0 && carry != 0; i--) {
+            long sum = (block[i] & 0xFFL) + (carry & 0xFFL);
+            block[i] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+        return block;
+    }
+
+    /**
+     * Applies the keystream to the bytes of {@code buf[off, off + len)} that fall inside
+     * {@code ranges}, in place; {@code buf[off]} holds content offset {@code contentOffset}.
+     * Bytes outside the ranges are left alone.
+     */
+    static void applyRanges(Cipher cipher, SecretKey key, byte[] nonce, RangeMap ranges,
+                            long contentOffset, byte[] buf, int off, int len)
+            throws GeneralSecurityException {
+        long end = contentOffset + len;
+        for (int i = ranges.indexAfter(contentOffset); i < ranges.size(); i++) {
+            long from = Math.max(contentOffset, ranges.start(i));
+            long to = Math.min(end, ranges.end(i));
+            if (from >= end) break;
+            initAt(cipher, key, nonce, from);
+            apply(cipher, buf, off + (int) (from - contentOffset), (int) (to - from));
+        }
+    }
+
+    /** Applies the keystream to {@code buf[off, off + len)} in place. */
+    static void apply(Cipher cipher, byte[] buf, int off, int len)
+            throws GeneralSecurityException {
+        if (len <= 0) return;
+        int n = cipher.update(buf, off, len, buf, off);
+        if (n != len) {
+            // CTR is a stream mode; every provider we ship with returns output immediately.
+            throw new GeneralSecurityException("Cipher buffered " + (len - n) + " bytes in CTR mode");
+        }
+    }
+}
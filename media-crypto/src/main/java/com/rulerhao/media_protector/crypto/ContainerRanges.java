@@ -0,0 +1,291 @@
+package com.rulerhao.media_protector.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the structure and metadata of a media container: the byte ranges a header-only file
+ * encrypts beyond its first 1 KB (see {@link MprotLayout}).
+ *
+ * <p>The first 1 KB hides little more than the file type. An MP4 keeps its sample tables and
+ * its location tag in {@code moov}, which is often at the end of the file. HEIF keeps its
+ * item tables in {@code meta} and stores the Exif block, with GPS coordinates, as an item
+ * elsewhere. JPEG puts Exif, XMP and the decoding tables in segments ahead of the scan. This
+ * class only reads box and segment headers, plus the HEIF item tables. Payloads such as
+ * {@code mdat} or the JPEG scan stay untouched, so encrypting the ranges costs about what
+ * the metadata weighs: a few KB for a photo, up to a few MB for the {@code moov} of a long
+ * video.
+ *
+ * <ul>
+ *   <li>ISO BMFF (MP4, MOV, 3GP, HEIF/AVIF): the top-level {@code ftyp}, {@code moov},
+ *       {@code meta}, {@code moof}, {@code mfra}, {@code udta} and {@code uuid} boxes, and
+ *       the extents of HEIF {@code Exif} and {@code mime} (XMP) items;</li>
+ *   <li>JPEG: everything from the start of the file to the end of the first scan header;</li>
+ *   <li>anything else, or anything malformed: nothing. The file is then protected by its
+ *       first 1 KB only, as before.</li>
+ * </ul>
+ */
+final class ContainerRanges {
+
+    /** Upper bound on the ranges of one file; further ones are merged across small gaps. */
+    static final int MAX_RANGES = 64;
+    /** Longest single range; a larger box is encrypted up to this length. */
+    static final long MAX_RANGE_LENGTH = 64L * 1024 * 1024;
+
+    /** Largest {@code meta} box read into memory to look up HEIF items. */
+    private static final int MAX_META_SIZE = 4 * 1024 * 1024;
+    /** How far into a JPEG the first scan is looked for. */
+    private static final long MAX_JPEG_HEADER = 4L * 1024 * 1024;
+    /** Top-level boxes walked before giving up. */
+    private static final int MAX_BOXES = 4096;
+
+    private static final Set<String> SENSITIVE_BOXES = new HashSet<>();
+    private static final Set<String> FIRST_BOXES = new HashSet<>();
+
+    static {
+        for (String type : new String[] {"ftyp", "moov", "meta", "moof", "mfra", "udta", "uuid"}) {
+            SENSITIVE_BOXES.add(type);
+        }
+        for (String type : new String[] {"ftyp", "moov", "wide", "free", "skip", "mdat"}) {
+            FIRST_BOXES.add(type);
+        }
+    }
+
+    private final FileChannel channel;
+    private final long size;
+    private final byte[] plainHeader;
+    private final List<long[]> found = new ArrayList<>();
+
+    private ContainerRanges(FileChannel channel, long size, byte[] plainHeader) {
+        this.channel = channel;
+        this.size = size;
+        this.plainHeader = plainHeader;
+    }
+
+    /**
+     * Returns the metadata ranges of the content in {@code channel}, which must be plaintext
+     * and {@code size} bytes long, starting at position 0.
+     */
+    static RangeMap find(FileChannel channel, long size) {
+        return find(channel, size, null);
+    }
+
+    /**
+     * Like {@link #find(FileChannel, long)}, for a file whose first bytes are already
+     * encrypted: reads of the first {@code plainHeader.length} bytes are served from
+     * {@code plainHeader} instead.
+     */
+    static RangeMap find(FileChannel channel, long size, byte[] plainHeader) {
+        ContainerRanges parser = new ContainerRanges(channel, size, plainHeader);
+        try {
+            byte[] magic = parser.read(0, (int) Math.min(12, size));
+            if (magic.length >= 8 && FIRST_BOXES.contains(type(magic, 4))) {
+                parser.parseIsoBmff();
+            } else if (magic.length >= 4 && (magic[0] & 0xFF) == 0xFF
+                    && (magic[1] & 0xFF) == 0xD8) {
+                parser.parseJpeg();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Malformed or truncated: keep whatever was found before the bad part
+        }
+
+        long[] bounds = new long[2 * parser.found.size()];
+        for (int i = 0; i < parser.found.size(); i++) {
+            long[] range = parser.found.get(i);
+            bounds[2 * i] = range[0];
+            bounds[2 * i + 1] = Math.min(range[1], range[0] + MAX_RANGE_LENGTH);
+        }
+        return RangeMap.of(bounds).clip(0, size).coarsen(MAX_RANGES);
+    }
+
+    // -------------------------------------------------------------------------
+    // ISO base media file format
+    // -------------------------------------------------------------------------
+
+    private void parseIsoBmff() throws IOException {
+        long pos = 0;
+        for (int boxes = 0; pos + 8 <= size && boxes < MAX_BOXES; boxes++) {
+            ByteBuffer header = ByteBuffer.wrap(read(pos, 16 <= size - pos ? 16 : 8));
+            long boxSize = header.getInt() & 0xFFFFFFFFL;
+            String type = type(header.array(), 4);
+            int headerSize = 8;
+            if (boxSize == 1) {
+                if (header.remaining() < 8) return;
+                boxSize = header.getLong();
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = size - pos; // extends to the end of the file
+            }
+            if (boxSize < headerSize) return;
+            long end = Math.min(size, pos + boxSize);
+
+            if (SENSITIVE_BOXES.contains(type)) add(pos, end);
+            if (type.equals("meta")) parseHeifItems(pos + headerSize, end);
+            if (end >= size) return;
+            pos = end;
+        }
+    }
+
+    /**
+     * Adds the extents of the Exif and XMP items listed in the {@code meta} box whose
+     * children span {@code [from, to)}. Only items stored at file offsets are located; those
+     * in an {@code idat} box are inside {@code meta} and covered already.
+     */
+    private void parseHeifItems(long from, long to) throws IOException {
+        if (to - from > MAX_META_SIZE || to - from < 4) return;
+        ByteBuffer meta = ByteBuffer.wrap(read(from, (int) (to - from)));
+        meta.position(4); // FullBox version and flags
+
+        Map<Long, String> itemTypes = new HashMap<>();
+        ByteBuffer iloc = null;
+        while (meta.remaining() >= 8) {
+            int start = meta.position();
+            long boxSize = meta.getInt() & 0xFFFFFFFFL;
+            String type = type(meta.array(), start + 4);
+            meta.position(start + 8);
+            if (boxSize < 8 || boxSize > meta.limit() - start) return;
+            ByteBuffer body = slice(meta, start + 8, (int) boxSize - 8);
+            if (type.equals("iinf")) {
+                parseItemInfo(body, itemTypes);
+            } else if (type.equals("iloc")) {
+                iloc = body;
+            }
+            meta.position(start + (int) boxSize);
+        }
+        if (iloc != null && !itemTypes.isEmpty()) parseItemLocations(iloc, itemTypes);
+    }
+
+    /** Records the type of every item in an {@code iinf} box body. */
+    private static void parseItemInfo(ByteBuffer iinf, Map<Long, String> itemTypes) {
+        int version = iinf.get() & 0xFF;
+        iinf.position(iinf.position() + 3);
+        long count = version == 0 ? iinf.getShort() & 0xFFFF : iinf.getInt() & 0xFFFFFFFFL;
+        for (long i = 0; i < count && iinf.remaining() >= 8; i++) {
+            int start = iinf.position();
+            long boxSize = iinf.getInt() & 0xFFFFFFFFL;
+            String type = type(iinf.array(), iinf.arrayOffset() + start + 4);
+            if (boxSize < 8 || boxSize > iinf.limit() - start) return;
+            iinf.position(start + 8);
+            if (type.equals("infe")) {
+                int infeVersion = iinf.get() & 0xFF;
+                iinf.position(iinf.position() + 3);
+                if (infeVersion >= 2) {
+                    long id = infeVersion == 2 ? iinf.getShort() & 0xFFFF
+                                               : iinf.getInt() & 0xFFFFFFFFL;
+                    iinf.getShort(); // item_protection_index
+                    itemTypes.put(id, type(iinf.array(), iinf.arrayOffset() + iinf.position()));
+                }
+            }
+            iinf.position(start + (int) boxSize);
+        }
+    }
+
+    /** Adds the file extents of the Exif and XMP items in an {@code iloc} box body. */
+    private void parseItemLocations(ByteBuffer iloc, Map<Long, String> itemTypes) {
+        int version = iloc.get() & 0xFF;
+        iloc.position(iloc.position() + 3);
+        int sizes = iloc.getShort() & 0xFFFF;
+        int offsetSize = sizes >>> 12;
+        int lengthSize = (sizes >>> 8) & 0xF;
+        int baseOffsetSize = (sizes >>> 4) & 0xF;
+        int indexSize = version >= 1 ? sizes & 0xF : 0;
+        long count = version < 2 ? iloc.getShort() & 0xFFFF : iloc.getInt() & 0xFFFFFFFFL;
+
+        for (long i = 0; i < count; i++) {
+            long id = version < 2 ? iloc.getShort() & 0xFFFF : iloc.getInt() & 0xFFFFFFFFL;
+            int constructionMethod = version >= 1 ? iloc.getShort() & 0xF : 0;
+            iloc.getShort(); // data_reference_index
+            long baseOffset = readSized(iloc, baseOffsetSize);
+            int extents = iloc.getShort() & 0xFFFF;
+            String type = itemTypes.get(id);
+            boolean wanted = constructionMethod == 0
+                    && ("Exif".equals(type) || "mime".equals(type));
+            for (int e = 0; e < extents; e++) {
+                readSized(iloc, indexSize);
+                long offset = baseOffset + readSized(iloc, offsetSize);
+                long length = readSized(iloc, lengthSize);
+                if (wanted) add(offset, length == 0 ? size : offset + length);
+            }
+        }
+    }
+
+    private static long readSized(ByteBuffer buf, int size) {
+        switch (size) {
+            case 0:  return 0;
+            case 4:  return buf.getInt() & 0xFFFFFFFFL;
+            case 8:  return buf.getLong();
+            default: throw new IllegalArgumentException("Unsupported field size " + size);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // JPEG
+    // -------------------------------------------------------------------------
+
+    /**
+     * Adds everything up to the end of the first start-of-scan header: the APPn segments
+     * (JFIF, Exif, XMP, ICC profile), comments, and the quantisation and Huffman tables the
+     * scan cannot be decoded without. If no scan turns up, whatever segments were walked.
+     */
+    private void parseJpeg() throws IOException {
+        long pos = 2;
+        try {
+            while (pos + 4 <= size && pos < MAX_JPEG_HEADER) {
+                byte[] marker = read(pos, 4);
+                if ((marker[0] & 0xFF) != 0xFF) return;
+                int code = marker[1] & 0xFF;
+                if (code == 0xFF) {
+                    pos++; // fill byte
+                    continue;
+                }
+                if (code == 0xD9) return; // end of image before any scan
+                if (code == 0x01 || (code >= 0xD0 && code <= 0xD7)) {
+                    pos += 2; // markers without a length
+                    continue;
+                }
+                int length = ((marker[2] & 0xFF) << 8) | (marker[3] & 0xFF);
+                if (length < 2) return;
+                pos += 2 + length;
+                if (code == 0xDA) return; // the scan data itself follows
+            }
+        } finally {
+            add(0, Math.min(pos, size));
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    private void add(long start, long end) {
+        if (start < end && start < size) found.add(new long[] {start, Math.min(end, size)});
+    }
+
+    /** Reads {@code len} bytes at {@code pos}, with the plaintext header laid over them. */
+    private byte[] read(long pos, int len) throws IOException {
+        byte[] buf = new byte[len];
+        MprotLayout.readFully(channel, ByteBuffer.wrap(buf), pos);
+        if (plainHeader != null && pos < plainHeader.length) {
+            int n = (int) Math.min(len, plainHeader.length - pos);
+            System.arraycopy(plainHeader, (int) pos, buf, 0, n);
+        }
+        return buf;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int offset, int length) {
+        return ByteBuffer.wrap(buf.array(), buf.arrayOffset() + offset, length).slice();
+    }
+
+    private static String type(byte[] buf, int offset) {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) chars[i] = (char) (buf[offset + i] & 0xFF);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,86 @@
+package com.rulerhao.media_protector.crypto;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Integrity digest of a file's plaintext content.
+ *
+ * <p>The content is cut into {@link ChunkedCtr#CHUNK_SIZE} chunks. Each chunk gets its own
+ * CRC-32, and the digest is the CRC-32 of those values in big-endian order. Splitting it
+ * this way lets the chunk-parallel encrypt and verify passes fill in chunks in any order and
+ * on any thread, while a sequential copy pass can stream bytes through {@link #update}. Both
+ * produce the same value.
+ *
+ * <p>CRC-32 rather than CRC-32C: {@code java.util.zip.CRC32C} needs API 26, and CRC-32 is
+ * just as hardware-accelerated on ARMv8. It detects corruption; it is not a MAC.
+ */
+final class ContentDigest {
+
+    private static final int CHUNK_SIZE = ChunkedCtr.CHUNK_SIZE;
+
+    private int[] chunkCrcs;
+    private final boolean growable;
+    private final CRC32 running = new CRC32();
+    private long streamed;
+
+    ContentDigest(long length) {
+        long chunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (chunks > Integer.MAX_VALUE) throw new IllegalArgumentException("Too long: " + length);
+        chunkCrcs = new int[(int) chunks];
+        growable = false;
+    }
+
+    /** Creates a digest for content of unknown length, fed through {@link #update} only. */
+    ContentDigest() {
+        chunkCrcs = new int[16];
+        growable = true;
+    }
+
+    /** Records chunk {@code index}, whose bytes are {@code buf[off, off + len)}. */
+    void setChunk(int index, byte[] buf, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(buf, off, len);
+        chunkCrcs[index] = (int) crc.getValue();
+    }
+
+    /** Feeds the next {@code len} content bytes, in order, from a single thread. */
+    void update(byte[] buf, int off, int len) {
+        while (len > 0) {
+            int n = (int) Math.min(len, CHUNK_SIZE - streamed % CHUNK_SIZE);
+            running.update(buf, off, n);
+            streamed += n;
+            off += n;
+            len -= n;
+            if (streamed % CHUNK_SIZE == 0) {
+                setStreamedChunk((int) (streamed / CHUNK_SIZE) - 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the digest. Call once, after every chunk has been recorded. The caller must
+     * have synchronized with the threads that recorded them.
+     */
+    int value() {
+        if (streamed % CHUNK_SIZE != 0) {
+            setStreamedChunk((int) (streamed / CHUNK_SIZE));
+        }
+        int chunks = growable ? (int) ((streamed + CHUNK_SIZE - 1) / CHUNK_SIZE) : chunkCrcs.length;
+        CRC32 top = new CRC32();
+        for (int i = 0; i < chunks; i++) {
+            int c = chunkCrcs[i];
+            top.update(c >>> 24);
+            top.update(c >>> 16);
+            top.update(c >>> 8);
+            top.update(c);
+        }
+        return (int) top.getValue();
+    }
+
+    private void setStreamedChunk(int index) {
+        if (index >= chunkCrcs.length) chunkCrcs = Arrays.copyOf(chunkCrcs, chunkCrcs.length * 2);
+        chunkCrcs[index] = (int) running.getValue();
+        running.reset();
+    }
+}
@@ -0,0 +1,398 @@
+package com.rulerhao.media_protector.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Copies the unencrypted remainder of a file between channels, picking the fastest of three
+ * strategies for the storage involved.
+ *
+ * <ul>
+ *   <li>{@link Strategy#TRANSFER} — {@link FileChannel#transferTo} in a loop, since it may
+ *       move fewer bytes than asked. In-kernel on internal storage; cannot digest.</li>
+ *   <li>{@link Strategy#MAPPED} — maps the source in {@link #MAP_WINDOW} windows and writes
+ *       from the mapping. Saves a copy where mapping is cheap; some FUSE mounts refuse it.
+ *       Each window is unmapped before the next is mapped.</li>
+ *   <li>{@link Strategy#BUFFERED} — two direct buffers, one being filled by a reader thread
+ *       while the other is written, so read and write latency overlap. Usually the best on
+ *       FUSE-backed {@code /sdcard} and removable media, where each call is a round trip.</li>
+ * </ul>
+ *
+ * <p>Calibration costs no extra I/O: the first copies of at least {@link #TIMED_MIN} bytes
+ * between a pair of directories try each strategy in turn, and every timed copy after that
+ * updates the throughput recorded for the strategy it used. Once each strategy has
+ * {@link #CALIBRATION_SAMPLES} samples the fastest is used. A strategy that cannot complete
+ * (a stalled {@code transferTo}, a source that cannot be mapped) is recorded as unusable for
+ * that pair, and the copy is finished with {@link Strategy#BUFFERED}.
+ *
+ * <p>Profiles are kept per source and destination directory rather than per volume: below
+ * API 26 there is no way to name the volume a file lives on, and a vault copies between few
+ * directories, so this costs a handful of calibrations per process.
+ */
+final class CopyEngine {
+
+    enum Strategy { TRANSFER, MAPPED, BUFFERED }
+
+    /** Copies shorter than this are not timed: their cost is mostly per-call overhead. */
+    static final long TIMED_MIN = 4L * 1024 * 1024;
+
+    /** Timed copies per strategy before the fastest one is chosen. */
+    static final int CALIBRATION_SAMPLES = 2;
+
+    /** Size of each mapped window; bounded so 32-bit processes do not run out of address space. */
+    static final int MAP_WINDOW = 16 * 1024 * 1024;
+
+    /**
+     * Most bytes one copy maps where windows cannot be unmapped early. Such windows stay
+     * mapped until they are collected, so the rest of the copy goes through the pipeline.
+     */
+    static final long MAP_LIMIT = 4L * MAP_WINDOW;
+
+    /** Releases a mapping ahead of collection; {@code null} where the platform offers no way. */
+    private static final Unmapper UNMAPPER = findUnmapper();
+
+    /** Size of each of the two pipeline buffers. */
+    static final int PIPELINE_BUFFER = 256 * 1024;
+
+    private static final Map<String, Profile> PROFILES = new ConcurrentHashMap<>();
+
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "mprot-copy");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final ThreadLocal<ByteBuffer[]> PIPELINE_BUFFERS = new ThreadLocal<ByteBuffer[]>() {
+        @Override
+        protected ByteBuffer[] initialValue() {
+            return new ByteBuffer[] {
+                    ByteBuffer.allocateDirect(PIPELINE_BUFFER),
+                    ByteBuffer.allocateDirect(PIPELINE_BUFFER)
+            };
+        }
+    };
+
+    private static final ThreadLocal<byte[]> DIGEST_SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[PIPELINE_BUFFER];
+        }
+    };
+
+    private CopyEngine() {}
+
+    /**
+     * Copies {@code count} bytes from {@code src} at {@code srcPos} to {@code dst} at
+     * {@code dstPos}, recording them in {@code digest} unless it is {@code null}.
+     * {@code srcFile} and {@code dstFile} select the calibration profile.
+     */
+    static void copy(FileChannel src, long srcPos, long count, FileChannel dst, long dstPos,
+                     ContentDigest digest, File srcFile, File dstFile) throws IOException {
+        if (count <= 0) return;
+        Profile profile = profile(srcFile, dstFile);
+        boolean timed = count >= TIMED_MIN;
+        Strategy strategy = profile.choose(digest != null, timed);
+
+        long start = System.nanoTime();
+        long done = run(strategy, src, srcPos, count, dst, dstPos, digest);
+        if (done < count) {
+            // TRANSFER stalled or the source cannot be mapped: finish through the pipeline
+            profile.disable(strategy);
+            pipelinedCopy(src, srcPos + done, count - done, dst, dstPos + done, digest);
+        } else if (timed) {
+            profile.record(strategy, count, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns the throughput {@code strategy} last achieved between the directories of
+     * {@code srcFile} and {@code dstFile}, in bytes per second; 0 if it was never timed there,
+     * -1 if it failed there.
+     */
+    static long throughput(File srcFile, File dstFile, Strategy strategy) {
+        Profile profile = PROFILES.get(key(srcFile, dstFile));
+        return profile != null ? profile.throughput(strategy) : 0;
+    }
+
+    // -------------------------------------------------------------------------
+    // Strategies
+    // -------------------------------------------------------------------------
+
+    /**
+     * Runs {@code strategy} and returns how many bytes it copied; fewer than {@code count}
+     * if it cannot go on here. The bytes it did copy have been digested.
+     */
+    private static long run(Strategy strategy, FileChannel src, long srcPos, long count,
+                            FileChannel dst, long dstPos, ContentDigest digest)
+            throws IOException {
+        switch (strategy) {
+            case TRANSFER: return transferCopy(src, srcPos, count, dst, dstPos);
+            case MAPPED:   return mappedCopy(src, srcPos, count, dst, dstPos, digest);
+            default:       return pipelinedCopy(src, srcPos, count, dst, dstPos, digest);
+        }
+    }
+
+    /** Calls {@code transferTo} until the range is done or it stops making progress. */
+    private static long transferCopy(FileChannel src, long srcPos, long count,
+                                     FileChannel dst, long dstPos) throws IOException {
+        dst.position(dstPos);
+        long done = 0;
+        while (done < count) {
+            long n = src.transferTo(srcPos + done, count - done, dst);
+            if (n <= 0) break;
+            done += n;
+        }
+        return done;
+    }
+
+    private static long mappedCopy(FileChannel src, long srcPos, long count, FileChannel dst,
+                                   long dstPos, ContentDigest digest) throws IOException {
+        byte[] scratch = digest != null ? DIGEST_SCRATCH.get() : null;
+        for (long done = 0; done < count; ) {
+            int n = (int) Math.min(MAP_WINDOW, count - done);
+            MappedByteBuffer window;
+            try {
+                window = src.map(FileChannel.MapMode.READ_ONLY, srcPos + done, n);
+            } catch (IOException e) {
+                return done; // some FUSE mounts cannot map
+            }
+            if (digest != null) digestBuffer(window.duplicate(), digest, scratch);
+            MprotLayout.writeFully(dst, window, dstPos + done);
+            done += n;
+            if (!unmap(window) && done >= MAP_LIMIT && done < count) {
+                return done + pipelinedCopy(src, srcPos + done, count - done, dst,
+                        dstPos + done, digest);
+            }
+        }
+        return count;
+    }
+
+    private interface Unmapper {
+        void unmap(ByteBuffer buffer) throws Exception;
+    }
+
+    /**
+     * Neither Java 8 nor Android has a public way to unmap a buffer, so this looks up the
+     * platform's own: {@code Unsafe.invokeCleaner} on Java 9 and later, and
+     * {@code NioUtils.freeDirectBuffer} on Android.
+     */
+    private static Unmapper findUnmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8 or Android
+        }
+        try {
+            Method free = Class.forName("java.nio.NioUtils")
+                    .getMethod("freeDirectBuffer", ByteBuffer.class);
+            return buffer -> free.invoke(null, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Unmaps {@code window}, which must not be used afterwards.
+     *
+     * @return {@code false} if it stays mapped until collected
+     */
+    private static boolean unmap(MappedByteBuffer window) {
+        if (UNMAPPER == null) return false;
+        try {
+            UNMAPPER.unmap(window);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Double-buffered copy: while the calling thread writes one buffer, a reader thread fills
+     * the other. A range that fits one buffer is copied on the calling thread alone.
+     */
+    private static long pipelinedCopy(FileChannel src, long srcPos, long count,
+                                      FileChannel dst, long dstPos, ContentDigest digest)
+            throws IOException {
+        byte[] scratch = digest != null ? DIGEST_SCRATCH.get() : null;
+        ByteBuffer[] buffers = PIPELINE_BUFFERS.get();
+
+        if (count <= PIPELINE_BUFFER) {
+            fill(src, buffers[0], srcPos, (int) count);
+            if (digest != null) digestBuffer(buffers[0].duplicate(), digest, scratch);
+            MprotLayout.writeFully(dst, buffers[0], dstPos);
+            return count;
+        }
+
+        Future<ByteBuffer> pending = READERS.submit(reader(src, buffers[0], srcPos, PIPELINE_BUFFER));
+        int current = 0;
+        try {
+            for (long done = 0; done < count; ) {
+                ByteBuffer buf = await(pending);
+                pending = null;
+                long next = done + buf.remaining();
+                if (next < count) {
+                    int n = (int) Math.min(PIPELINE_BUFFER, count - next);
+                    pending = READERS.submit(reader(src, buffers[current ^ 1], srcPos + next, n));
+                }
+                if (digest != null) digestBuffer(buf.duplicate(), digest, scratch);
+                MprotLayout.writeFully(dst, buf, dstPos + done);
+                done = next;
+                current ^= 1;
+            }
+        } finally {
+            // The buffers are this thread's; never return while a reader may still fill one
+            if (pending != null) awaitQuietly(pending);
+        }
+        return count;
+    }
+
+    private static Callable<ByteBuffer> reader(FileChannel src, ByteBuffer buf, long pos, int len) {
+        return () -> {
+            fill(src, buf, pos, len);
+            return buf;
+        };
+    }
+
+    /** Reads exactly {@code len} bytes at {@code pos} into {@code buf}, ready to be drained. */
+    private static void fill(FileChannel src, ByteBuffer buf, long pos, int len) throws IOException {
+        buf.clear();
+        buf.limit(len);
+        MprotLayout.readFully(src, buf, pos);
+        buf.flip();
+    }
+
+    private static ByteBuffer await(Future<ByteBuffer> pending) throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during copy");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Copy failed", cause);
+        }
+    }
+
+    /** Waits for {@code pending} to finish, ignoring its outcome and any interrupt. */
+    private static void awaitQuietly(Future<ByteBuffer> pending) {
+        boolean interrupted = Thread.interrupted();
+        while (true) {
+            try {
+                pending.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                break;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /** Feeds {@code buf}'s remaining bytes to {@code digest}, staging them through {@code scratch}. */
+    private static void digestBuffer(ByteBuffer buf, ContentDigest digest, byte[] scratch) {
+        while (buf.hasRemaining()) {
+            int n = Math.min(scratch.length, buf.remaining());
+            buf.get(scratch, 0, n);
+            digest.update(scratch, 0, n);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Calibration
+    // -------------------------------------------------------------------------
+
+    private static Profile profile(File srcFile, File dstFile) {
+        String key = key(srcFile, dstFile);
+        Profile profile = PROFILES.get(key);
+        if (profile == null) {
+            Profile created = new Profile();
+            profile = PROFILES.putIfAbsent(key, created);
+            if (profile == null) profile = created;
+        }
+        return profile;
+    }
+
+    private static String key(File srcFile, File dstFile) {
+        return srcFile.getAbsoluteFile().getParent() + '\n' + dstFile.getAbsoluteFile().getParent();
+    }
+
+    /** Throughput seen by each strategy between one pair of directories. */
+    private static final class Profile {
+
+        private static final Strategy[] ALL = Strategy.values();
+
+        private final long[] bytesPerSecond = new long[ALL.length]; // -1 once unusable
+        private final int[] samples = new int[ALL.length];
+        private int nextProbe;
+
+        /**
+         * Picks the strategy for the next copy. Untimed copies take the best one known so far;
+         * timed copies first go round every usable strategy until each has been sampled.
+         */
+        synchronized Strategy choose(boolean digest, boolean timed) {
+            if (timed) {
+                for (int i = 0; i < ALL.length; i++) {
+                    Strategy s = ALL[(nextProbe + i) % ALL.length];
+                    if (usable(s, digest) && samples[s.ordinal()] < CALIBRATION_SAMPLES) {
+                        nextProbe = s.ordinal() + 1;
+                        return s;
+                    }
+                }
+            }
+            Strategy best = null;
+            for (Strategy s : ALL) {
+                if (!usable(s, digest)) continue;
+                if (best == null || bytesPerSecond[s.ordinal()] > bytesPerSecond[best.ordinal()]) {
+                    best = s;
+                }
+            }
+            if (best == null || bytesPerSecond[best.ordinal()] == 0) {
+                return digest ? Strategy.BUFFERED : Strategy.TRANSFER; // nothing timed yet
+            }
+            return best;
+        }
+
+        /** Folds a timed copy into the strategy's throughput, weighting the latest copy by 1/4. */
+        synchronized void record(Strategy s, long bytes, long nanos) {
+            int i = s.ordinal();
+            if (bytesPerSecond[i] < 0) return;
+            // In double: bytes * 1e9 overflows a long beyond 9.2 GB
+            long rate = (long) (bytes * 1e9 / Math.max(1, nanos));
+            bytesPerSecond[i] = samples[i] == 0 ? rate : (3 * bytesPerSecond[i] + rate) / 4;
+            samples[i]++;
+        }
+
+        synchronized void disable(Strategy s) {
+            bytesPerSecond[s.ordinal()] = -1;
+        }
+
+        synchronized long throughput(Strategy s) {
+            return bytesPerSecond[s.ordinal()];
+        }
+
+        private boolean usable(Strategy s, boolean digest) {
+            if (bytesPerSecond[s.ordinal()] < 0) return false;
+            return !digest || s != Strategy.TRANSFER;
+        }
+    }
+}
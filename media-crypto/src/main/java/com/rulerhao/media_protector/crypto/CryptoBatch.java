@@ -0,0 +1,235 @@
+package com.rulerhao.media_protector.crypto;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs a per-file operation (encrypt, decrypt, export, ...) over a list of files concurrently.
+ *
+ * <p>Two limits bound the work in flight at any moment:
+ * <ul>
+ *   <li>{@code maxFiles} — files being processed at once. Header-only files are a handful of
+ *       small random I/Os each, so several in flight keep the storage queue busy where one
+ *       at a time leaves it mostly idle.</li>
+ *   <li>{@code maxBytes} — summed size of those files. Copy paths stream whole files, so this
+ *       keeps a batch of large videos from thrashing the page cache. A single file larger
+ *       than the budget still runs, just alone.</li>
+ * </ul>
+ *
+ * <p>With a {@link BatchGovernor}, the governor's level lowers {@code maxFiles} further and
+ * each worker rests after its file for as long as the level's duty cycle asks, so a long
+ * batch slows down before the device overheats rather than after. While the governor is
+ * {@link BatchGovernor.Level#PAUSED}, no file starts. Once every file has started there is
+ * nothing left to hold back, and workers finish without resting.
+ *
+ * <p>{@link #run} blocks the calling thread until every file has finished. Each file's
+ * outcome is independent: a failure is counted and reported, and the batch carries on.
+ * Listener callbacks are serialized, so the listener itself needs no locking.
+ */
+public final class CryptoBatch {
+
+    /** Default cap on files in flight. */
+    public static final int DEFAULT_MAX_FILES =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /** Default cap on bytes in flight. */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    /** Byte budget is tracked in KB so it fits a {@link Semaphore}'s int permits. */
+    private static final int BYTE_UNIT = 1024;
+
+    /** The work done for one file. */
+    public interface FileTask {
+        void process(File file) throws Exception;
+    }
+
+    /** Receives aggregated progress and per-file failures. */
+    public interface Listener {
+        /**
+         * Called as each file starts.
+         *
+         * @param started    number of files started so far, including {@code file}
+         * @param total      number of files in the batch
+         * @param file       the file that is starting
+         * @param bytesDone  summed size of files that have finished (successfully or not)
+         * @param bytesTotal summed size of all files in the batch
+         */
+        void onProgress(int started, int total, File file, long bytesDone, long bytesTotal);
+
+        /** Called when {@code file} failed; the batch continues with the next file. */
+        void onFailure(File file, Exception e);
+    }
+
+    /** Outcome counts of a finished batch. */
+    public static final class Result {
+        public final int succeeded;
+        public final int failed;
+
+        Result(int succeeded, int failed) {
+            this.succeeded = succeeded;
+            this.failed = failed;
+        }
+    }
+
+    private final int maxFiles;
+    private final int maxByteUnits;
+    private final BatchGovernor governor;
+
+    /** Creates a batch runner with {@link #DEFAULT_MAX_FILES} and {@link #DEFAULT_MAX_BYTES}. */
+    public CryptoBatch() {
+        this(DEFAULT_MAX_FILES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxFiles maximum number of files processed at once (at least 1)
+     * @param maxBytes maximum summed size of the files processed at once
+     */
+    public CryptoBatch(int maxFiles, long maxBytes) {
+        this(maxFiles, maxBytes, null);
+    }
+
+    /**
+     * @param maxFiles maximum number of files processed at once (at least 1)
+     * @param maxBytes maximum summed size of the files processed at once
+     * @param governor paces the batch by device conditions, or {@code null} for full speed
+     */
+    public CryptoBatch(int maxFiles, long maxBytes, BatchGovernor governor) {
+        if (maxFiles < 1) throw new IllegalArgumentException("maxFiles < 1: " + maxFiles);
+        if (maxBytes < 1) throw new IllegalArgumentException("maxBytes < 1: " + maxBytes);
+        this.maxFiles = maxFiles;
+        this.maxByteUnits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / BYTE_UNIT));
+        this.governor = governor;
+    }
+
+    /**
+     * Processes every file with {@code task} on {@code executor}, respecting the in-flight
+     * limits, and waits for all of them.
+     *
+     * @throws InterruptedException if the calling thread is interrupted, including while
+     *         the governor is paused; no further files are started, and files already
+     *         running are left to finish on the executor
+     */
+    public Result run(List<File> files, FileTask task, Executor executor, Listener listener)
+            throws InterruptedException {
+        int total = files.size();
+        long[] sizes = new long[total];
+        long bytesTotal = 0;
+        for (int i = 0; i < total; i++) {
+            sizes[i] = files.get(i).length();
+            bytesTotal += sizes[i];
+        }
+
+        Progress progress = new Progress(total, bytesTotal, listener);
+        Semaphore fileSlots = new Semaphore(maxFiles);
+        Semaphore byteSlots = new Semaphore(maxByteUnits);
+        CountDownLatch finished = new CountDownLatch(total);
+        int withheld = 0; // file slots the governor keeps out of use
+
+        for (int i = 0; i < total; i++) {
+            File file = files.get(i);
+            long size = sizes[i];
+            int units = byteUnits(size);
+
+            if (governor != null) {
+                // Files in flight finish while paused; the next one waits for the level to rise
+                int target = maxFiles - governor.awaitRunnable().files(maxFiles);
+                for (; withheld < target; withheld++) fileSlots.acquire(); // waits for a file
+                if (withheld > target) {
+                    fileSlots.release(withheld - target);
+                    withheld = target;
+                }
+            }
+            fileSlots.acquire();
+            try {
+                byteSlots.acquire(units);
+            } catch (InterruptedException e) {
+                fileSlots.release();
+                throw e;
+            }
+
+            progress.started(file);
+            Runnable work = () -> {
+                long started = governor != null ? governor.now() : 0;
+                try {
+                    task.process(file);
+                    progress.finished(file, size, null);
+                } catch (Exception e) {
+                    progress.finished(file, size, e);
+                } finally {
+                    // Resting only holds back files still to start; after the last, it
+                    // would just delay the batch's completion
+                    if (governor != null && !progress.allStarted()) rest(started);
+                    byteSlots.release(units);
+                    fileSlots.release();
+                    finished.countDown();
+                }
+            };
+            try {
+                executor.execute(work);
+            } catch (RejectedExecutionException e) {
+                work.run(); // executor shut down or saturated: do it on this thread
+            }
+        }
+
+        finished.await();
+        return progress.result();
+    }
+
+    /** Rests this worker, keeping its slots, as the governor's duty cycle asks. */
+    private void rest(long startedNanos) {
+        try {
+            governor.pace(startedNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // shutting down: hand the slots back now
+        }
+    }
+
+    private int byteUnits(long size) {
+        long units = Math.max(1, (size + BYTE_UNIT - 1) / BYTE_UNIT);
+        return (int) Math.min(units, maxByteUnits);
+    }
+
+    /** Aggregates counters and serializes listener callbacks. */
+    private static final class Progress {
+        private final int total;
+        private final long bytesTotal;
+        private final Listener listener;
+        private int started;
+        private int succeeded;
+        private int failed;
+        private long bytesDone;
+
+        Progress(int total, long bytesTotal, Listener listener) {
+            this.total = total;
+            this.bytesTotal = bytesTotal;
+            this.listener = listener;
+        }
+
+        synchronized void started(File file) {
+            started++;
+            listener.onProgress(started, total, file, bytesDone, bytesTotal);
+        }
+
+        synchronized void finished(File file, long size, Exception failure) {
+            bytesDone += size;
+            if (failure == null) {
+                succeeded++;
+            } else {
+                failed++;
+                listener.onFailure(file, failure);
+            }
+        }
+
+        synchronized boolean allStarted() {
+            return started == total;
+        }
+
+        synchronized Result result() {
+            return new Result(succeeded, failed);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.rulerhao.media_protector.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Chooses which JCE provider creates the ciphers of each primitive this module uses.
+ *
+ * <p>{@link Cipher#getInstance(String)} takes the first installed provider that offers the
+ * transformation. Whether that one is fast depends on the device. Conscrypt with the ARMv8
+ * AES instructions is an order of magnitude faster than a pure-Java implementation, and
+ * provider order differs between vendors and releases. {@link #calibrate()} times every
+ * provider that offers a primitive on a short in-memory workload and pins the fastest.
+ * {@link CipherPool} and {@link VaultKeys} then create their ciphers from it.
+ *
+ * <p>Calibration takes a few hundred milliseconds, so callers persist the outcome with
+ * {@link #exportSelection()} and restore it in later processes with
+ * {@link #importSelection(String)}. The import fails, and the caller calibrates again, if
+ * a pinned provider is gone or changed version, for example after a system update. A
+ * primitive no provider passed is recorded as unpinned, so it does not trigger another
+ * calibration on every launch. Until something is pinned, ciphers come from the default
+ * provider order as before.
+ *
+ * <p>A provider is only eligible if its output matches the default provider's on a known
+ * input, so a broken or incompatible implementation is never chosen.
+ */
+public final class CryptoProviders {
+
+    /** The cipher primitives this module creates. */
+    public enum Primitive {
+        /** Content encryption, header-only and full-content alike. */
+        CTR(CipherPool.TRANSFORMATION, 256 * 1024),
+        /** Data-key wrapping: one block, on a fresh cipher each time. */
+        WRAP(VaultKeys.WRAP, VaultKeys.KEY_SIZE);
+
+        final String transformation;
+        /** Bytes per timed operation, in the shape the primitive is really used. */
+        final int workSize;
+
+        Primitive(String transformation, int workSize) {
+            this.transformation = transformation;
+            this.workSize = workSize;
+        }
+
+        public String transformation() {
+            return transformation;
+        }
+    }
+
+    /** A provider chosen for a primitive, and how fast it was when measured. */
+    public static final class Selection {
+        public final String provider;
+        /** Throughput in MB/s, as measured by the calibration that chose it. */
+        public final double megabytesPerSecond;
+
+        Selection(String provider, double megabytesPerSecond) {
+            this.provider = provider;
+            this.megabytesPerSecond = megabytesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return provider + String.format(Locale.ROOT, " %.3g MB/s", megabytesPerSecond);
+        }
+    }
+
+    /** Time spent measuring each provider, after warm-up. */
+    private static final long MEASURE_NANOS = 40_000_000L;
+    private static final int WARM_UP_ROUNDS = 3;
+
+    private static final byte[] TEST_KEY = new byte[VaultKeys.KEY_SIZE];
+    private static final byte[] TEST_IV  = new byte[CipherPool.BLOCK_SIZE];
+
+    private static final Map<Primitive, Provider>  PINNED   = new EnumMap<>(Primitive.class);
+    private static final Map<Primitive, Selection> SELECTED = new EnumMap<>(Primitive.class);
+    /** Primitives a calibration left to the default provider order. */
+    private static final EnumSet<Primitive>        UNPINNED = EnumSet.noneOf(Primitive.class);
+
+    /** Stands for an unpinned primitive in an exported selection. */
+    private static final String NONE = "-";
+
+    static {
+        for (int i = 0; i < TEST_KEY.length; i++) TEST_KEY[i] = (byte) (i * 7 + 1);
+        for (int i = 0; i < TEST_IV.length; i++) TEST_IV[i] = (byte) (0xF0 + i);
+    }
+
+    private CryptoProviders() {}
+
+    // -------------------------------------------------------------------------
+    // Selection
+    // -------------------------------------------------------------------------
+
+    /**
+     * Times every provider that offers each primitive and pins the fastest. Blocks for a few
+     * hundred milliseconds and keeps a core busy; call it off the main thread.
+     *
+     * @return the selection per primitive; a primitive no provider passed is left unpinned
+     *         and missing
+     */
+    public static Map<Primitive, Selection> calibrate() {
+        Map<Primitive, Selection> result = new EnumMap<>(Primitive.class);
+        for (Primitive primitive : Primitive.values()) {
+            byte[] expected;
+            try {
+                expected = testVector(Cipher.getInstance(primitive.transformation));
+            } catch (GeneralSecurityException e) {
+                unpin(primitive); // nothing could use it anyway
+                continue;
+            }
+
+            Provider best = null;
+            double bestSpeed = 0;
+            for (Provider provider : Security.getProviders()) {
+                double speed = measure(primitive, provider, expected);
+                if (speed > bestSpeed) {
+                    best = provider;
+                    bestSpeed = speed;
+                }
+            }
+            if (best != null) {
+                Selection selection = new Selection(best.getName(), bestSpeed);
+                pin(primitive, best, selection);
+                result.put(primitive, selection);
+            } else {
+                unpin(primitive);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the pinned providers, and the primitives left unpinned, as a string for
+     * {@link #importSelection(String)}, or {@code null} if nothing was selected yet.
+     */
+    public static synchronized String exportSelection() {
+        if (PINNED.isEmpty() && UNPINNED.isEmpty()) return null;
+        StringBuilder sb = new StringBuilder();
+        for (Primitive primitive : Primitive.values()) {
+            Provider p = PINNED.get(primitive);
+            if (p == null && !UNPINNED.contains(primitive)) continue;
+            if (sb.length() > 0) sb.append(';');
+            sb.append(primitive.name()).append('=');
+            if (p == null) {
+                sb.append(NONE);
+            } else {
+                sb.append(p.getName())
+                        .append('/').append(stamp(p))
+                        .append('/').append(SELECTED.get(primitive).megabytesPerSecond);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Pins the providers {@link #exportSelection()} recorded.
+     *
+     * @return {@code false}, pinning nothing, if {@code exported} is malformed, misses a
+     *         primitive, or names a provider that is no longer installed in that version;
+     *         the caller should {@link #calibrate()} again
+     */
+    public static boolean importSelection(String exported) {
+        if (exported == null) return false;
+        Map<Primitive, Provider> providers = new EnumMap<>(Primitive.class);
+        Map<Primitive, Selection> selections = new EnumMap<>(Primitive.class);
+        EnumSet<Primitive> unpinned = EnumSet.noneOf(Primitive.class);
+        try {
+            for (String entry : exported.split(";")) {
+                int eq = entry.indexOf('=');
+                if (eq <= 0) return false;
+                Primitive primitive = Primitive.valueOf(entry.substring(0, eq));
+                if (entry.substring(eq + 1).equals(NONE)) {
+                    unpinned.add(primitive);
+                    continue;
+                }
+                String[] fields = entry.substring(eq + 1).split("/");
+                if (fields.length != 3) return false;
+                Provider provider = Security.getProvider(fields[0]);
+                if (provider == null || !stamp(provider).equals(fields[1])) return false;
+                Cipher.getInstance(primitive.transformation, provider); // still offered?
+                providers.put(primitive, provider);
+                selections.put(primitive, new Selection(fields[0], Double.parseDouble(fields[2])));
+            }
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            return false;
+        }
+        if (providers.size() + unpinned.size() != Primitive.values().length) return false;
+        for (Primitive primitive : providers.keySet()) {
+            pin(primitive, providers.get(primitive), selections.get(primitive));
+        }
+        for (Primitive primitive : unpinned) unpin(primitive);
+        return true;
+    }
+
+    /** The selection pinned for {@code primitive}, or {@code null} if none is. */
+    public static synchronized Selection selection(Primitive primitive) {
+        return SELECTED.get(primitive);
+    }
+
+    private static synchronized void pin(Primitive primitive, Provider provider,
+                                         Selection selection) {
+        PINNED.put(primitive, provider);
+        SELECTED.put(primitive, selection);
+        UNPINNED.remove(primitive);
+    }
+
+    private static synchronized void unpin(Primitive primitive) {
+        PINNED.remove(primitive);
+        SELECTED.remove(primitive);
+        UNPINNED.add(primitive);
+    }
+
+    /**
+     * Identifies the build of {@code provider}, so an import notices when a system update
+     * replaced it. Reads the version property every provider registers rather than the
+     * deprecated {@code getVersion()}, and adds the description, which names the build
+     * for some providers.
+     */
+    private static String stamp(Provider provider) {
+        String id = provider.getName() + '\n' + provider.getProperty("Provider.id version")
+                + '\n' + provider.getInfo();
+        return Integer.toHexString(id.hashCode());
+    }
+
+    // -------------------------------------------------------------------------
+    // Cipher creation (package-private)
+    // -------------------------------------------------------------------------
+
+    /** Creates a cipher for {@code primitive} from its pinned provider, or the default one. */
+    static Cipher newCipher(Primitive primitive) throws GeneralSecurityException {
+        Provider provider = pinned(primitive);
+        return provider != null
+                ? Cipher.getInstance(primitive.transformation, provider)
+                : Cipher.getInstance(primitive.transformation);
+    }
+
+    /**
+     * {@code true} if {@code cipher} comes from the provider pinned for {@code primitive}, or
+     * nothing is pinned. Lets pools drop ciphers created before a calibration finished.
+     */
+    static boolean isPinned(Cipher cipher, Primitive primitive) {
+        Provider provider = pinned(primitive);
+        return provider == null || cipher.getProvider() == provider;
+    }
+
+    private static synchronized Provider pinned(Primitive primitive) {
+        return PINNED.get(primitive);
+    }
+
+    // -------------------------------------------------------------------------
+    // Measurement
+    // -------------------------------------------------------------------------
+
+    /**
+     * Returns the throughput of {@code provider} for {@code primitive} in MB/s, or 0 if it
+     * does not offer the primitive, fails, or disagrees with {@code expected}.
+     */
+    private static double measure(Primitive primitive, Provider provider, byte[] expected) {
+        try {
+            Cipher cipher = Cipher.getInstance(primitive.transformation, provider);
+            if (!Arrays.equals(testVector(cipher), expected)) return 0;
+
+            byte[] buf = new byte[primitive.workSize];
+            SecretKeySpec key = new SecretKeySpec(TEST_KEY, "AES");
+            for (int i = 0; i < WARM_UP_ROUNDS; i++) runOnce(primitive, provider, cipher, key, buf);
+
+            long bytes = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                runOnce(primitive, provider, cipher, key, buf);
+                bytes += buf.length;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < MEASURE_NANOS);
+            return bytes / (elapsed / 1e9) / (1024 * 1024);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return 0; // not offered, or rejects plain key material (e.g. a keystore provider)
+        }
+    }
+
+    /** One unit of work, shaped like the primitive's real use. */
+    private static void runOnce(Primitive primitive, Provider provider, Cipher cipher,
+                                SecretKeySpec key, byte[] buf) throws GeneralSecurityException {
+        switch (primitive) {
+            case CTR:
+                // Pooled cipher, re-initialised per file, transformed in place
+                CipherPool.init(cipher, key, TEST_IV);
+                CipherPool.apply(cipher, buf, 0, buf.length);
+                break;
+            case WRAP:
+                // VaultKeys creates a cipher per wrap, so creation is part of the cost
+                Cipher wrap = Cipher.getInstance(primitive.transformation, provider);
+                wrap.init(Cipher.ENCRYPT_MODE, key);
+                wrap.doFinal(buf, 0, buf.length, buf, 0);
+                break;
+        }
+    }
+
+    /** Output of {@code cipher} on a fixed key, counter and input, to compare providers. */
+    private static byte[] testVector(Cipher cipher) throws GeneralSecurityException {
+        SecretKeySpec key = new SecretKeySpec(TEST_KEY, "AES");
+        byte[] data = new byte[3 * CipherPool.BLOCK_SIZE];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        if (cipher.getAlgorithm().contains("/CTR/")) {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(TEST_IV));
+        } else {
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+        }
+        return cipher.doFinal(data);
+    }
+}
@@ -0,0 +1,605 @@
+package com.rulerhao.media_protector.crypto;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one encrypted payload per distinct content in a vault, with every protected copy
+ * of it stored as a small reference file.
+ *
+ * <p>A reference keeps its usual {@code .mprot} name, so listing, albums and moves treat it
+ * like any other protected file. Its content is the payload's path relative to the vault
+ * plus a footer:
+ * <pre>
+ *   [UTF-8 payload path][4-byte path length][8-byte magic "MPROTREF"]
+ * </pre>
+ * The vault is the nearest folder above the reference that holds a {@link #DIRECTORY_NAME}
+ * folder, so references survive the vault being moved or restored to another volume.
+ * References written with an absolute path are still read; once nothing is at that path,
+ * the payload is looked up by name in the same way.
+ * {@link HeaderObfuscator} and the stream factories call {@link #resolve(File)}, so reads,
+ * exports, verification and re-keying act on the payload. Unprotecting a reference copies
+ * the payload out instead of renaming it.
+ *
+ * <p>Payloads sit in the hidden {@link #DIRECTORY_NAME} folder of the vault and are
+ * addressed by content length, as {@code <length>-<n><ext>.mprot}. A new file is compared
+ * byte for byte with the stored payloads of the same length, and the first match is reused.
+ * Only payloads encrypted in the encryptor's {@link HeaderObfuscator.Mode} qualify, so a
+ * file protected with full encryption never ends up sharing a header-only payload.
+ * Most payloads record a {@link ContentDigest} of their plaintext in the trailer. Once a
+ * candidate has one, the new file is digested too, and only candidates with the same digest
+ * are compared; each comparison decrypts the payload, while the digest is read for free.
+ * Payloads without a digest, such as header-only in-place encrypts, are always compared.
+ * The new file is only digested when a candidate of its length exists, so a file with
+ * nothing to match is still never read before it is encrypted.
+ *
+ * <p>Nothing counts references. {@link #collect} walks the vault instead:
+ * <ul>
+ *   <li>a referenced payload is kept;</li>
+ *   <li>an unreferenced payload whose last reference was {@link #release released} is
+ *       deleted;</li>
+ *   <li>an unreferenced payload nobody released is content this class cannot account for,
+ *       such as a reference deleted with a file manager. It is left in place and
+ *       reported in {@link Collected#unaccounted}, since bringing it back would undo the
+ *       user's deletion.</li>
+ * </ul>
+ * Payloads touched within the last {@link #GRACE_MILLIS} are left alone, so a protect that
+ * is still running is never mistaken for any of these cases.
+ *
+ * <p>Instances are shared per vault ({@link #forVault}) and safe to use from several
+ * threads. Files of the same length are protected one at a time.
+ */
+public final class DedupStore {
+
+    /** Name of the payload folder inside the vault; hidden, so scans and albums skip it. */
+    public static final String DIRECTORY_NAME = ".store";
+
+    /** Files larger than this are never references. */
+    static final int MAX_REFERENCE_SIZE = 4096;
+
+    /** Payloads changed more recently than this are never collected. */
+    static final long GRACE_MILLIS = 10 * 60 * 1000L;
+
+    private static final byte[] MAGIC = {'M', 'P', 'R', 'O', 'T', 'R', 'E', 'F'};
+    private static final int FOOTER_SIZE = 4 + MAGIC.length;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String PAYLOAD_EXTENSION = ".mprot";
+    private static final String RELEASED_SUFFIX = ".released";
+    private static final String INCOMING_SUFFIX = ".incoming";
+    private static final int COMPARE_BUFFER = 64 * 1024;
+
+    private static final Map<File, DedupStore> STORES = new ConcurrentHashMap<>();
+
+    private final File vaultDir;
+    private final File dir;
+    private final Object[] locks = new Object[32];
+
+    /** Payloads by content length; built on first use, dropped by {@link #collect}. */
+    private Map<Long, List<File>> index;
+
+    private DedupStore(File vaultDir) {
+        this.vaultDir = vaultDir;
+        this.dir = new File(vaultDir, DIRECTORY_NAME);
+        for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+    }
+
+    /** Returns the store of the vault rooted at {@code vaultDir}. */
+    public static DedupStore forVault(File vaultDir) {
+        File key = vaultDir.getAbsoluteFile();
+        DedupStore store = STORES.get(key);
+        if (store == null) {
+            DedupStore created = new DedupStore(key);
+            store = STORES.putIfAbsent(key, created);
+            if (store == null) store = created;
+        }
+        return store;
+    }
+
+    // -------------------------------------------------------------------------
+    // References
+    // -------------------------------------------------------------------------
+
+    /** {@code true} if {@code file} is a reference to a stored payload. */
+    public static boolean isReference(File file) {
+        long length = file.length();
+        if (length < FOOTER_SIZE || length > MAX_REFERENCE_SIZE) return false;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] magic = new byte[MAGIC.length];
+            raf.seek(length - MAGIC.length);
+            raf.readFully(magic);
+            return Arrays.equals(magic, MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the payload {@code file} refers to, or {@code file} itself if it is not a
+     * reference.
+     *
+     * @throws FileNotFoundException if the payload is missing
+     */
+    public static File resolve(File file) throws IOException {
+        if (!isReference(file)) return file;
+        File payload = readReference(file);
+        if (!payload.isFile()) {
+            throw new FileNotFoundException("Missing payload " + payload + " of " + file);
+        }
+        return payload;
+    }
+
+    /**
+     * The size to show for {@code file}, whose own size is {@code size}: its payload's if it
+     * is a reference, else {@code size}. Only a {@code .mprot} file small enough to be a
+     * reference is opened to tell, so listings can call this for every file.
+     */
+    public static long displaySize(File file, long size) {
+        if (size < FOOTER_SIZE || size > MAX_REFERENCE_SIZE
+                || !file.getName().endsWith(PAYLOAD_EXTENSION) || !isReference(file)) {
+            return size;
+        }
+        try {
+            return resolve(file).length();
+        } catch (IOException e) {
+            return size; // the payload is missing; the reference is all there is
+        }
+    }
+
+    /**
+     * Records that {@code reference} is about to be unprotected or deleted, so that
+     * {@link #collect} may delete its payload once nothing else refers to it. Does nothing
+     * for a file that is not a reference. If the reference survives after all, its payload
+     * is kept.
+     */
+    public static void release(File reference) throws IOException {
+        if (!isReference(reference)) return;
+        File marker = new File(readReference(reference).getPath() + RELEASED_SUFFIX);
+        if (!marker.exists() && !marker.createNewFile() && !marker.exists()) {
+            throw new IOException("Cannot mark " + marker);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Protect
+    // -------------------------------------------------------------------------
+
+    /**
+     * Protects {@code plainFile} as {@code reference}. If its content is already stored it
+     * is not encrypted again: {@code reference} points at the stored payload and
+     * {@code plainFile} is deleted. Otherwise {@code plainFile} becomes a new payload, in
+     * place where possible (see {@link HeaderObfuscator#encryptInPlace(File, File)}).
+     *
+     * @return {@code true} if the content was already stored
+     */
+    public boolean protect(File plainFile, File reference, HeaderObfuscator encryptor)
+            throws IOException {
+        return protect(plainFile, reference, encryptor, null);
+    }
+
+    /**
+     * Crash-safe counterpart of {@link #protect(File, File, HeaderObfuscator)}: a new payload
+     * replaces {@code plainFile} only once {@code commit} has made it durable. Until then
+     * {@code reference} points at a payload that is not published yet.
+     */
+    public boolean protect(File plainFile, File reference, HeaderObfuscator encryptor,
+                           GroupCommit commit) throws IOException {
+        long length = plainFile.length();
+        File payload;
+        synchronized (lockFor(length)) {
+            File match = findMatch(length, encryptor, () -> digest(plainFile, length),
+                    p -> sameContent(plainFile, p));
+            if (match != null) {
+                reuse(match, reference);
+                if (!plainFile.delete() && plainFile.exists()) {
+                    throw new IOException("Cannot delete " + plainFile);
+                }
+                return true;
+            }
+            payload = newPayload(length, plainFile.getName());
+        }
+
+        // The reference goes first: if the encryption is cut short, the payload is recovered
+        // under its final name and the reference already points at it.
+        writeReference(reference, payload);
+        try {
+            if (commit != null) {
+                encryptor.encryptInPlace(plainFile, payload, commit, null);
+            } else if (!encryptor.encryptInPlace(plainFile, payload)) {
+                plainFile.delete();
+            }
+        } catch (IOException e) {
+            reference.delete();
+            forget(length, payload);
+            throw e;
+        }
+        return false;
+    }
+
+    /**
+     * Protects everything {@code in} delivers as {@code reference}, like
+     * {@link HeaderObfuscator#encrypt(InputStream, File)}. The length is only known at the
+     * end, so the content is always encrypted; a duplicate is then dropped in favour of the
+     * stored payload. {@code in} is read to the end but not closed.
+     *
+     * @return {@code true} if the content was already stored
+     */
+    public boolean protect(InputStream in, File reference, HeaderObfuscator encryptor)
+            throws IOException {
+        mkdirs();
+        File incoming = new File(dir, UUID.randomUUID() + INCOMING_SUFFIX);
+        try {
+            encryptor.encrypt(in, incoming);
+            // The stream encrypt always digests the content on the way
+            MprotLayout layout = MprotLayout.read(incoming);
+            long length = layout.contentLength();
+            synchronized (lockFor(length)) {
+                File match = findMatch(length, encryptor, layout::contentCrc,
+                        p -> sameContent(encryptor, incoming, p));
+                if (match != null) {
+                    reuse(match, reference);
+                    return true;
+                }
+                File payload = newPayload(length, reference.getName());
+                if (!incoming.renameTo(payload)) {
+                    forget(length, payload);
+                    throw new IOException("Cannot store " + payload);
+                }
+                writeReference(reference, payload);
+                return false;
+            }
+        } finally {
+            incoming.delete();
+        }
+    }
+
+    /** Points {@code reference} at {@code payload}, which a protect has just matched. */
+    private void reuse(File payload, File reference) throws IOException {
+        // Keep an in-progress collect from treating the payload as released or stale
+        payload.setLastModified(System.currentTimeMillis());
+        new File(payload.getPath() + RELEASED_SUFFIX).delete();
+        writeReference(reference, payload);
+    }
+
+    // -------------------------------------------------------------------------
+    // Collect
+    // -------------------------------------------------------------------------
+
+    /** Outcome of {@link #collect}. */
+    public static final class Collected {
+        /** Payloads deleted because all their references were released. */
+        public final int deleted;
+        /** Unreferenced payloads that nobody released; they were left in place. */
+        public final List<File> unaccounted;
+
+        Collected(int deleted, List<File> unaccounted) {
+            this.deleted = deleted;
+            this.unaccounted = unaccounted;
+        }
+    }
+
+    /**
+     * Deletes payloads whose references were all released, reports payloads nobody accounts
+     * for, and finishes protects a crash cut short (see the class comment). Must not run
+     * concurrently with a walk that moves references out of the vault.
+     */
+    public Collected collect(HeaderObfuscator obfuscator) throws IOException {
+        List<File> unaccounted = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) return new Collected(0, unaccounted);
+        long cutoff = System.currentTimeMillis() - GRACE_MILLIS;
+
+        // Staged payloads first, so they are judged under their final names below
+        for (File file : files) {
+            if (HeaderObfuscator.isStaged(file) && file.lastModified() < cutoff) {
+                obfuscator.recover(file);
+            }
+        }
+
+        Set<File> referenced = new HashSet<>();
+        collectReferences(vaultDir, referenced);
+
+        int deleted = 0;
+        files = dir.listFiles();
+        if (files == null) return new Collected(0, unaccounted);
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(RELEASED_SUFFIX)) {
+                if (!new File(dir, name.substring(0, name.length() - RELEASED_SUFFIX.length()))
+                        .exists()) {
+                    file.delete();
+                }
+                continue;
+            }
+            if (!file.isFile() || file.lastModified() >= cutoff) continue;
+            if (name.endsWith(INCOMING_SUFFIX)) {
+                file.delete(); // a stream protect that never finished
+                continue;
+            }
+            synchronized (lockFor(file.length())) {
+                File marker = new File(file.getPath() + RELEASED_SUFFIX);
+                if (referenced.contains(file.getAbsoluteFile())) {
+                    marker.delete();
+                } else if (marker.exists()) {
+                    if (file.delete()) {
+                        marker.delete();
+                        deleted++;
+                    }
+                } else {
+                    unaccounted.add(file);
+                }
+            }
+        }
+        synchronized (this) {
+            index = null;
+        }
+        return new Collected(deleted, unaccounted);
+    }
+
+    /** Adds the payload of every reference under {@code dir}, the store excepted. */
+    private void collectReferences(File dir, Set<File> referenced) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                if (!child.equals(this.dir)) collectReferences(child, referenced);
+            } else if (isReference(child)) {
+                referenced.add(readReference(child).getAbsoluteFile());
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Payload index
+    // -------------------------------------------------------------------------
+
+    private interface Matcher {
+        boolean matches(File payload) throws IOException;
+    }
+
+    /** Supplies the {@link ContentDigest} value of the content being protected. */
+    private interface Digester {
+        int digest() throws IOException;
+    }
+
+    /**
+     * Returns the first stored payload of {@code length} bytes, encrypted in the mode of
+     * {@code encryptor}, that {@code matcher} accepts. A payload whose trailer records a
+     * content digest other than {@code incoming}'s is skipped without asking
+     * {@code matcher}; {@code incoming} is asked at most once, and only for such a payload.
+     */
+    private File findMatch(long length, HeaderObfuscator encryptor, Digester incoming,
+                           Matcher matcher) throws IOException {
+        boolean full = encryptor.mode() == HeaderObfuscator.Mode.FULL_CONTENT;
+        List<File> candidates;
+        synchronized (this) {
+            List<File> known = index().get(length);
+            candidates = known != null ? new ArrayList<>(known) : new ArrayList<File>();
+        }
+        Integer digest = null;
+        for (File candidate : candidates) {
+            if (!candidate.isFile()) continue; // staged or removed
+            try {
+                MprotLayout layout = MprotLayout.read(candidate);
+                // Sharing a weaker payload would silently lower the file's protection
+                if (layout.isFullContent() != full) continue;
+                if (layout.hasContentCrc()) {
+                    if (digest == null) digest = incoming.digest();
+                    if (layout.contentCrc() != digest) continue; // different content
+                }
+                if (matcher.matches(candidate)) return candidate;
+            } catch (VaultLockedException e) {
+                // Stored under a master key this session does not hold; cannot compare
+            }
+        }
+        return null;
+    }
+
+    /** Picks and reserves a free payload name for content of {@code length} bytes. */
+    private synchronized File newPayload(long length, String originalName) throws IOException {
+        mkdirs();
+        String ext = extensionOf(HeaderObfuscator.isObfuscated(new File(originalName))
+                ? HeaderObfuscator.getOriginalName(new File(originalName))
+                : originalName);
+        List<File> known = index().get(length);
+        if (known == null) {
+            known = new ArrayList<>();
+            index.put(length, known);
+        }
+        for (int n = 0; ; n++) {
+            File payload = new File(dir, length + "-" + n + ext + PAYLOAD_EXTENSION);
+            if (!known.contains(payload) && !payload.exists()
+                    && !new File(payload.getPath() + RELEASED_SUFFIX).exists()) {
+                known.add(payload);
+                return payload;
+            }
+        }
+    }
+
+    private synchronized void forget(long length, File payload) {
+        List<File> known = index().get(length);
+        if (known != null) known.remove(payload);
+    }
+
+    /** Payloads by length, listed from the store directory on first use. */
+    private Map<Long, List<File>> index() {
+        if (index == null) {
+            index = new HashMap<>();
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    long length = lengthOf(file.getName());
+                    if (length < 0) continue;
+                    List<File> known = index.get(length);
+                    if (known == null) {
+                        known = new ArrayList<>();
+                        index.put(length, known);
+                    }
+                    known.add(file);
+                }
+            }
+        }
+        return index;
+    }
+
+    /** Content length encoded in a payload name, or -1 if {@code name} is not a payload. */
+    private static long lengthOf(String name) {
+        if (!name.endsWith(PAYLOAD_EXTENSION)) return -1;
+        int dash = name.indexOf('-');
+        if (dash <= 0) return -1;
+        try {
+            return Long.parseLong(name.substring(0, dash));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String extensionOf(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(dot).toLowerCase(Locale.ROOT) : "";
+    }
+
+    private Object lockFor(long length) {
+        return locks[(int) ((length ^ (length >>> 32)) & (locks.length - 1))];
+    }
+
+    private void mkdirs() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Cannot create " + dir);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Content comparison
+    // -------------------------------------------------------------------------
+
+    /** The {@link ContentDigest} value of the {@code length} bytes of {@code plainFile}. */
+    private static int digest(File plainFile, long length) throws IOException {
+        ContentDigest digest = new ContentDigest(length);
+        byte[] buf = new byte[COMPARE_BUFFER];
+        try (InputStream in = new FileInputStream(plainFile)) {
+            long remaining = length;
+            while (remaining > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (n < 0) break; // shrank meanwhile: the digest then matches nothing
+                digest.update(buf, 0, n);
+                remaining -= n;
+            }
+        }
+        return digest.value();
+    }
+
+    private static boolean sameContent(File plainFile, File payload) throws IOException {
+        try (InputStream a = new FileInputStream(plainFile);
+             InputStream b = new HeaderObfuscator().getDecryptedStream(payload)) {
+            return sameContent(a, b);
+        }
+    }
+
+    private static boolean sameContent(HeaderObfuscator obfuscator, File encrypted, File payload)
+            throws IOException {
+        try (InputStream a = obfuscator.getDecryptedStream(encrypted);
+             InputStream b = obfuscator.getDecryptedStream(payload)) {
+            return sameContent(a, b);
+        }
+    }
+
+    /** Compares two streams of the same length block by block, stopping at the first difference. */
+    private static boolean sameContent(InputStream a, InputStream b) throws IOException {
+        byte[] bufA = new byte[COMPARE_BUFFER];
+        byte[] bufB = new byte[COMPARE_BUFFER];
+        while (true) {
+            int n = readBlock(a, bufA);
+            if (n != readBlock(b, bufB)) return false;
+            if (n <= 0) return true;
+            for (int i = 0; i < n; i++) {
+                if (bufA[i] != bufB[i]) return false;
+            }
+        }
+    }
+
+    private static int readBlock(InputStream in, byte[] buf) throws IOException {
+        int total = 0;
+        while (total < buf.length) {
+            int n = in.read(buf, total, buf.length - total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    // -------------------------------------------------------------------------
+    // Reference file format
+    // -------------------------------------------------------------------------
+
+    private static File readReference(File reference) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(reference, "r")) {
+            long length = raf.length();
+            raf.seek(length - FOOTER_SIZE);
+            int pathLength = raf.readInt();
+            if (pathLength <= 0 || pathLength > length - FOOTER_SIZE) {
+                throw new IOException("Corrupt reference " + reference);
+            }
+            byte[] path = new byte[pathLength];
+            raf.seek(length - FOOTER_SIZE - pathLength);
+            raf.readFully(path);
+            String stored = new String(path, UTF_8);
+            File recorded = new File(stored);
+            if (!recorded.isAbsolute()) return inVault(reference, stored);
+            // Written by an earlier version: the vault may have moved since
+            if (recorded.exists()) return recorded;
+            File moved = inVault(reference, relativePath(recorded));
+            return moved.exists() ? moved : recorded;
+        }
+    }
+
+    /** Resolves {@code relativePath} against the vault that holds {@code reference}. */
+    private static File inVault(File reference, String relativePath) {
+        File parent = reference.getAbsoluteFile().getParentFile();
+        for (File dir = parent; dir != null; dir = dir.getParentFile()) {
+            if (new File(dir, DIRECTORY_NAME).isDirectory()) return new File(dir, relativePath);
+        }
+        return new File(parent, relativePath);
+    }
+
+    /** Path of {@code payload}, which lies in a store folder, relative to its vault. */
+    private static String relativePath(File payload) {
+        return DIRECTORY_NAME + "/" + payload.getName();
+    }
+
+    /** Writes {@code reference} durably under a temporary name, then renames it into place. */
+    private static void writeReference(File reference, File payload) throws IOException {
+        byte[] path = relativePath(payload).getBytes(UTF_8);
+        if (path.length + FOOTER_SIZE > MAX_REFERENCE_SIZE) {
+            throw new IOException("Payload path too long: " + payload);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(path.length + FOOTER_SIZE);
+        buf.put(path).putInt(path.length).put(MAGIC).flip();
+
+        File temp = new File(reference.getParentFile(), reference.getName() + INCOMING_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+            raf.setLength(0);
+            MprotLayout.writeFully(raf.getChannel(), buf, 0);
+            raf.getFD().sync();
+        }
+        if (!temp.renameTo(reference)) {
+            temp.delete();
+            throw new IOException("Cannot write reference " + reference);
+        }
+    }
+}
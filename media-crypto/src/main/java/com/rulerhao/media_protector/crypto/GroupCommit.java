@@ -0,0 +1,262 @@
+package com.rulerhao.media_protector.crypto;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes staged files durable in groups, then publishes them under their final names.
+ *
+ * <p>The crash-safe {@link HeaderObfuscator} operations never write under a final name.
+ * They stage each result under a temporary name and register it here. A group is committed
+ * once {@code maxFiles} files are pending, or once the oldest pending one has waited
+ * {@code maxDelayMillis}, even if no further file is added. Any remainder is committed by
+ * {@link #flush()} or {@link #close()}. For each file in the group a commit runs these
+ * steps in order:
+ * <ol>
+ *   <li>fsync the staged file;</li>
+ *   <li>rename it to its target atomically;</li>
+ *   <li>delete the file it replaces (the original), if any, and run its callback.</li>
+ * </ol>
+ * Crashing at any point leaves either the untouched original or a staged file that
+ * {@link HeaderObfuscator#recover(File)} can finish. It never leaves a truncated file under
+ * a final name with the original already gone.
+ *
+ * <p>Why groups: an fsync per file serialises the batch on storage flushes. On a journaling
+ * file system (ext4, f2fs) the first fsync of a group commits the journal with the data of
+ * every file written so far, so the remaining fsyncs of the group are mostly no-ops. Java
+ * cannot fsync a directory, so the renames rely on the file system committing metadata
+ * operations in order. ext4 and f2fs do, so an original's unlink never becomes durable
+ * before the rename that replaced it.
+ *
+ * <p>Safe to use from several threads; the thread whose {@code add} fills a group commits it.
+ * A group that ages out is committed on a shared timer thread.
+ */
+public final class GroupCommit implements Closeable {
+
+    /** Default number of files per fsync round. */
+    public static final int  DEFAULT_MAX_FILES = 32;
+    /** Default maximum age of a pending file before its group is committed. */
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 1000;
+
+    /** Staged files that an operation or a pending group still owns; recovery skips them. */
+    private static final Set<File> IN_FLIGHT = ConcurrentHashMap.newKeySet();
+
+    private static final ScheduledExecutorService TIMER =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "mprot-group-commit");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final int  maxFiles;
+    private final long maxDelayNanos;
+
+    private List<Entry> pending = new ArrayList<>();
+    private long oldestNanos;
+    /** Counts drained groups, so a timer can tell whether its group is still pending. */
+    private long generation;
+    /** Groups the timer is committing; {@link #flush()} waits for them. */
+    private int timerCommits;
+    private IOException failure;
+
+    /** Creates a group commit with {@link #DEFAULT_MAX_FILES} and {@link #DEFAULT_MAX_DELAY_MILLIS}. */
+    public GroupCommit() {
+        this(DEFAULT_MAX_FILES, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * @param maxFiles       files per fsync round; 1 makes every file durable on its own
+     * @param maxDelayMillis age of the oldest pending file that triggers a commit
+     */
+    public GroupCommit(int maxFiles, long maxDelayMillis) {
+        if (maxFiles < 1) throw new IllegalArgumentException("maxFiles < 1: " + maxFiles);
+        this.maxFiles = maxFiles;
+        this.maxDelayNanos = maxDelayMillis * 1_000_000L;
+    }
+
+    /**
+     * Marks {@code staged} as owned by a running operation, so a concurrent
+     * {@link HeaderObfuscator#recover(File)} leaves it alone. Ownership ends when its group
+     * is committed, or with {@link #release(File)} if it is never registered.
+     */
+    static void claim(File staged) {
+        IN_FLIGHT.add(staged);
+    }
+
+    static void release(File staged) {
+        IN_FLIGHT.remove(staged);
+    }
+
+    static boolean isClaimed(File staged) {
+        return IN_FLIGHT.contains(staged);
+    }
+
+    /**
+     * Registers a claimed staged file. Once its group is durable, {@code staged} is renamed to
+     * {@code target}. Then {@code obsolete} is deleted if it still exists, and
+     * {@code onDurable} runs. Both may be {@code null}.
+     *
+     * <p>Failures while committing a group do not surface here, because they usually concern
+     * other callers' files. They are reported by the next {@link #flush()}.
+     */
+    void add(File staged, File target, File obsolete, Runnable onDurable) {
+        List<Entry> group = null;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (pending.isEmpty()) {
+                oldestNanos = now;
+                if (maxFiles > 1) {
+                    long due = generation;
+                    TIMER.schedule(() -> commitAged(due), maxDelayNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+            pending.add(new Entry(staged, target, obsolete, onDurable));
+            if (pending.size() >= maxFiles || now - oldestNanos >= maxDelayNanos) {
+                group = drain();
+            }
+        }
+        if (group != null) record(commit(group));
+    }
+
+    /** Commits the pending group if it is still the one of generation {@code due}. */
+    private void commitAged(long due) {
+        List<Entry> group;
+        synchronized (this) {
+            if (generation != due || pending.isEmpty()) return;
+            group = drain();
+            timerCommits++;
+        }
+        IOException e = commit(group);
+        synchronized (this) {
+            if (e != null) failure = chain(failure, e);
+            timerCommits--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Commits every pending file now.
+     *
+     * @throws IOException if any file committed since the last flush could not be made
+     *         durable or published; such files stay staged for {@link HeaderObfuscator#recover}
+     */
+    public void flush() throws IOException {
+        List<Entry> group;
+        synchronized (this) {
+            group = drain();
+        }
+        record(commit(group));
+
+        IOException e;
+        synchronized (this) {
+            // A group the timer took is not published until its commit returns
+            boolean interrupted = false;
+            while (timerCommits > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            e = failure;
+            failure = null;
+        }
+        if (e != null) throw e;
+    }
+
+    /** Same as {@link #flush()}. */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private synchronized void record(IOException e) {
+        if (e != null) failure = chain(failure, e);
+    }
+
+    private List<Entry> drain() {
+        List<Entry> group = pending;
+        pending = new ArrayList<>();
+        generation++;
+        return group;
+    }
+
+    /**
+     * Commits {@code group}. A file that fails to sync or rename stays staged, and its
+     * original and callback are left alone; the rest of the group carries on.
+     *
+     * @return the first failure, with later ones suppressed, or {@code null}
+     */
+    private static IOException commit(List<Entry> group) {
+        if (group.isEmpty()) return null;
+        IOException failure = null;
+
+        for (Entry e : group) {
+            try {
+                sync(e.staged);
+            } catch (IOException ex) {
+                e.failed = true;
+                failure = chain(failure, ex);
+            }
+        }
+
+        for (Entry e : group) {
+            if (e.failed) continue;
+            if (!e.staged.renameTo(e.target)) {
+                e.failed = true;
+                failure = chain(failure,
+                        new IOException("Could not rename " + e.staged + " to " + e.target));
+            }
+        }
+
+        for (Entry e : group) {
+            if (e.failed) continue;
+            if (e.obsolete != null && e.obsolete.exists() && !e.obsolete.delete()) {
+                failure = chain(failure, new IOException("Could not delete " + e.obsolete));
+            }
+            if (e.onDurable != null) e.onDurable.run();
+        }
+
+        for (Entry e : group) {
+            release(e.staged);
+        }
+        return failure;
+    }
+
+    private static void sync(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            in.getFD().sync();
+        }
+    }
+
+    private static IOException chain(IOException first, IOException next) {
+        if (first == null) return next;
+        first.addSuppressed(next);
+        return first;
+    }
+
+    private static final class Entry {
+        final File     staged;
+        final File     target;
+        final File     obsolete;
+        final Runnable onDurable;
+        boolean        failed;
+
+        Entry(File staged, File target, File obsolete, Runnable onDurable) {
+            this.staged    = staged;
+            this.target    = target;
+            this.obsolete  = obsolete;
+            this.onDurable = onDurable;
+        }
+    }
+}
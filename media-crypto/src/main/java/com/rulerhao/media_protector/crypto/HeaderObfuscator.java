@@ -1,37 +1,90 @@
 package com.rulerhao.media_protector.crypto;
 
+import static com.rulerhao.media_protector.crypto.MprotLayout.HEADER_SIZE;
+import static com.rulerhao.media_protector.crypto.MprotLayout.NONCE_SIZE;
+
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
 
 import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
- * Protects media files by AES-128-CTR-encrypting the first 1 KB of the file
- * and prepending a random 16-byte nonce.
+ * Protects media files by AES-128-CTR-encrypting the first 1 KB of the file and the
+ * container's structure and metadata (see {@link ContainerRanges}) under a random 16-byte
+ * nonce, or the whole file in {@link Mode#FULL_CONTENT} mode.
+ *
+ * File format (.mprot), see {@link MprotLayout} for details:
+ *   [original content, its first min(fileSize, 1024) bytes and metadata ranges
+ *    AES-128-CTR encrypted (everything, in FULL_CONTENT mode)]
+ *   [trailer carrying the nonce, mode and range map]
+ *
+ * Files written by older versions carry the nonce as a 16-byte prefix instead; they are
+ * still read and decrypted transparently.
+ *
+ * The crash-safe overloads taking a {@link GroupCommit} never write under a final name: the
+ * result is staged next to it and published once its group is durable, and
+ * {@link #recover(File)} finishes whatever a crash interrupted.
  *
- * File format (.mprot):
- *   [16-byte nonce][AES-128-CTR ciphertext of first min(fileSize, 1024) bytes of original]
- *   [remaining original bytes unchanged]
+ * Because only the header, the metadata and the trailer differ from the original,
+ * {@link #encryptInPlace} and {@link #decryptInPlace} protect or restore a file of any size
+ * by touching a few KB, or for a video the size of its {@code moov} box.
+ * Full-content files are processed in parallel 1 MB chunks (see {@link ChunkedCtr}); decryption
+ * always follows the mode recorded in the file, so both kinds can live side by side.
  *
- * Security note: the AES key is hardcoded in this binary. This provides obfuscation
- * against casual inspection and prevents standard media players from opening the files,
- * but is NOT suitable for protecting sensitive content. For stronger security, derive
- * the key from a user passphrase using PBKDF2 or Argon2.
+ * Keys: each new file is encrypted under its own random data key, stored in the trailer
+ * wrapped under a master key (see {@link VaultKeys}). Once the vault is unlocked with a
+ * PIN-derived master key that wrapping is what protects the content; {@link #rewrap(File)}
+ * moves a file to a new master key by rewriting 20 bytes.
+ *
+ * Security note: files written before key wrapping, and files wrapped while no master key
+ * is unlocked, depend on a key hardcoded in this binary. That provides obfuscation against
+ * casual inspection and prevents standard media players from opening the files, but is NOT
+ * suitable for protecting sensitive content.
  */
 public class HeaderObfuscator {
 
-    private static final int HEADER_SIZE = 1024; // bytes to encrypt
-    private static final int NONCE_SIZE  = 16;   // AES-CTR nonce length
+    /** What part of a file {@link #encrypt} and {@link #encryptInPlace} encrypt. */
+    public enum Mode {
+        /**
+         * The first 1 KB and the container metadata (MP4 {@code moov}, HEIF {@code meta} and
+         * Exif, JPEG segments) — breaks media parsers and hides tags such as the location,
+         * while the media payload stays as it is. Costs the metadata's size in I/O.
+         */
+        HEADER_ONLY,
+        /** Every byte — real confidentiality, costs one read and write of the whole file. */
+        FULL_CONTENT
+    }
+
+    /** Outcome of {@link #verify(File)}. */
+    public enum Integrity {
+        /** Every checksum recorded in the file matches its content. */
+        INTACT,
+        /** A recorded checksum does not match, or the file could not be read to the end. */
+        DAMAGED,
+        /** The file records no checksum (written by an older version); nothing to check. */
+        UNVERIFIED
+    }
 
-    // 128-bit hardcoded key — replace with passphrase derivation for real security.
+    // 128-bit hardcoded key: encrypts legacy files and is the built-in master key.
     private static final byte[] AES_KEY = {
         (byte) 0x4D, (byte) 0x65, (byte) 0x64, (byte) 0x69,
         (byte) 0x61, (byte) 0x50, (byte) 0x72, (byte) 0x6F,
@@ -39,8 +92,43 @@ public class HeaderObfuscator {
         (byte) 0x6F, (byte) 0x72, (byte) 0x4B, (byte) 0x65
     };
 
+    static final SecretKey KEY = new SecretKeySpec(AES_KEY, "AES");
+
     private static final SecureRandom RANDOM = new SecureRandom();
 
+    /** Buffer size for {@link #encrypt(InputStream, File)}; large writes keep the copy sequential. */
+    private static final int STREAM_BUFFER_SIZE = 256 * 1024;
+
+    /** Suffix of a file being rewritten in place; it holds the only copy of its content. */
+    private static final String STAGED_SUFFIX = ".mprot-staged";
+    /** Suffix of a copy being written; its source is untouched, so it can be discarded. */
+    private static final String TEMP_SUFFIX   = ".mprot-tmp";
+
+    /** Per-thread header scratch buffer; encrypt/decrypt never keep it beyond one call. */
+    private static final ThreadLocal<byte[]> HEADER_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[HEADER_SIZE];
+        }
+    };
+
+    private final Mode mode;
+
+    /** Creates an obfuscator that encrypts new files in {@link Mode#HEADER_ONLY} mode. */
+    public HeaderObfuscator() {
+        this(Mode.HEADER_ONLY);
+    }
+
+    /** Creates an obfuscator that encrypts new files in the given mode. */
+    public HeaderObfuscator(Mode mode) {
+        this.mode = mode;
+    }
+
+    /** The mode new files are encrypted in. */
+    Mode mode() {
+        return mode;
+    }
+
     // -------------------------------------------------------------------------
     // Public API
     // -------------------------------------------------------------------------
@@ -50,37 +138,113 @@ public class HeaderObfuscator {
      * The caller is responsible for deleting {@code plainFile} afterwards if desired.
      */
     public void encrypt(File plainFile, File encryptedFile) throws IOException {
-        byte[] nonce = new byte[NONCE_SIZE];
-        RANDOM.nextBytes(nonce);
+        byte[] nonce = newNonce();
+        VaultKeys.DataKey dataKey = VaultKeys.newDataKey();
 
-        try (FileInputStream fis = new FileInputStream(plainFile);
-             FileOutputStream fos = new FileOutputStream(encryptedFile)) {
+        try (RandomAccessFile in = new RandomAccessFile(plainFile, "r");
+             RandomAccessFile out = new RandomAccessFile(encryptedFile, "rw")) {
+            out.setLength(0);
+            FileChannel src = in.getChannel();
+            FileChannel dst = out.getChannel();
+            long size = src.size();
 
-            // Write nonce
-            fos.write(nonce);
-
-            // Read up to HEADER_SIZE bytes, encrypt, write
-            byte[] header = new byte[HEADER_SIZE];
-            int headerRead = readFully(fis, header);
-            if (headerRead > 0) {
-                byte[] encrypted = applyAesCtr(nonce, header, headerRead);
-                fos.write(encrypted, 0, headerRead);
+            // Every plaintext byte passes through memory on the way, so digest it as it goes
+            ContentDigest digest = new ContentDigest(size);
+            int headerCrc = headerCrc(src, 0, size);
+            int flags = trailerFlags() | MprotLayout.FLAG_CONTENT_CRC;
+            if (mode == Mode.FULL_CONTENT) {
+                transformContent(src, 0, dst, 0, size, dataKey.key, nonce, digest);
+                MprotLayout.writeTrailer(dst, size, nonce, flags, headerCrc, digest.value(),
+                        RangeMap.EMPTY, null, dataKey);
+                return;
             }
 
-            // Stream remaining bytes unchanged via NIO channel (efficient for large files).
-            // Channels share the file descriptor with fis/fos; closing the outer streams
-            // closes the channels, so no separate try-with-resources needed here.
-            fos.flush();
-            FileChannel srcChannel = fis.getChannel();
-            FileChannel dstChannel = fos.getChannel();
-            long remaining = srcChannel.size() - srcChannel.position();
-            if (remaining > 0) {
-                dstChannel.position(dstChannel.size());
-                srcChannel.transferTo(srcChannel.position(), remaining, dstChannel);
+            // Copy the content unchanged, then encrypt the header and metadata in the copy
+            RangeMap extra = metadataRanges(src, size, null);
+            int[] rangeCrcs = rangeCrcs(src, extra, null, null, null);
+            CopyEngine.copy(src, 0, size, dst, 0, digest, plainFile, encryptedFile);
+            transformRanges(dst, 0, extra, dataKey.key, nonce);
+            transformContent(dst, 0, dst, 0, Math.min(HEADER_SIZE, size), dataKey.key, nonce,
+                    null);
+            MprotLayout.writeTrailer(dst, size, nonce, rangeFlags(flags, extra), headerCrc,
+                    digest.value(), extra, rangeCrcs, dataKey);
+        }
+    }
+
+    /**
+     * Encrypts everything {@code in} delivers into {@code encryptedFile} in a single pass,
+     * without a plaintext copy on disk: the header is encrypted in memory and the rest is
+     * streamed to {@code encryptedFile} in large writes. The length need not be known in
+     * advance. {@code in} is read to the end but not closed.
+     *
+     * <p>On failure {@code encryptedFile} is left incomplete; the caller should delete it.
+     */
+    public void encrypt(InputStream in, File encryptedFile) throws IOException {
+        encrypt(in::read, encryptedFile);
+    }
+
+    /** Same as {@link #encrypt(InputStream, File)}, reading from a channel. */
+    public void encrypt(ReadableByteChannel in, File encryptedFile) throws IOException {
+        encrypt((buf, off, len) -> in.read(ByteBuffer.wrap(buf, off, len)), encryptedFile);
+    }
+
+    /**
+     * Protects {@code plainFile} by renaming it to {@code encryptedFile} and rewriting only
+     * its first 1 KB plus an appended trailer, so no payload bytes are copied. In
+     * {@link Mode#FULL_CONTENT} mode every chunk is rewritten in place instead.
+     *
+     * <p>If the rename is not possible (e.g. the target is on another volume), this falls
+     * back to {@link #encrypt(File, File)} and leaves {@code plainFile} in place.
+     *
+     * @return {@code true} if the file was protected in place ({@code plainFile} no longer
+     *         exists), {@code false} if a copy was made and the caller should delete
+     *         {@code plainFile} if desired
+     */
+    public boolean encryptInPlace(File plainFile, File encryptedFile) throws IOException {
+        if (!plainFile.renameTo(encryptedFile)) {
+            encrypt(plainFile, encryptedFile);
+            return false;
+        }
+        encryptRenamed(encryptedFile, plainFile);
+        return true;
+    }
+
+    /**
+     * Crash-safe counterpart of {@link #encryptInPlace(File, File)}: {@code plainFile} is
+     * replaced by {@code encryptedFile} only once {@code commit} has made the result durable,
+     * after which {@code onDurable} (may be {@code null}) runs.
+     *
+     * <p>Header-only files are still rewritten in place, under a staged name. Full-content
+     * files and moves across volumes are copied to a temporary name instead, and the original
+     * is left untouched until the commit. A half-finished full rewrite could not be told
+     * apart from a finished one.
+     */
+    public void encryptInPlace(File plainFile, File encryptedFile, GroupCommit commit,
+                               Runnable onDurable) throws IOException {
+        File staged = sibling(encryptedFile, STAGED_SUFFIX);
+        GroupCommit.claim(staged);
+        try {
+            if (mode == Mode.HEADER_ONLY && plainFile.renameTo(staged)) {
+                encryptRenamed(staged, plainFile);
+                commit.add(staged, encryptedFile, null, onDurable);
+                return;
             }
-        } catch (GeneralSecurityException e) {
-            throw new IOException("AES encryption failed", e);
+        } catch (IOException e) {
+            GroupCommit.release(staged);
+            throw e;
         }
+        GroupCommit.release(staged);
+
+        File temp = sibling(encryptedFile, TEMP_SUFFIX);
+        GroupCommit.claim(temp);
+        try {
+            encrypt(plainFile, temp);
+        } catch (IOException e) {
+            temp.delete();
+            GroupCommit.release(temp);
+            throw e;
+        }
+        commit.add(temp, encryptedFile, plainFile, onDurable);
     }
 
     /**
@@ -88,44 +252,262 @@ public class HeaderObfuscator {
      * The caller is responsible for deleting the encrypted file afterwards if desired.
      */
     public void decrypt(File encryptedFile, File plainFile) throws IOException {
-        try (FileInputStream fis = new FileInputStream(encryptedFile);
-             FileOutputStream fos = new FileOutputStream(plainFile)) {
+        encryptedFile = DedupStore.resolve(encryptedFile);
+        try (RandomAccessFile in = new RandomAccessFile(encryptedFile, "r");
+             RandomAccessFile out = new RandomAccessFile(plainFile, "rw")) {
+            out.setLength(0);
+            FileChannel src = in.getChannel();
+            FileChannel dst = out.getChannel();
+            MprotLayout layout = MprotLayout.read(src, encryptedFile);
+            SecretKey key = keyFor(layout);
 
-            // Read nonce
-            byte[] nonce = new byte[NONCE_SIZE];
-            if (readFully(fis, nonce) < NONCE_SIZE) {
-                throw new IOException("Encrypted file too short (missing nonce): " + encryptedFile);
+            if (layout.isFullContent()) {
+                transformContent(src, layout.dataOffset(), dst, 0, layout.contentLength(), key,
+                        layout.nonce(), null);
+                return;
             }
+            // Copy the content (the trailer is left behind), then decrypt its encrypted ranges
+            CopyEngine.copy(src, layout.dataOffset(), layout.contentLength(), dst, 0, null,
+                    encryptedFile, plainFile);
+            transformRanges(dst, 0, layout.encryptedRanges(), key, layout.nonce());
+        }
+    }
 
-            // Read encrypted header, decrypt, write
-            byte[] header = new byte[HEADER_SIZE];
-            int headerRead = readFully(fis, header);
-            if (headerRead > 0) {
-                byte[] decrypted = applyAesCtr(nonce, header, headerRead);
-                fos.write(decrypted, 0, headerRead);
-            }
+    /**
+     * Restores {@code encryptedFile} to {@code plainFile} by renaming it, decrypting its first
+     * 1 KB (or, for full-content files, every chunk) in place and truncating the trailer, so
+     * no payload bytes are copied.
+     *
+     * <p>Legacy prefix-layout files, {@link DedupStore} references, and targets that cannot be
+     * reached by a rename, fall back to {@link #decrypt(File, File)} and leave
+     * {@code encryptedFile} in place.
+     *
+     * @return {@code true} if the file was restored in place ({@code encryptedFile} no longer
+     *         exists), {@code false} if a copy was made and the caller should delete
+     *         {@code encryptedFile} if desired
+     */
+    public boolean decryptInPlace(File encryptedFile, File plainFile) throws IOException {
+        if (DedupStore.isReference(encryptedFile)) {
+            decrypt(encryptedFile, plainFile); // the payload may be shared; copy it out
+            return false;
+        }
+        MprotLayout layout = MprotLayout.read(encryptedFile);
+        keyFor(layout); // a locked vault must fail before the file is renamed
+        if (!layout.isTrailer() || !encryptedFile.renameTo(plainFile)) {
+            decrypt(encryptedFile, plainFile);
+            return false;
+        }
+
+        decryptRenamed(plainFile, layout);
+        return true;
+    }
 
-            // Stream remaining bytes unchanged
-            fos.flush();
-            FileChannel srcChannel = fis.getChannel();
-            FileChannel dstChannel = fos.getChannel();
-            long remaining = srcChannel.size() - srcChannel.position();
-            if (remaining > 0) {
-                dstChannel.position(dstChannel.size());
-                srcChannel.transferTo(srcChannel.position(), remaining, dstChannel);
+    /**
+     * Crash-safe counterpart of {@link #decryptInPlace(File, File)}: {@code encryptedFile} is
+     * replaced by {@code plainFile} only once {@code commit} has made the result durable,
+     * after which {@code onDurable} (may be {@code null}) runs.
+     *
+     * <p>Header-only files whose trailer records a header CRC are restored in place under a
+     * staged name; everything else is copied to a temporary name, leaving
+     * {@code encryptedFile} untouched until the commit.
+     */
+    public void decryptInPlace(File encryptedFile, File plainFile, GroupCommit commit,
+                               Runnable onDurable) throws IOException {
+        if (DedupStore.isReference(encryptedFile)) {
+            decrypt(encryptedFile, plainFile, commit, encryptedFile, onDurable);
+            return;
+        }
+        MprotLayout layout = MprotLayout.read(encryptedFile);
+        keyFor(layout); // a locked vault must fail before the file is renamed
+        File staged = sibling(plainFile, STAGED_SUFFIX);
+        GroupCommit.claim(staged);
+        try {
+            if (layout.isTrailer() && layout.hasHeaderCrc() && !layout.isFullContent()
+                    && encryptedFile.renameTo(staged)) {
+                decryptRenamed(staged, layout);
+                commit.add(staged, plainFile, null, onDurable);
+                return;
             }
+        } catch (IOException e) {
+            GroupCommit.release(staged);
+            throw e;
+        }
+        GroupCommit.release(staged);
+
+        decrypt(encryptedFile, plainFile, commit, encryptedFile, onDurable);
+    }
+
+    /**
+     * Crash-safe counterpart of {@link #decrypt(File, File)}: the copy is written under a
+     * temporary name and appears as {@code plainFile} once {@code commit} has made it durable.
+     * {@code encryptedFile} is kept.
+     */
+    public void decrypt(File encryptedFile, File plainFile, GroupCommit commit) throws IOException {
+        decrypt(encryptedFile, plainFile, commit, null, null);
+    }
+
+    /**
+     * Finishes an operation that a crash interrupted, given one of the staged or temporary
+     * files the crash-safe overloads leave behind (see {@link #isStaged(File)}).
+     *
+     * <p>A temporary copy is deleted: its source was never modified. A staged file holds the
+     * only copy of its content, either still plaintext or already encrypted. The header
+     * CRC in its trailer tells which, and it is published next to itself under the matching
+     * name, never overwriting an existing file.
+     *
+     * @return the recovered file, or {@code null} if there was nothing to keep or the file
+     *         still belongs to a running operation
+     */
+    public File recover(File stagedFile) throws IOException {
+        if (GroupCommit.isClaimed(stagedFile)) return null;
+        String name = stagedFile.getName();
+        if (name.endsWith(TEMP_SUFFIX)) {
+            if (!stagedFile.delete()) throw new IOException("Could not delete " + stagedFile);
+            return null;
+        }
+        if (!name.endsWith(STAGED_SUFFIX)) {
+            throw new IllegalArgumentException("Not a staged file: " + stagedFile);
+        }
+
+        String plainName = getOriginalName(
+                new File(name.substring(0, name.length() - STAGED_SUFFIX.length())));
+        boolean encrypted = settleStaged(stagedFile);
+        File target = availableFile(stagedFile.getParentFile(), plainName, encrypted);
+        if (!stagedFile.renameTo(target)) {
+            throw new IOException("Could not rename " + stagedFile + " to " + target);
+        }
+        return target;
+    }
+
+    /**
+     * Decrypts, in place, {@code len} bytes of {@code buf} that were read raw from content
+     * offset {@code contentOffset} of a file with the given layout. Bytes outside the
+     * encrypted region are left untouched, so callers can read any range with positional
+     * I/O and pass it through here.
+     */
+    public void decryptRange(MprotLayout layout, long contentOffset, byte[] buf, int off, int len)
+            throws IOException {
+        RangeMap ranges = layout.encryptedRanges();
+        if (!ranges.overlaps(contentOffset, contentOffset + len)) return;
+        try {
+            CipherPool.applyRanges(CipherPool.forThread(), keyFor(layout), layout.nonce(), ranges,
+                    contentOffset, buf, off, len);
         } catch (GeneralSecurityException e) {
             throw new IOException("AES decryption failed", e);
         }
     }
 
+    /**
+     * Checks {@code encryptedFile} against the checksums recorded in its trailer: the header
+     * CRC and, for files written by {@link #encrypt(File, File)} or in
+     * {@link Mode#FULL_CONTENT} mode, the content digest. A header-only file protected in
+     * place has no content digest, since it was never read in full. Its check costs a single
+     * 1 KB read. Content is read with the chunk-parallel engine.
+     *
+     * <p>A file whose trailer is unrecognisable looks like a legacy prefix-layout file and is
+     * reported as {@link Integrity#UNVERIFIED}.
+     *
+     * @throws VaultLockedException if the file's master key is not unlocked
+     * @throws IOException if the file cannot be opened or the check is interrupted
+     */
+    public Integrity verify(File encryptedFile) throws IOException {
+        return verify(encryptedFile, true, null);
+    }
+
+    /**
+     * Verifies {@code files} in the background: {@code parallelism} files at a time, each read
+     * on a single low-priority thread.
+     *
+     * @return the outcome per file, in input order; a file that cannot be opened is
+     *         {@link Integrity#DAMAGED}, one whose master key is not unlocked is missing
+     * @throws InterruptedException if interrupted; files not yet verified are missing
+     */
+    public Map<File, Integrity> verifyAll(List<File> files, int parallelism)
+            throws InterruptedException {
+        return verifyAll(files, parallelism, 0);
+    }
+
+    /**
+     * Like {@link #verifyAll(List, int)}, and caps the combined read rate at
+     * {@code maxBytesPerSecond} (0 for no cap) so a vault-wide scrub does not compete with
+     * the foreground for storage bandwidth.
+     */
+    public Map<File, Integrity> verifyAll(List<File> files, int parallelism,
+                                          long maxBytesPerSecond) throws InterruptedException {
+        IoThrottle throttle = maxBytesPerSecond > 0 ? new IoThrottle(maxBytesPerSecond) : null;
+        Map<File, Integrity> results = new ConcurrentHashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "mprot-verify");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        try {
+            new CryptoBatch(parallelism, Long.MAX_VALUE).run(files,
+                    file -> results.put(file, verify(file, false, throttle)),
+                    pool, new CryptoBatch.Listener() {
+                        @Override
+                        public void onProgress(int started, int total, File file,
+                                               long bytesDone, long bytesTotal) {}
+
+                        @Override
+                        public void onFailure(File file, Exception e) {
+                            if (!(e instanceof VaultLockedException)) {
+                                results.put(file, Integrity.DAMAGED);
+                            }
+                        }
+                    });
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Map<File, Integrity> ordered = new LinkedHashMap<>();
+        for (File file : files) {
+            Integrity result = results.get(file);
+            if (result != null) ordered.put(file, result);
+        }
+        return ordered;
+    }
+
+    /**
+     * Moves {@code encryptedFile} under the current master key (see {@link VaultKeys}) by
+     * overwriting the 20-byte wrapped data key in its trailer. Content, checksums and file
+     * length stay the same, and an interrupted call leaves either the old or the new key
+     * record, both of which open the file while the old master key is retired rather than
+     * forgotten. Files without a wrapped key are left alone: their content is encrypted under
+     * the built-in key itself and would have to be rewritten.
+     *
+     * @return {@code true} if the key record was rewritten, {@code false} if there was
+     *         nothing to do
+     * @throws VaultLockedException if the file's current master key is not known
+     */
+    public boolean rewrap(File encryptedFile) throws IOException {
+        encryptedFile = DedupStore.resolve(encryptedFile);
+        try (RandomAccessFile raf = new RandomAccessFile(encryptedFile, "rw")) {
+            FileChannel ch = raf.getChannel();
+            MprotLayout layout = MprotLayout.read(ch, encryptedFile);
+            if (!layout.hasWrappedKey() || VaultKeys.isCurrent(layout.masterKeyId())) return false;
+            layout.writeWrappedKey(ch, VaultKeys.wrap(keyFor(layout)));
+            return true;
+        }
+    }
+
     /**
      * Returns an {@link InputStream} that decrypts the file on-the-fly.
      * Suitable for thumbnail generation without creating a temporary copy.
      * The caller must close the returned stream.
      */
     public InputStream getDecryptedStream(File encryptedFile) throws IOException {
-        return new DecryptingInputStream(encryptedFile);
+        return new DecryptingInputStream(DedupStore.resolve(encryptedFile));
+    }
+
+    /**
+     * Opens a read-only, seekable channel over the decrypted content of {@code encryptedFile}.
+     * Unlike {@link #getDecryptedStream}, any offset can be read directly and concurrently
+     * (see {@link MprotChannel}). The caller must close the returned channel.
+     */
+    public MprotChannel openChannel(File encryptedFile) throws IOException {
+        return new MprotChannel(DedupStore.resolve(encryptedFile), this);
     }
 
     // -------------------------------------------------------------------------
@@ -140,6 +522,12 @@ public class HeaderObfuscator {
         return file.getName().endsWith(".mprot");
     }
 
+    /** {@code true} for a staged or temporary file that {@link #recover(File)} accepts. */
+    public static boolean isStaged(File file) {
+        String name = file.getName();
+        return name.endsWith(STAGED_SUFFIX) || name.endsWith(TEMP_SUFFIX);
+    }
+
     public static String getOriginalName(File obfuscated) {
         String name = obfuscated.getName();
         if (name.endsWith(".mprot")) {
@@ -152,53 +540,475 @@ public class HeaderObfuscator {
     // Private helpers
     // -------------------------------------------------------------------------
 
-    /** Applies AES-128-CTR to the first {@code len} bytes of {@code data}. */
-    private static byte[] applyAesCtr(byte[] nonce, byte[] data, int len)
-            throws GeneralSecurityException {
-        SecretKeySpec keySpec = new SecretKeySpec(AES_KEY, "AES");
-        IvParameterSpec ivSpec = new IvParameterSpec(nonce);
-        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-        cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec); // CTR: enc == dec
-        return cipher.doFinal(data, 0, len);
+    private int trailerFlags() {
+        int flags = MprotLayout.FLAG_HEADER_CRC | MprotLayout.FLAG_WRAPPED_KEY;
+        return mode == Mode.FULL_CONTENT ? flags | MprotLayout.FLAG_FULL_CONTENT : flags;
+    }
+
+    /** {@code flags}, plus {@link MprotLayout#FLAG_RANGE_MAP} if there are ranges to map. */
+    private static int rangeFlags(int flags, RangeMap extra) {
+        return extra.size() > 0 ? flags | MprotLayout.FLAG_RANGE_MAP : flags;
+    }
+
+    /**
+     * The metadata ranges beyond the header of the plaintext in {@code ch}, whose first
+     * bytes may be overlaid by {@code plainHeader} (see {@link ContainerRanges}).
+     */
+    private static RangeMap metadataRanges(FileChannel ch, long size, byte[] plainHeader) {
+        return ContainerRanges.find(ch, size, plainHeader).clip(HEADER_SIZE, size);
     }
 
-    /** Reads into {@code buf} until full or EOF. Returns total bytes read. */
-    private static int readFully(InputStream in, byte[] buf) throws IOException {
+    /**
+     * Encrypts {@code file}, which still holds the plaintext it was renamed from, in place.
+     * If the trailer cannot be written the file is renamed back to {@code restoreTo}.
+     */
+    private void encryptRenamed(File file, File restoreTo) throws IOException {
+        byte[] nonce = newNonce();
+        VaultKeys.DataKey dataKey = VaultKeys.newDataKey();
+        IOException trailerFailure = null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel ch = raf.getChannel();
+            long size = ch.size();
+            // A full rewrite reads every byte anyway, so it records a content digest too
+            boolean full = mode == Mode.FULL_CONTENT;
+            int flags = full ? trailerFlags() | MprotLayout.FLAG_CONTENT_CRC : trailerFlags();
+            RangeMap extra = RangeMap.EMPTY;
+            int[] rangeCrcs = null;
+            int headerCrc = 0;
+            try {
+                if (!full) {
+                    extra = metadataRanges(ch, size, null);
+                    rangeCrcs = rangeCrcs(ch, extra, null, null, null);
+                    flags = rangeFlags(flags, extra);
+                }
+                // Trailer first: a file whose content is encrypted must never lack its nonce
+                headerCrc = headerCrc(ch, 0, size);
+                MprotLayout.writeTrailer(ch, size, nonce, flags, headerCrc, 0, extra, rangeCrcs,
+                        dataKey);
+            } catch (IOException e) {
+                // Nothing of the original content was touched yet: undo, and once the file
+                // is closed, give it back
+                raf.setLength(size);
+                trailerFailure = e;
+            }
+            if (trailerFailure == null) {
+                if (full) {
+                    ContentDigest digest = new ContentDigest(size);
+                    transformContent(ch, 0, ch, 0, size, dataKey.key, nonce, digest);
+                    // Same size and position: only the digest field changes
+                    MprotLayout.writeTrailer(ch, size, nonce, flags, headerCrc, digest.value(),
+                            extra, null, dataKey);
+                } else {
+                    // Header last: while it is still plaintext, recovery knows to roll back
+                    transformRanges(ch, 0, extra, dataKey.key, nonce);
+                    transformContent(ch, 0, ch, 0, Math.min(HEADER_SIZE, size), dataKey.key,
+                            nonce, null);
+                }
+            }
+        }
+        if (trailerFailure != null) {
+            file.renameTo(restoreTo);
+            throw trailerFailure;
+        }
+    }
+
+    /** A sequential byte source: an {@link InputStream} or a {@link ReadableByteChannel}. */
+    private interface Source {
+        /** Same contract as {@link InputStream#read(byte[], int, int)}. */
+        int read(byte[] buf, int off, int len) throws IOException;
+    }
+
+    /**
+     * Streams {@code src} into {@code encryptedFile}. One CTR keystream runs over the whole
+     * content: the first {@link MprotLayout#HEADER_SIZE} bytes always pass through it, the
+     * rest only in {@link Mode#FULL_CONTENT} mode. The plaintext is digested on the way.
+     * In header-only mode the metadata ranges are found and encrypted once the content is
+     * written, since a container may keep them at its end.
+     */
+    private void encrypt(Source src, File encryptedFile) throws IOException {
+        byte[] nonce = newNonce();
+        VaultKeys.DataKey dataKey = VaultKeys.newDataKey();
+        boolean full = mode == Mode.FULL_CONTENT;
+        byte[] buf = new byte[STREAM_BUFFER_SIZE];
+        ContentDigest digest = new ContentDigest();
+
+        try (RandomAccessFile out = new RandomAccessFile(encryptedFile, "rw")) {
+            out.setLength(0);
+            FileChannel dst = out.getChannel();
+            Cipher cipher = CipherPool.forThread();
+            CipherPool.init(cipher, dataKey.key, nonce);
+
+            // The first round reads exactly the header, so its CRC is that of the header
+            int n = fill(src, buf, HEADER_SIZE);
+            int headerCrc = crc32(buf, n);
+            byte[] plainHeader = Arrays.copyOf(buf, n);
+            boolean encrypting = true;
+            long size = 0;
+            while (n > 0) {
+                digest.update(buf, 0, n);
+                if (encrypting) CipherPool.apply(cipher, buf, 0, n);
+                MprotLayout.writeFully(dst, ByteBuffer.wrap(buf, 0, n), size);
+                size += n;
+                encrypting = full;
+                n = fill(src, buf, buf.length);
+            }
+            RangeMap extra = RangeMap.EMPTY;
+            int[] rangeCrcs = null;
+            if (!full) {
+                extra = metadataRanges(dst, size, plainHeader);
+                rangeCrcs = rangeCrcs(dst, extra, null, null, null);
+                transformRanges(dst, 0, extra, dataKey.key, nonce);
+            }
+            MprotLayout.writeTrailer(dst, size, nonce,
+                    rangeFlags(trailerFlags() | MprotLayout.FLAG_CONTENT_CRC, extra), headerCrc,
+                    digest.value(), extra, rangeCrcs, dataKey);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-CTR failed", e);
+        }
+    }
+
+    /** Reads until {@code buf[0, len)} is full or {@code src} ends; returns the count. */
+    private static int fill(Source src, byte[] buf, int len) throws IOException {
         int total = 0;
-        while (total < buf.length) {
-            int n = in.read(buf, total, buf.length - total);
-            if (n == -1) break;
+        while (total < len) {
+            int n = src.read(buf, total, len - total);
+            if (n < 0) break;
             total += n;
         }
         return total;
     }
 
+    /**
+     * Decrypts trailer-layout {@code file} in place and cuts off its trailer. The header goes
+     * first: once it is plaintext, recovery knows to finish with the mapped ranges.
+     */
+    private static void decryptRenamed(File file, MprotLayout layout) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel ch = raf.getChannel();
+            SecretKey key = keyFor(layout);
+            long first = layout.isFullContent() ? layout.contentLength() : layout.headerLength();
+            transformContent(ch, 0, ch, 0, first, key, layout.nonce(), null);
+            transformRanges(ch, 0, layout.extraRanges(), key, layout.nonce());
+            raf.setLength(layout.contentLength());
+        }
+    }
+
+    /**
+     * Copies the decrypted content to a temporary sibling of {@code plainFile} and registers
+     * it with {@code commit}, which deletes {@code obsolete} (may be {@code null}) once durable.
+     */
+    private void decrypt(File encryptedFile, File plainFile, GroupCommit commit, File obsolete,
+                         Runnable onDurable) throws IOException {
+        File temp = sibling(plainFile, TEMP_SUFFIX);
+        GroupCommit.claim(temp);
+        try {
+            decrypt(encryptedFile, temp);
+        } catch (IOException e) {
+            temp.delete();
+            GroupCommit.release(temp);
+            throw e;
+        }
+        commit.add(temp, plainFile, obsolete, onDurable);
+    }
+
+    /**
+     * Brings a staged file into a consistent state and reports it: {@code false} if its
+     * content is plaintext (a stale trailer is cut off), {@code true} if it is a complete
+     * encrypted file.
+     */
+    private boolean settleStaged(File staged) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(staged, "rw")) {
+            FileChannel ch = raf.getChannel();
+            MprotLayout layout;
+            try {
+                layout = MprotLayout.read(ch, staged);
+            } catch (IOException e) {
+                return false; // too short to carry a trailer: never touched
+            }
+            if (!layout.isTrailer()) return false; // trailer not written yet: never touched
+            if (!layout.hasHeaderCrc()) {
+                throw new IOException("Staged file has no header CRC: " + staged);
+            }
+
+            byte[] header = HEADER_BUFFER.get();
+            int len = layout.headerLength();
+            MprotLayout.readFully(ch, ByteBuffer.wrap(header, 0, len), 0);
+            if (crc32(header, len) == layout.headerCrc()) {
+                // Header is plaintext: encryption had not finished, or decryption had started.
+                // Either way, bring every mapped range back to plaintext.
+                RangeMap extra = layout.extraRanges();
+                int[] plain = layout.rangeCrcs();
+                int[] raw = rangeCrcs(ch, extra, null, null, null);
+                int[] decrypted = rangeCrcs(ch, extra, keyFor(layout), layout.nonce(), null);
+                for (int i = 0; i < extra.size(); i++) {
+                    if (raw[i] == plain[i]) continue;
+                    if (decrypted[i] != plain[i]) {
+                        throw new IOException("Staged file range matches neither state: " + staged);
+                    }
+                    transformRange(ch, 0, extra.start(i), extra.end(i) - extra.start(i),
+                            keyFor(layout), layout.nonce());
+                }
+                raf.setLength(layout.contentLength());
+                return false;
+            }
+            decryptRange(layout, 0, header, 0, len);
+            if (crc32(header, len) == layout.headerCrc()) return true;
+            throw new IOException("Staged file header matches neither state: " + staged);
+        }
+    }
+
+    /**
+     * Returns {@code plainName} (plus {@code .mprot} if {@code encrypted}) in {@code dir},
+     * inserting (1), (2), ... before the extension while that name is taken.
+     */
+    private static File availableFile(File dir, String plainName, boolean encrypted) {
+        String ext = encrypted ? ".mprot" : "";
+        int dot = plainName.lastIndexOf('.');
+        String stem = dot > 0 ? plainName.substring(0, dot) : plainName;
+        String suffix = dot > 0 ? plainName.substring(dot) : "";
+        File file = new File(dir, plainName + ext);
+        for (int n = 1; file.exists(); n++) {
+            file = new File(dir, stem + "(" + n + ")" + suffix + ext);
+        }
+        return file;
+    }
+
+    private static File sibling(File file, String suffix) {
+        return new File(file.getParentFile(), file.getName() + suffix);
+    }
+
+    private static Integrity verify(File file, boolean parallel, IoThrottle throttle)
+            throws IOException {
+        file = DedupStore.resolve(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel ch = raf.getChannel();
+            try {
+                MprotLayout layout = MprotLayout.read(ch, file);
+                if (!layout.hasHeaderCrc() && !layout.hasContentCrc()) return Integrity.UNVERIFIED;
+
+                if (layout.hasHeaderCrc()) {
+                    byte[] header = HEADER_BUFFER.get();
+                    int len = layout.headerLength();
+                    MprotLayout.readFully(ch, ByteBuffer.wrap(header, 0, len), layout.dataOffset());
+                    decryptHeader(layout, header, len);
+                    if (crc32(header, len) != layout.headerCrc()) return Integrity.DAMAGED;
+                }
+                if (layout.hasRangeMap() && !layout.hasContentCrc()) {
+                    // The content digest would cover the ranges as well
+                    int[] crcs = rangeCrcs(ch, layout.extraRanges(), keyFor(layout),
+                            layout.nonce(), throttle);
+                    if (!Arrays.equals(crcs, layout.rangeCrcs())) return Integrity.DAMAGED;
+                }
+                if (layout.hasContentCrc()) {
+                    ContentDigest digest = new ContentDigest(layout.contentLength());
+                    ChunkedCtr.digest(ch, layout.dataOffset(), layout.contentLength(),
+                            layout.encryptedRanges(), keyFor(layout), layout.nonce(), digest,
+                            parallel, throttle);
+                    if (digest.value() != layout.contentCrc()) return Integrity.DAMAGED;
+                }
+                return Integrity.INTACT;
+            } catch (InterruptedIOException | VaultLockedException e) {
+                throw e;
+            } catch (IOException e) {
+                return Integrity.DAMAGED; // malformed trailer, truncated content, read error
+            }
+        }
+    }
+
+    private static void decryptHeader(MprotLayout layout, byte[] header, int len)
+            throws IOException {
+        try {
+            applyAesCtr(keyFor(layout), layout.nonce(), header, len);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES decryption failed", e);
+        }
+    }
+
+    /**
+     * Returns the key the content of a file with {@code layout} is encrypted under: its
+     * unwrapped data key, or the built-in key for files that carry none. The unwrapped key
+     * is cached on the layout, so repeated range reads unwrap it once.
+     */
+    private static SecretKey keyFor(MprotLayout layout) throws IOException {
+        if (!layout.hasWrappedKey()) return KEY;
+        SecretKey key = layout.dataKey();
+        if (key == null) {
+            key = VaultKeys.unwrap(layout.masterKeyId(), layout.wrappedKey());
+            layout.setDataKey(key);
+        }
+        return key;
+    }
+
+    /** CRC-32 of the first min(size, 1024) bytes at {@code base}, i.e. of the header. */
+    private static int headerCrc(FileChannel ch, long base, long size) throws IOException {
+        byte[] header = HEADER_BUFFER.get();
+        int len = (int) Math.min(HEADER_SIZE, size);
+        MprotLayout.readFully(ch, ByteBuffer.wrap(header, 0, len), base);
+        return crc32(header, len);
+    }
+
+    private static int crc32(byte[] data, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, len);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_SIZE];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * Applies AES-128-CTR to the first {@code len} bytes of {@code data}, in place,
+     * using the calling thread's pooled cipher.
+     */
+    private static void applyAesCtr(SecretKey key, byte[] nonce, byte[] data, int len)
+            throws GeneralSecurityException {
+        Cipher cipher = CipherPool.forThread();
+        CipherPool.init(cipher, key, nonce);
+        CipherPool.apply(cipher, data, 0, len);
+    }
+
+    /**
+     * Applies the CTR keystream of {@code key} to the first {@code length} content bytes,
+     * reading them from {@code src} at {@code srcBase} and writing them to {@code dst} at
+     * {@code dstBase}.
+     * A header fits the per-thread scratch buffer; anything larger goes through the
+     * chunk-parallel {@link ChunkedCtr}. The input bytes are recorded in {@code inputDigest}
+     * unless it is {@code null}.
+     */
+    private static void transformContent(FileChannel src, long srcBase, FileChannel dst,
+                                         long dstBase, long length, SecretKey key, byte[] nonce,
+                                         ContentDigest inputDigest) throws IOException {
+        if (length > HEADER_SIZE) {
+            ChunkedCtr.transform(src, srcBase, dst, dstBase, length, key, nonce, inputDigest);
+            return;
+        }
+        byte[] header = HEADER_BUFFER.get();
+        int len = (int) length;
+        MprotLayout.readFully(src, ByteBuffer.wrap(header, 0, len), srcBase);
+        if (inputDigest != null) inputDigest.update(header, 0, len);
+        try {
+            applyAesCtr(key, nonce, header, len);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-CTR failed", e);
+        }
+        MprotLayout.writeFully(dst, ByteBuffer.wrap(header, 0, len), dstBase);
+    }
+
+    /**
+     * Applies the CTR keystream of {@code key} in place to each of {@code ranges}, content
+     * offsets of the content starting at {@code base} in {@code ch}.
+     */
+    private static void transformRanges(FileChannel ch, long base, RangeMap ranges,
+                                        SecretKey key, byte[] nonce) throws IOException {
+        for (int i = 0; i < ranges.size(); i++) {
+            transformRange(ch, base, ranges.start(i), ranges.end(i) - ranges.start(i), key,
+                    nonce);
+        }
+    }
+
+    /**
+     * Applies the CTR keystream of {@code key} in place to the {@code length} content bytes
+     * at {@code contentOffset}, which may lie anywhere in the content.
+     */
+    private static void transformRange(FileChannel ch, long base, long contentOffset,
+                                       long length, SecretKey key, byte[] nonce)
+            throws IOException {
+        if (length > HEADER_SIZE) {
+            ChunkedCtr.transform(ch, base + contentOffset, ch, base + contentOffset,
+                    contentOffset, length, key, nonce);
+            return;
+        }
+        byte[] scratch = HEADER_BUFFER.get();
+        int len = (int) length;
+        long at = base + contentOffset;
+        MprotLayout.readFully(ch, ByteBuffer.wrap(scratch, 0, len), at);
+        try {
+            Cipher cipher = CipherPool.forThread();
+            CipherPool.initAt(cipher, key, nonce, contentOffset);
+            CipherPool.apply(cipher, scratch, 0, len);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-CTR failed", e);
+        }
+        MprotLayout.writeFully(ch, ByteBuffer.wrap(scratch, 0, len), at);
+    }
+
+    /**
+     * CRC-32 of each of {@code ranges}, content offsets of a plaintext content starting at 0
+     * in {@code ch}. With a {@code key}, of the bytes decrypted under it instead.
+     */
+    private static int[] rangeCrcs(FileChannel ch, RangeMap ranges, SecretKey key,
+                                   byte[] nonce, IoThrottle throttle) throws IOException {
+        int[] crcs = new int[ranges.size()];
+        if (crcs.length == 0) return crcs;
+        byte[] buf = new byte[64 * 1024];
+        try {
+            Cipher cipher = key != null ? CipherPool.forThread() : null;
+            for (int i = 0; i < ranges.size(); i++) {
+                CRC32 crc = new CRC32();
+                if (cipher != null) CipherPool.initAt(cipher, key, nonce, ranges.start(i));
+                for (long at = ranges.start(i); at < ranges.end(i); ) {
+                    int len = (int) Math.min(buf.length, ranges.end(i) - at);
+                    if (throttle != null) throttle.acquire(len);
+                    MprotLayout.readFully(ch, ByteBuffer.wrap(buf, 0, len), at);
+                    if (cipher != null) CipherPool.apply(cipher, buf, 0, len);
+                    crc.update(buf, 0, len);
+                    at += len;
+                }
+                crcs[i] = (int) crc.getValue();
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-CTR failed", e);
+        }
+        return crcs;
+    }
+
     // -------------------------------------------------------------------------
     // DecryptingInputStream — on-the-fly decryption for thumbnails/preview
     // -------------------------------------------------------------------------
 
+    /**
+     * Decrypts with positional reads, so any position can be reached without replaying the
+     * keystream. That makes {@link #mark}/{@link #reset} and {@link #skip} free, and lets one
+     * stream serve both passes of a bounds-then-decode bitmap load. The header, which every
+     * pass reads first, is decrypted once when the stream opens and then served from memory.
+     */
     private static class DecryptingInputStream extends InputStream {
 
         private final FileInputStream fis;
-        private final Cipher cipher;
-        private long headerBytesRead = 0;
+        private final FileChannel channel;
+        private final byte[] single = new byte[1];
+        private final byte[] header;        // decrypted header, min(contentLength, 1 KB)
+        private final SecretKey key;
+        private final byte[] nonce;
+        private final long dataOffset;
+        private final long contentLength;
+        private final RangeMap encrypted;
+        private Cipher cipher;              // borrowed from CipherPool for reads past the header
+        private long cipherPosition = -1;   // content offset the cipher's keystream is at
+        private long position = 0;          // logical content offset
+        private long mark = 0;
+        private boolean closed;
 
         DecryptingInputStream(File encryptedFile) throws IOException {
             fis = new FileInputStream(encryptedFile);
+            try {
+                channel = fis.getChannel();
+                MprotLayout layout = MprotLayout.read(channel, encryptedFile);
+                key = keyFor(layout);
+                nonce = layout.nonce();
+                dataOffset = layout.dataOffset();
+                contentLength = layout.contentLength();
+                encrypted = layout.encryptedRanges();
 
-            // Read nonce from the first 16 bytes
-            byte[] nonce = new byte[NONCE_SIZE];
-            int n = readFully(fis, nonce);
-            if (n < NONCE_SIZE) {
+                header = new byte[layout.headerLength()];
+                MprotLayout.readFully(channel, ByteBuffer.wrap(header), dataOffset);
+                applyAesCtr(key, nonce, header, header.length);
+            } catch (IOException e) {
                 fis.close();
-                throw new IOException("Encrypted file too short (missing nonce): " + encryptedFile);
-            }
-
-            try {
-                SecretKeySpec keySpec = new SecretKeySpec(AES_KEY, "AES");
-                IvParameterSpec ivSpec = new IvParameterSpec(nonce);
-                cipher = Cipher.getInstance("AES/CTR/NoPadding");
-                cipher.init(Cipher.DECRYPT_MODE, keySpec, ivSpec);
+                throw e;
             } catch (GeneralSecurityException e) {
                 fis.close();
                 throw new IOException("Failed to initialise AES cipher", e);
@@ -207,35 +1017,88 @@ public class HeaderObfuscator {
 
         @Override
         public int read() throws IOException {
-            byte[] b = new byte[1];
-            int n = read(b, 0, 1);
-            return n == -1 ? -1 : (b[0] & 0xFF);
+            int n = read(single, 0, 1);
+            return n == -1 ? -1 : (single[0] & 0xFF);
         }
 
         @Override
         public int read(byte[] buf, int off, int len) throws IOException {
-            int n = fis.read(buf, off, len);
-            if (n <= 0) return n;
+            if (closed) throw new IOException("Stream closed");
+            if (len == 0) return 0;
+            if (position >= contentLength) return -1;
+
+            if (position < header.length) {
+                int n = (int) Math.min(len, header.length - position);
+                System.arraycopy(header, (int) position, buf, off, n);
+                position += n;
+                return n;
+            }
+
+            // Never hand out trailer bytes
+            int want = (int) Math.min(len, contentLength - position);
+            int n = channel.read(ByteBuffer.wrap(buf, off, want), dataOffset + position);
+            if (n <= 0) return -1;
 
-            if (headerBytesRead < HEADER_SIZE) {
-                // Apply cipher only to the bytes that fall within the encrypted header
-                int toCipher = (int) Math.min(n, HEADER_SIZE - headerBytesRead);
+            // Apply the cipher only to the bytes that fall within encrypted ranges
+            long end = position + n;
+            for (int i = encrypted.indexAfter(position);
+                 i < encrypted.size() && encrypted.start(i) < end; i++) {
+                long from = Math.max(position, encrypted.start(i));
+                long to = Math.min(end, encrypted.end(i));
                 try {
-                    byte[] decrypted = cipher.update(buf, off, toCipher);
-                    if (decrypted != null) {
-                        System.arraycopy(decrypted, 0, buf, off, decrypted.length);
+                    if (cipher == null) cipher = CipherPool.acquire();
+                    if (cipherPosition != from) {
+                        // After a reset or skip, or past a plaintext gap
+                        CipherPool.initAt(cipher, key, nonce, from);
                     }
-                } catch (Exception e) {
+                    CipherPool.apply(cipher, buf, off + (int) (from - position), (int) (to - from));
+                    cipherPosition = to;
+                } catch (GeneralSecurityException e) {
                     throw new IOException("Stream decryption error", e);
                 }
             }
-            // Bytes beyond HEADER_SIZE pass through unchanged (they were never encrypted)
-            headerBytesRead += n;
+            // Bytes outside them pass through unchanged
+            position = end;
             return n;
         }
 
+        @Override
+        public long skip(long n) throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            long skipped = Math.max(0, Math.min(n, contentLength - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, contentLength - position));
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        /** Marks the current position; {@code readLimit} is ignored, a mark never expires. */
+        @Override
+        public void mark(int readLimit) {
+            mark = position;
+        }
+
+        /** Returns to the last mark, or to the start of the content if none was set. */
+        @Override
+        public void reset() throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            position = mark;
+        }
+
         @Override
         public void close() throws IOException {
+            closed = true;
+            CipherPool.release(cipher);
+            cipher = null;
             fis.close();
         }
     }
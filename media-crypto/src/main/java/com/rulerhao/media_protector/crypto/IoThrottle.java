@@ -0,0 +1,37 @@
+package com.rulerhao.media_protector.crypto;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Caps the read rate of background passes (vault verification) so they do not starve the
+ * foreground. Shared by all threads of a pass; each caller reserves its bytes up front and
+ * sleeps until the reservation falls within the budget.
+ */
+final class IoThrottle {
+
+    private final long bytesPerSecond;
+    private long nextFreeNanos;
+
+    IoThrottle(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) throw new IllegalArgumentException("rate <= 0: " + bytesPerSecond);
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /** Blocks until {@code bytes} more may be read. */
+    void acquire(long bytes) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (nextFreeNanos < now) nextFreeNanos = now;
+            waitNanos = nextFreeNanos - now;
+            nextFreeNanos += bytes * 1_000_000_000L / bytesPerSecond;
+        }
+        if (waitNanos <= 0) return;
+        try {
+            Thread.sleep(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.rulerhao.media_protector.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read-only {@link SeekableByteChannel} over the decrypted content of a {@code .mprot} file.
+ *
+ * <p>Any byte range is decrypted directly: the CTR counter block for the requested offset is
+ * computed instead of replaying the keystream from the start, so a read costs the same at
+ * offset 0 and at offset 4 GB. Position 0 is the first byte of the original content, and
+ * {@link #size()} is its length; nonce prefix and trailer are never visible.
+ *
+ * <p>{@link #read(ByteBuffer, long)} uses only positional {@link FileChannel} reads and
+ * per-thread ciphers, so several readers (MediaPlayer, BitmapRegionDecoder, an exporter) can
+ * pull different ranges of one channel concurrently without any locking. The sequential
+ * {@link #read(ByteBuffer)} / {@link #position(long)} pair keeps a per-instance position and,
+ * like any channel position, should be driven from one thread at a time.
+ *
+ * <p>Obtain instances through {@link HeaderObfuscator#openChannel(File)}.
+ */
+public final class MprotChannel implements SeekableByteChannel {
+
+    private static final int SCRATCH_SIZE = 16 * 1024;
+
+    /** Bounce buffer for direct destination buffers, which the cipher cannot work on in place. */
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SCRATCH_SIZE];
+        }
+    };
+
+    private final RandomAccessFile  raf;
+    private final FileChannel       channel;
+    private final MprotLayout       layout;
+    private final HeaderObfuscator  obfuscator;
+    private volatile long           position = 0;
+
+    MprotChannel(File encryptedFile, HeaderObfuscator obfuscator) throws IOException {
+        this.raf = new RandomAccessFile(encryptedFile, "r");
+        try {
+            this.channel = raf.getChannel();
+            this.layout = MprotLayout.read(channel, encryptedFile);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        this.obfuscator = obfuscator;
+    }
+
+    /** The on-disk layout of the underlying file. */
+    public MprotLayout layout() {
+        return layout;
+    }
+
+    /**
+     * Reads decrypted content starting at {@code position} into {@code dst}, without
+     * touching this channel's position. Safe to call from several threads at once.
+     *
+     * @return the number of bytes read, possibly zero, or -1 if {@code position} is at or
+     *         past the end of the content
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (!channel.isOpen()) throw new ClosedChannelException();
+        if (position < 0) throw new IllegalArgumentException("Negative position: " + position);
+        long size = layout.contentLength();
+        if (position >= size) return -1;
+        int want = (int) Math.min(dst.remaining(), size - position);
+        if (want == 0) return 0;
+
+        long filePos = layout.dataOffset() + position;
+        if (!layout.encryptedRanges().overlaps(position, position + want)) {
+            // Plaintext region of a header-only file: straight from disk into dst.
+            ByteBuffer window = dst.duplicate();
+            window.limit(window.position() + want);
+            int n = channel.read(window, filePos);
+            if (n > 0) dst.position(dst.position() + n);
+            return n < 0 ? -1 : n;
+        }
+
+        if (dst.hasArray()) {
+            // Read raw bytes into dst's backing array and decrypt them where they land.
+            ByteBuffer window = dst.duplicate();
+            window.limit(window.position() + want);
+            int n = channel.read(window, filePos);
+            if (n <= 0) return n < 0 ? -1 : 0;
+            obfuscator.decryptRange(layout, position, dst.array(),
+                    dst.arrayOffset() + dst.position(), n);
+            dst.position(dst.position() + n);
+            return n;
+        }
+
+        byte[] scratch = SCRATCH.get();
+        int n = channel.read(ByteBuffer.wrap(scratch, 0, Math.min(want, scratch.length)), filePos);
+        if (n <= 0) return n < 0 ? -1 : 0;
+        obfuscator.decryptRange(layout, position, scratch, 0, n);
+        dst.put(scratch, 0, n);
+        return n;
+    }
+
+    /**
+     * Reads until {@code dst} is full or the content ends.
+     *
+     * @return the number of bytes read, or -1 if {@code position} is past the end
+     */
+    public int readFully(ByteBuffer dst, long position) throws IOException {
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n = read(dst, position + total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total == 0 && position >= layout.contentLength() ? -1 : total;
+    }
+
+    // -------------------------------------------------------------------------
+    // SeekableByteChannel
+    // -------------------------------------------------------------------------
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int n = read(dst, position);
+        if (n > 0) position += n;
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        if (!channel.isOpen()) throw new ClosedChannelException();
+        return position;
+    }
+
+    @Override
+    public MprotChannel position(long newPosition) throws IOException {
+        if (!channel.isOpen()) throw new ClosedChannelException();
+        if (newPosition < 0) throw new IllegalArgumentException("Negative position: " + newPosition);
+        position = newPosition;
+        return this;
+    }
+
+    /** Length of the decrypted content. */
+    @Override
+    public long size() throws IOException {
+        if (!channel.isOpen()) throw new ClosedChannelException();
+        return layout.contentLength();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
@@ -0,0 +1,410 @@
+package com.rulerhao.media_protector.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Describes where the parts of a {@code .mprot} file live on disk.
+ *
+ * <p>Two layouts exist:
+ * <pre>
+ *   Legacy (prefix):  [16-byte nonce][encrypted first min(size, 1024) bytes][rest unchanged]
+ *
+ *   Trailer:          [encrypted first min(size, 1024) bytes][rest unchanged]
+ *                     [trailer body][4-byte body length][8-byte magic "MPROTTRL"]
+ *   trailer body:     [1-byte version][1-byte flags][16-byte nonce][optional fields]
+ *   optional fields:  [4-byte CRC-32 of the plaintext header]   if FLAG_HEADER_CRC
+ *                     [4-byte plaintext content digest]         if FLAG_CONTENT_CRC
+ *                     [2-byte range count n]
+ *                     [n x (8-byte start, 4-byte length,
+ *                           4-byte CRC-32 of the plaintext)]    if FLAG_RANGE_MAP
+ *                     [4-byte master key check value]
+ *                     [16-byte data key wrapped under it]       if FLAG_WRAPPED_KEY
+ * </pre>
+ *
+ * <p>With {@link #FLAG_FULL_CONTENT} set in a trailer, every content byte is encrypted
+ * instead of only the first 1 KB. With {@link #FLAG_RANGE_MAP}, the listed ranges are
+ * encrypted as well as the first 1 KB: the container's structure and metadata (see
+ * {@link ContainerRanges}). The map is sorted, so {@link #encryptedRanges()} tells with a
+ * binary search whether an offset is encrypted. Either way byte {@code i} of the content
+ * uses CTR keystream offset {@code i}. Readers only need to know which bytes to run the
+ * cipher on.
+ *
+ * <p>The trailer layout lets a file be protected in place: only the first 1 KB is rewritten
+ * and a few bytes are appended, instead of copying the whole payload behind a prefix.
+ * Logical offset 0 is the first byte of the original content in both layouts; use
+ * {@link #dataOffset()} to map it to a file position.
+ *
+ * <p>The header CRC lets an interrupted in-place operation be finished or rolled back: it
+ * tells whether the first 1 KB on disk is currently plaintext or ciphertext. The range CRCs
+ * do the same for each mapped range, and let {@link HeaderObfuscator#verify} check the
+ * metadata of a file that has no content digest. The content
+ * digest (see {@link ContentDigest}) lets the whole file be verified later.
+ *
+ * <p>With {@link #FLAG_WRAPPED_KEY} the content is encrypted under its own data key, stored
+ * wrapped under a master key (see {@link VaultKeys}). The wrapped key sits at a fixed offset
+ * from the end of the file, so re-keying overwrites those 20 bytes and nothing else. Without
+ * it, the content is encrypted under the built-in key.
+ *
+ * <p>Readers reject flags they do not understand rather than returning garbage.
+ */
+public final class MprotLayout {
+
+    /** Number of leading content bytes that are encrypted in header-only mode. */
+    public static final int HEADER_SIZE = 1024;
+    /** AES-CTR nonce (initial counter block) length. */
+    public static final int NONCE_SIZE  = 16;
+
+    /** Trailer flag: the whole content is encrypted, not just the first 1 KB. */
+    static final int FLAG_FULL_CONTENT = 0x01;
+    /** Trailer flag: the body carries a CRC-32 of the plaintext header. */
+    static final int FLAG_HEADER_CRC   = 0x02;
+    /** Trailer flag: the body carries a digest of the whole plaintext content. */
+    static final int FLAG_CONTENT_CRC  = 0x04;
+    /** Trailer flag: the body carries the file's data key, wrapped under a master key. */
+    static final int FLAG_WRAPPED_KEY  = 0x08;
+    /** Trailer flag: the body lists further encrypted ranges beyond the first 1 KB. */
+    static final int FLAG_RANGE_MAP    = 0x10;
+
+    static final byte VERSION = 1;
+
+    private static final byte[] MAGIC = {'M', 'P', 'R', 'O', 'T', 'T', 'R', 'L'};
+    private static final int FOOTER_SIZE = 4 + MAGIC.length;     // body length + magic
+    private static final int BODY_SIZE   = 1 + 1 + NONCE_SIZE;   // version + flags + nonce
+    private static final int CRC_SIZE    = 4;
+    private static final int KEY_RECORD_SIZE = 4 + VaultKeys.KEY_SIZE; // check value + wrapped key
+    private static final int RANGE_ENTRY_SIZE = 8 + 4 + CRC_SIZE;     // start + length + CRC
+    private static final int MAX_RANGES = 0xFFFF;
+    private static final int KNOWN_FLAGS = FLAG_FULL_CONTENT | FLAG_HEADER_CRC | FLAG_CONTENT_CRC
+            | FLAG_WRAPPED_KEY | FLAG_RANGE_MAP;
+
+    private final boolean trailer;
+    private final int     flags;
+    private final byte[]  nonce;
+    private final long    dataOffset;
+    private final long    contentLength;
+    private final int     headerCrc;
+    private final int     contentCrc;
+    private final int     masterKeyId;
+    private final byte[]  wrappedKey;
+    private final RangeMap extraRanges;     // mapped ranges beyond the header
+    private final int[]    rangeCrcs;       // plaintext CRC-32 per extra range
+    private final RangeMap encryptedRanges;
+
+    /** Unwrapped data key, resolved on first use by {@link HeaderObfuscator}. */
+    private volatile SecretKey dataKey;
+
+    private MprotLayout(boolean trailer, int flags, byte[] nonce, long dataOffset,
+                        long contentLength, int headerCrc, int contentCrc, int masterKeyId,
+                        byte[] wrappedKey, RangeMap extraRanges, int[] rangeCrcs) {
+        this.trailer       = trailer;
+        this.flags         = flags;
+        this.nonce         = nonce;
+        this.dataOffset    = dataOffset;
+        this.contentLength = contentLength;
+        this.headerCrc     = headerCrc;
+        this.contentCrc    = contentCrc;
+        this.masterKeyId   = masterKeyId;
+        this.wrappedKey    = wrappedKey;
+        this.extraRanges   = extraRanges;
+        this.rangeCrcs     = rangeCrcs;
+        this.encryptedRanges = (flags & FLAG_FULL_CONTENT) != 0
+                ? RangeMap.prefix(contentLength)
+                : RangeMap.prefix(Math.min(HEADER_SIZE, contentLength)).union(extraRanges);
+    }
+
+    // -------------------------------------------------------------------------
+    // Reading
+    // -------------------------------------------------------------------------
+
+    /** Reads the layout of {@code file}. */
+    public static MprotLayout read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return read(raf.getChannel(), file);
+        }
+    }
+
+    /**
+     * Reads the layout through {@code channel} using positional reads only, so the
+     * channel's own position is left untouched.
+     *
+     * @param source used for error messages only
+     */
+    public static MprotLayout read(FileChannel channel, Object source) throws IOException {
+        long size = channel.size();
+
+        if (size >= BODY_SIZE + FOOTER_SIZE) {
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            readFully(channel, footer, size - FOOTER_SIZE);
+            footer.flip();
+            int bodyLength = footer.getInt();
+            if (hasMagic(footer) && bodyLength >= BODY_SIZE
+                    && bodyLength <= size - FOOTER_SIZE) {
+                ByteBuffer body = ByteBuffer.allocate(bodyLength);
+                long bodyStart = size - FOOTER_SIZE - bodyLength;
+                readFully(channel, body, bodyStart);
+                body.flip();
+                byte version = body.get();
+                byte flags = body.get();
+                if (version != VERSION || (flags & ~KNOWN_FLAGS) != 0) {
+                    throw new IOException("Unsupported .mprot trailer (version " + version
+                            + ", flags 0x" + Integer.toHexString(flags & 0xFF) + "): " + source);
+                }
+                byte[] nonce = new byte[NONCE_SIZE];
+                body.get(nonce);
+                if (body.remaining() < bodySize(flags, 0) - BODY_SIZE) {
+                    throw new IOException("Truncated .mprot trailer: " + source);
+                }
+                int headerCrc  = (flags & FLAG_HEADER_CRC)  != 0 ? body.getInt() : 0;
+                int contentCrc = (flags & FLAG_CONTENT_CRC) != 0 ? body.getInt() : 0;
+                RangeMap extraRanges = RangeMap.EMPTY;
+                int[] rangeCrcs = new int[0];
+                if ((flags & FLAG_RANGE_MAP) != 0) {
+                    int rangeCount = body.getShort() & 0xFFFF;
+                    if (body.remaining() < rangeCount * RANGE_ENTRY_SIZE
+                            + ((flags & FLAG_WRAPPED_KEY) != 0 ? KEY_RECORD_SIZE : 0)) {
+                        throw new IOException("Truncated .mprot trailer: " + source);
+                    }
+                    rangeCrcs = new int[rangeCount];
+                    long[] bounds = new long[2 * rangeCount];
+                    long previousEnd = Math.min(HEADER_SIZE, bodyStart);
+                    for (int i = 0; i < rangeCount; i++) {
+                        long start = body.getLong();
+                        long end = start + (body.getInt() & 0xFFFFFFFFL);
+                        rangeCrcs[i] = body.getInt();
+                        if (start < previousEnd || end <= start || end > bodyStart) {
+                            throw new IOException("Malformed .mprot range map: " + source);
+                        }
+                        bounds[2 * i] = start;
+                        bounds[2 * i + 1] = end;
+                        previousEnd = end;
+                    }
+                    extraRanges = RangeMap.of(bounds);
+                    if (extraRanges.size() != rangeCount) {
+                        // Adjacent entries would merge and no longer line up with their CRCs
+                        throw new IOException("Malformed .mprot range map: " + source);
+                    }
+                }
+                int masterKeyId = 0;
+                byte[] wrappedKey = null;
+                if ((flags & FLAG_WRAPPED_KEY) != 0) {
+                    masterKeyId = body.getInt();
+                    wrappedKey = new byte[VaultKeys.KEY_SIZE];
+                    body.get(wrappedKey);
+                }
+                return new MprotLayout(true, flags, nonce, 0, bodyStart, headerCrc, contentCrc,
+                        masterKeyId, wrappedKey, extraRanges, rangeCrcs);
+            }
+        }
+
+        if (size < NONCE_SIZE) {
+            throw new IOException("Encrypted file too short (missing nonce): " + source);
+        }
+        ByteBuffer nonce = ByteBuffer.allocate(NONCE_SIZE);
+        readFully(channel, nonce, 0);
+        return new MprotLayout(false, 0, nonce.array(), NONCE_SIZE, size - NONCE_SIZE, 0, 0,
+                0, null, RangeMap.EMPTY, new int[0]);
+    }
+
+    // -------------------------------------------------------------------------
+    // Writing
+    // -------------------------------------------------------------------------
+
+    /**
+     * Returns the number of bytes {@link #writeTrailer} appends for {@code flags} and
+     * {@code rangeCount} mapped ranges.
+     */
+    static int trailerSize(int flags, int rangeCount) {
+        return bodySize(flags, rangeCount) + FOOTER_SIZE;
+    }
+
+    /**
+     * Writes a trailer carrying {@code nonce} and {@code flags} at {@code position}.
+     * {@code headerCrc}, {@code contentCrc}, {@code extraRanges} with their
+     * {@code rangeCrcs}, and {@code dataKey} are stored only if {@link #FLAG_HEADER_CRC},
+     * {@link #FLAG_CONTENT_CRC}, {@link #FLAG_RANGE_MAP} and {@link #FLAG_WRAPPED_KEY},
+     * respectively, are set. Mapped ranges must lie beyond the header and be shorter than
+     * 4 GB.
+     */
+    static void writeTrailer(FileChannel channel, long position, byte[] nonce, int flags,
+                             int headerCrc, int contentCrc, RangeMap extraRanges,
+                             int[] rangeCrcs, VaultKeys.DataKey dataKey) throws IOException {
+        int rangeCount = (flags & FLAG_RANGE_MAP) != 0 ? extraRanges.size() : 0;
+        if (rangeCount > MAX_RANGES) throw new IOException("Too many ranges: " + rangeCount);
+        int bodySize = bodySize(flags, rangeCount);
+        ByteBuffer buf = ByteBuffer.allocate(bodySize + FOOTER_SIZE);
+        buf.put(VERSION).put((byte) flags).put(nonce, 0, NONCE_SIZE);
+        if ((flags & FLAG_HEADER_CRC)  != 0) buf.putInt(headerCrc);
+        if ((flags & FLAG_CONTENT_CRC) != 0) buf.putInt(contentCrc);
+        if ((flags & FLAG_RANGE_MAP)   != 0) {
+            buf.putShort((short) rangeCount);
+            for (int i = 0; i < rangeCount; i++) {
+                buf.putLong(extraRanges.start(i))
+                        .putInt((int) (extraRanges.end(i) - extraRanges.start(i)))
+                        .putInt(rangeCrcs[i]);
+            }
+        }
+        if ((flags & FLAG_WRAPPED_KEY) != 0) buf.putInt(dataKey.masterId).put(dataKey.wrapped);
+        buf.putInt(bodySize).put(MAGIC);
+        buf.flip();
+        writeFully(channel, buf, position);
+    }
+
+    /**
+     * Overwrites the wrapped data key of a file with this layout, which must have
+     * {@link #hasWrappedKey()}. Nothing else in the file changes.
+     */
+    void writeWrappedKey(FileChannel channel, VaultKeys.DataKey dataKey) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(KEY_RECORD_SIZE);
+        buf.putInt(dataKey.masterId).put(dataKey.wrapped);
+        buf.flip();
+        // The key record is the last field of the body, which ends where the footer starts
+        writeFully(channel, buf, dataOffset + contentLength + bodySize(flags, extraRanges.size())
+                - KEY_RECORD_SIZE);
+    }
+
+    // -------------------------------------------------------------------------
+    // Accessors
+    // -------------------------------------------------------------------------
+
+    /** {@code true} for the in-place trailer layout, {@code false} for the legacy prefix. */
+    public boolean isTrailer() {
+        return trailer;
+    }
+
+    /** The AES-CTR initial counter block. Callers must not modify the returned array. */
+    public byte[] nonce() {
+        return nonce;
+    }
+
+    /** File position of logical content offset 0. */
+    public long dataOffset() {
+        return dataOffset;
+    }
+
+    /** Length of the original content. */
+    public long contentLength() {
+        return contentLength;
+    }
+
+    /** {@code true} if every content byte is encrypted, not just the header. */
+    public boolean isFullContent() {
+        return (flags & FLAG_FULL_CONTENT) != 0;
+    }
+
+    /** Length of the leading header region, {@code min(HEADER_SIZE, contentLength)}. */
+    public int headerLength() {
+        return (int) Math.min(HEADER_SIZE, contentLength);
+    }
+
+    /** {@code true} if the trailer records a CRC-32 of the plaintext header. */
+    boolean hasHeaderCrc() {
+        return (flags & FLAG_HEADER_CRC) != 0;
+    }
+
+    /** CRC-32 of the plaintext header; only meaningful if {@link #hasHeaderCrc()}. */
+    int headerCrc() {
+        return headerCrc;
+    }
+
+    /** {@code true} if the trailer records a digest of the plaintext content. */
+    boolean hasContentCrc() {
+        return (flags & FLAG_CONTENT_CRC) != 0;
+    }
+
+    /** Plaintext content digest; only meaningful if {@link #hasContentCrc()}. */
+    int contentCrc() {
+        return contentCrc;
+    }
+
+    /** {@code true} if the content is encrypted under its own, wrapped data key. */
+    public boolean hasWrappedKey() {
+        return (flags & FLAG_WRAPPED_KEY) != 0;
+    }
+
+    /** Check value of the master key wrapping the data key; only if {@link #hasWrappedKey()}. */
+    int masterKeyId() {
+        return masterKeyId;
+    }
+
+    /** The wrapped data key; only meaningful if {@link #hasWrappedKey()}. */
+    byte[] wrappedKey() {
+        return wrappedKey;
+    }
+
+    SecretKey dataKey() {
+        return dataKey;
+    }
+
+    void setDataKey(SecretKey key) {
+        dataKey = key;
+    }
+
+    /**
+     * The encrypted content ranges: the header, plus the mapped ranges if the file has a
+     * range map, or all of the content for a full-content file.
+     */
+    public RangeMap encryptedRanges() {
+        return encryptedRanges;
+    }
+
+    /** Content offset past which nothing is encrypted. */
+    public long encryptedLength() {
+        return encryptedRanges.end();
+    }
+
+    /** {@code true} if the trailer lists encrypted ranges beyond the header. */
+    boolean hasRangeMap() {
+        return (flags & FLAG_RANGE_MAP) != 0;
+    }
+
+    /** The mapped ranges beyond the header; empty without {@link #hasRangeMap()}. */
+    RangeMap extraRanges() {
+        return extraRanges;
+    }
+
+    /** Plaintext CRC-32 of each of {@link #extraRanges()}, in order. */
+    int[] rangeCrcs() {
+        return rangeCrcs;
+    }
+
+    // -------------------------------------------------------------------------
+    // Channel helpers
+    // -------------------------------------------------------------------------
+
+    /** Positional read until {@code dst} is full; fails on a premature EOF. */
+    static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) throw new IOException("Unexpected end of file at " + position);
+            position += n;
+        }
+    }
+
+    /** Positional write of all remaining bytes of {@code src}. */
+    static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    private static int bodySize(int flags, int rangeCount) {
+        return BODY_SIZE
+                + ((flags & FLAG_HEADER_CRC)  != 0 ? CRC_SIZE : 0)
+                + ((flags & FLAG_CONTENT_CRC) != 0 ? CRC_SIZE : 0)
+                + ((flags & FLAG_RANGE_MAP)   != 0 ? 2 + rangeCount * RANGE_ENTRY_SIZE : 0)
+                + ((flags & FLAG_WRAPPED_KEY) != 0 ? KEY_RECORD_SIZE : 0);
+    }
+
+    private static boolean hasMagic(ByteBuffer footer) {
+        for (byte b : MAGIC) {
+            if (footer.get() != b) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,172 @@
+package com.rulerhao.media_protector.crypto;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of content byte ranges, kept sorted and disjoint: which parts of a
+ * {@code .mprot} file are encrypted (see {@link MprotLayout#encryptedRanges()}).
+ *
+ * <p>Lookups are binary searches, so whether a read at any offset needs the cipher is
+ * decided in {@code O(log n)}, however many ranges a container produced.
+ */
+public final class RangeMap {
+
+    static final RangeMap EMPTY = new RangeMap(new long[0], new long[0]);
+
+    private final long[] starts;
+    private final long[] ends;
+
+    private RangeMap(long[] starts, long[] ends) {
+        this.starts = starts;
+        this.ends   = ends;
+    }
+
+    /** The single range {@code [0, end)}, or no range if {@code end} is not positive. */
+    static RangeMap prefix(long end) {
+        return end > 0 ? new RangeMap(new long[] {0}, new long[] {end}) : EMPTY;
+    }
+
+    /**
+     * Builds a map from {@code bounds}, read as {@code [start0, end0, start1, end1, ...]} in
+     * any order. Overlapping and adjacent ranges are merged and empty ones dropped.
+     */
+    static RangeMap of(long[] bounds) {
+        int count = bounds.length / 2;
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(bounds[2 * a], bounds[2 * b]));
+
+        long[] starts = new long[count];
+        long[] ends = new long[count];
+        int n = 0;
+        for (int i : order) {
+            long start = bounds[2 * i];
+            long end = bounds[2 * i + 1];
+            if (end <= start) continue;
+            if (n > 0 && start <= ends[n - 1]) {
+                ends[n - 1] = Math.max(ends[n - 1], end);
+            } else {
+                starts[n] = start;
+                ends[n] = end;
+                n++;
+            }
+        }
+        return new RangeMap(Arrays.copyOf(starts, n), Arrays.copyOf(ends, n));
+    }
+
+    /** The ranges of both maps together. */
+    RangeMap union(RangeMap other) {
+        long[] bounds = new long[2 * (size() + other.size())];
+        int b = 0;
+        for (RangeMap map : new RangeMap[] {this, other}) {
+            for (int i = 0; i < map.size(); i++) {
+                bounds[b++] = map.starts[i];
+                bounds[b++] = map.ends[i];
+            }
+        }
+        return of(bounds);
+    }
+
+    /** The parts of these ranges that fall inside {@code [from, to)}. */
+    RangeMap clip(long from, long to) {
+        long[] bounds = new long[2 * size()];
+        for (int i = 0; i < size(); i++) {
+            bounds[2 * i]     = Math.max(starts[i], from);
+            bounds[2 * i + 1] = Math.min(ends[i], to);
+        }
+        return of(bounds);
+    }
+
+    /**
+     * Merges neighbouring ranges across their smallest gaps until at most {@code maxRanges}
+     * are left. The result covers everything this map does, plus those gaps.
+     */
+    RangeMap coarsen(int maxRanges) {
+        if (size() <= maxRanges) return this;
+        long[] s = starts.clone();
+        long[] e = ends.clone();
+        int n = s.length;
+        while (n > maxRanges) {
+            int best = 0;
+            for (int i = 1; i < n - 1; i++) {
+                if (s[i + 1] - e[i] < s[best + 1] - e[best]) best = i;
+            }
+            e[best] = e[best + 1];
+            System.arraycopy(s, best + 2, s, best + 1, n - best - 2);
+            System.arraycopy(e, best + 2, e, best + 1, n - best - 2);
+            n--;
+        }
+        return new RangeMap(Arrays.copyOf(s, n), Arrays.copyOf(e, n));
+    }
+
+    // -------------------------------------------------------------------------
+    // Queries
+    // -------------------------------------------------------------------------
+
+    /** Number of ranges. */
+    public int size() {
+        return starts.length;
+    }
+
+    /** First offset of range {@code i}. */
+    public long start(int i) {
+        return starts[i];
+    }
+
+    /** Offset just past range {@code i}. */
+    public long end(int i) {
+        return ends[i];
+    }
+
+    /** Offset just past the last range; 0 if there is none. */
+    public long end() {
+        return ends.length > 0 ? ends[ends.length - 1] : 0;
+    }
+
+    /** Total number of bytes covered. */
+    public long totalLength() {
+        long total = 0;
+        for (int i = 0; i < size(); i++) total += ends[i] - starts[i];
+        return total;
+    }
+
+    /**
+     * Index of the first range that ends after {@code offset}: the range containing it, or
+     * else the next one. {@link #size()} if no range lies at or after {@code offset}.
+     */
+    public int indexAfter(long offset) {
+        int lo = 0;
+        int hi = ends.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ends[mid] <= offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** {@code true} if {@code offset} lies in a range. */
+    public boolean contains(long offset) {
+        int i = indexAfter(offset);
+        return i < size() && starts[i] <= offset;
+    }
+
+    /** {@code true} if any range overlaps {@code [from, to)}. */
+    public boolean overlaps(long from, long to) {
+        int i = indexAfter(from);
+        return i < size() && starts[i] < to;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(starts[i]).append('-').append(ends[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
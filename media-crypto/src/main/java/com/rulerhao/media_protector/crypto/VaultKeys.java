@@ -0,0 +1,279 @@
+package com.rulerhao.media_protector.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Master keys of the vault, held in memory for the unlocked session.
+ *
+ * <p>Every file written by this version gets its own random AES-128 data key. Only the
+ * data key encrypts content; the trailer stores it wrapped (AES-encrypted) under a master
+ * key, together with that master key's 4-byte check value (see {@link MprotLayout}).
+ * Changing the master key therefore means re-wrapping 20 bytes per file
+ * ({@link HeaderObfuscator#rewrap(java.io.File)}), never re-encrypting content.
+ *
+ * <p>Which master key wraps new files:
+ * <ul>
+ *   <li>after {@link #unlock(SecretKey)} — the session key, normally derived from the PIN
+ *       with {@link #deriveMasterKey};</li>
+ *   <li>otherwise — the key built into this binary, as used by files that predate key
+ *       wrapping. Such files are no better protected than before, but a later re-key pass
+ *       moves them under the session key without touching their content.</li>
+ * </ul>
+ *
+ * <p>Files can still be read while a re-key pass is under way: master keys that were
+ * replaced are registered with {@link #retire(SecretKey)} and keep unwrapping the files
+ * that still refer to them. {@link #exportRetired()} / {@link #importRetired(byte[])} carry
+ * that set across process restarts, wrapped under the current master key. They are kept
+ * even after a pass, since a pass only reaches the files it can find.
+ *
+ * <p>A data key is wrapped as a single AES block under ECB. That is sound for one block of
+ * random key material, and needs no algorithm beyond what every Android release ships.
+ */
+public final class VaultKeys {
+
+    /** Length of a key-derivation salt. */
+    public static final int SALT_SIZE = 16;
+    /** PBKDF2 iteration count for new PINs. */
+    public static final int DEFAULT_ITERATIONS = 10_000;
+
+    /** Length of an AES-128 key, and of a wrapped one. */
+    static final int KEY_SIZE = 16;
+
+    private static final String KDF  = "PBKDF2WithHmacSHA1"; // HmacSHA256 variant needs API 26
+    static final String WRAP = "AES/ECB/NoPadding";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final Master BUILT_IN = new Master(HeaderObfuscator.KEY);
+
+    /** The unlocked session's master key; {@code null} while locked. */
+    private static volatile Master session;
+
+    /** Replaced master keys that files may still refer to, by check value. */
+    private static final Map<Integer, SecretKey> RETIRED = new ConcurrentHashMap<>();
+
+    private VaultKeys() {}
+
+    // -------------------------------------------------------------------------
+    // Session
+    // -------------------------------------------------------------------------
+
+    /** Returns a new random salt for {@link #deriveMasterKey}. */
+    public static byte[] newSalt() {
+        byte[] salt = new byte[SALT_SIZE];
+        RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Derives a master key from {@code pin} with PBKDF2. A short numeric PIN has little
+     * entropy, so this only slows down guessing; it does not make a weak PIN strong.
+     */
+    public static SecretKey deriveMasterKey(String pin, byte[] salt, int iterations)
+            throws IOException {
+        KeySpec spec = new PBEKeySpec(pin.toCharArray(), salt, iterations, KEY_SIZE * 8);
+        try {
+            byte[] raw = SecretKeyFactory.getInstance(KDF).generateSecret(spec).getEncoded();
+            return new SecretKeySpec(raw, "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Key derivation failed", e);
+        }
+    }
+
+    /**
+     * Check value of {@code master}, as recorded by every file wrapped under it. Tells
+     * whether a key derived from an entered PIN is the right one.
+     */
+    public static int checkValueOf(SecretKey master) {
+        return checkValue(master);
+    }
+
+    /** Makes {@code master} the session key: new files are wrapped under it. */
+    public static void unlock(SecretKey master) {
+        Master m = new Master(master);
+        RETIRED.remove(m.id);
+        session = m;
+    }
+
+    /**
+     * Forgets the session key and the retired keys; new files fall back to the built-in key.
+     */
+    public static void lock() {
+        session = null;
+        RETIRED.clear();
+    }
+
+    /** {@code true} while a session key is held. */
+    public static boolean isUnlocked() {
+        return session != null;
+    }
+
+    /** The session key, or {@code null} while locked. */
+    public static SecretKey sessionKey() {
+        Master m = session;
+        return m != null ? m.key : null;
+    }
+
+    /**
+     * Makes {@code master} the session key, or with {@code null} locks the session, and
+     * retires the previous session key. Files still wrapped under it stay readable until
+     * {@link HeaderObfuscator#rewrap(java.io.File)} moves them.
+     */
+    public static void changeMasterKey(SecretKey master) {
+        Master previous = session;
+        if (master != null) {
+            unlock(master);
+        } else {
+            session = null;
+        }
+        if (previous != null) retire(previous.key);
+    }
+
+    /**
+     * Keeps accepting files wrapped under {@code master} after it stopped being the session
+     * key. The built-in key and the current session key are always accepted and are ignored.
+     */
+    public static void retire(SecretKey master) {
+        Master m = new Master(master);
+        if (m.id == BUILT_IN.id || m.id == current().id) return;
+        RETIRED.put(m.id, m.key);
+    }
+
+    /**
+     * Returns the retired master keys, wrapped under the current master key, for
+     * {@link #importRetired(byte[])} in a later session.
+     */
+    public static byte[] exportRetired() throws IOException {
+        Master wrapping = current();
+        ByteBuffer buf = ByteBuffer.allocate(4 + RETIRED.size() * KEY_SIZE);
+        buf.putInt(wrapping.id);
+        for (SecretKey key : RETIRED.values()) {
+            buf.put(apply(Cipher.ENCRYPT_MODE, wrapping.key, key.getEncoded()));
+        }
+        return buf.array();
+    }
+
+    /**
+     * Registers the retired master keys in {@code blob}, which {@link #exportRetired()}
+     * produced under the current master key.
+     *
+     * @throws IOException if {@code blob} was wrapped under a different master key
+     */
+    public static void importRetired(byte[] blob) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(blob);
+        Master wrapping = current();
+        if (blob.length < 4 || buf.getInt() != wrapping.id || buf.remaining() % KEY_SIZE != 0) {
+            throw new IOException("Retired keys belong to another master key");
+        }
+        byte[] wrapped = new byte[KEY_SIZE];
+        while (buf.hasRemaining()) {
+            buf.get(wrapped);
+            retire(new SecretKeySpec(apply(Cipher.DECRYPT_MODE, wrapping.key, wrapped), "AES"));
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Data keys (package-private)
+    // -------------------------------------------------------------------------
+
+    /** Returns a new random data key, wrapped under the current master key. */
+    static DataKey newDataKey() throws IOException {
+        byte[] raw = new byte[KEY_SIZE];
+        RANDOM.nextBytes(raw);
+        return wrap(new SecretKeySpec(raw, "AES"));
+    }
+
+    /** Wraps {@code dataKey} under the current master key. */
+    static DataKey wrap(SecretKey dataKey) throws IOException {
+        Master m = current();
+        return new DataKey(dataKey, m.id, apply(Cipher.ENCRYPT_MODE, m.key, dataKey.getEncoded()));
+    }
+
+    /** {@code true} if {@code masterId} identifies the master key new files are wrapped under. */
+    static boolean isCurrent(int masterId) {
+        return masterId == current().id;
+    }
+
+    /**
+     * Unwraps a data key stored under the master key with check value {@code masterId}.
+     *
+     * @throws VaultLockedException if that master key is not known in this session
+     */
+    static SecretKey unwrap(int masterId, byte[] wrapped) throws IOException {
+        SecretKey master = masterFor(masterId);
+        if (master == null) {
+            throw new VaultLockedException("No master key " + Integer.toHexString(masterId)
+                    + " in this session");
+        }
+        return new SecretKeySpec(apply(Cipher.DECRYPT_MODE, master, wrapped), "AES");
+    }
+
+    private static SecretKey masterFor(int id) {
+        Master m = session;
+        if (m != null && m.id == id) return m.key;
+        if (id == BUILT_IN.id) return BUILT_IN.key;
+        return RETIRED.get(id);
+    }
+
+    private static Master current() {
+        Master m = session;
+        return m != null ? m : BUILT_IN;
+    }
+
+    private static byte[] apply(int opmode, SecretKey key, byte[] block) throws IOException {
+        try {
+            Cipher cipher = CryptoProviders.newCipher(CryptoProviders.Primitive.WRAP);
+            cipher.init(opmode, key);
+            return cipher.doFinal(block);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Key wrapping failed", e);
+        }
+    }
+
+    /**
+     * Check value of {@code key}: the first 4 bytes of an all-zero block encrypted under it.
+     * Identifies the master key of a file without revealing it.
+     */
+    private static int checkValue(SecretKey key) {
+        try {
+            return ByteBuffer.wrap(apply(Cipher.ENCRYPT_MODE, key, new byte[KEY_SIZE])).getInt();
+        } catch (IOException e) {
+            throw new IllegalStateException("AES unavailable", e);
+        }
+    }
+
+    private static final class Master {
+        final SecretKey key;
+        final int       id;
+
+        Master(SecretKey key) {
+            this.key = key;
+            this.id  = checkValue(key);
+        }
+    }
+
+    /** A file's data key together with its wrapped form, as stored in the trailer. */
+    static final class DataKey {
+        final SecretKey key;
+        final int       masterId;
+        final byte[]    wrapped;
+
+        DataKey(SecretKey key, int masterId, byte[] wrapped) {
+            this.key      = key;
+            this.masterId = masterId;
+            this.wrapped  = wrapped;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.rulerhao.media_protector.crypto;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a file's data key is wrapped under a master key that the current session does
+ * not hold, typically because the vault has not been unlocked yet (see {@link VaultKeys}).
+ * The file itself is fine.
+ */
+public class VaultLockedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public VaultLockedException(String message) {
+        super(message);
+    }
+}
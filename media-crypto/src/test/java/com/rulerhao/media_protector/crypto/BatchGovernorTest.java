@@ -0,0 +1,174 @@
+package com.rulerhao.media_protector.crypto;
+
+import static com.rulerhao.media_protector.crypto.BatchGovernor.RAISE_HOLD_NANOS;
+import static com.rulerhao.media_protector.crypto.BatchGovernor.SAMPLE_INTERVAL_NANOS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.rulerhao.media_protector.crypto.BatchGovernor.Level;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+
+/** Runs the governor's policy against scripted conditions and time. */
+public class BatchGovernorTest {
+
+    private static final long MS = 1_000_000L;
+
+    private final ScriptedDevice device = new ScriptedDevice();
+    private final BatchGovernor governor = new BatchGovernor(device, device);
+
+    @Test
+    public void level_stepsDownAtTheNextSample() {
+        assertEquals(Level.FULL, governor.level());
+
+        device.thermal = BatchGovernor.THERMAL_MODERATE;
+        device.advance(SAMPLE_INTERVAL_NANOS - 1);
+        assertEquals(Level.FULL, governor.level());     // last sample still fresh
+        device.advance(1);
+        assertEquals(Level.REDUCED, governor.level());
+
+        device.charging = false;
+        device.batteryPercent = 10;
+        device.advance(SAMPLE_INTERVAL_NANOS);
+        assertEquals(Level.MINIMAL, governor.level());
+
+        device.thermal = BatchGovernor.THERMAL_CRITICAL;
+        device.advance(SAMPLE_INTERVAL_NANOS);
+        assertEquals(Level.PAUSED, governor.level());
+    }
+
+    @Test
+    public void level_stepsDownWhenTheScreenTurnsOnUnplugged() {
+        device.charging = false;
+        assertEquals(Level.FULL, governor.level());
+
+        device.screenOn = true;
+        device.advance(SAMPLE_INTERVAL_NANOS);
+        assertEquals(Level.EASED, governor.level());
+    }
+
+    @Test
+    public void level_stepsUpOnlyAfterTheRaiseHold() {
+        device.thermal = BatchGovernor.THERMAL_MODERATE;
+        assertEquals(Level.REDUCED, governor.level());
+
+        device.thermal = BatchGovernor.THERMAL_NONE;
+        long hold = 0;
+        for (; hold < RAISE_HOLD_NANOS; hold += SAMPLE_INTERVAL_NANOS) {
+            device.advance(SAMPLE_INTERVAL_NANOS);
+            assertEquals(Level.REDUCED, governor.level());
+        }
+        device.advance(SAMPLE_INTERVAL_NANOS);
+        assertEquals(Level.FULL, governor.level());
+    }
+
+    @Test
+    public void level_restartsTheHoldAfterAWorseSample() {
+        device.thermal = BatchGovernor.THERMAL_MODERATE;
+        assertEquals(Level.REDUCED, governor.level());
+
+        device.thermal = BatchGovernor.THERMAL_NONE;
+        device.advance(SAMPLE_INTERVAL_NANOS);
+        governor.level();                                // the hold starts
+        device.advance(RAISE_HOLD_NANOS - SAMPLE_INTERVAL_NANOS);
+        device.thermal = BatchGovernor.THERMAL_MODERATE;
+        assertEquals(Level.REDUCED, governor.level());   // and is cut short
+
+        device.thermal = BatchGovernor.THERMAL_NONE;
+        device.advance(SAMPLE_INTERVAL_NANOS);
+        assertEquals(Level.REDUCED, governor.level());
+        device.advance(RAISE_HOLD_NANOS - SAMPLE_INTERVAL_NANOS);
+        assertEquals(Level.REDUCED, governor.level());
+        device.advance(SAMPLE_INTERVAL_NANOS);
+        assertEquals(Level.FULL, governor.level());
+    }
+
+    @Test
+    public void level_stepsUpOnlyAsFarAsEverySampleOfTheHold() {
+        device.thermal = BatchGovernor.THERMAL_SEVERE;
+        assertEquals(Level.MINIMAL, governor.level());
+
+        device.thermal = BatchGovernor.THERMAL_LIGHT;
+        device.advance(SAMPLE_INTERVAL_NANOS);
+        governor.level();
+        device.thermal = BatchGovernor.THERMAL_NONE;
+        device.advance(RAISE_HOLD_NANOS);
+        assertEquals(Level.EASED, governor.level());
+    }
+
+    @Test
+    public void target_appliesBatteryAndScreenFloorsOnlyWhileDischarging() {
+        int none = BatchGovernor.THERMAL_NONE;
+        assertEquals(Level.FULL, BatchGovernor.target(none, 10, true, true));
+        assertEquals(Level.FULL, BatchGovernor.target(none, -1, false, false));
+        assertEquals(Level.FULL, BatchGovernor.target(none, 31, false, false));
+        assertEquals(Level.REDUCED, BatchGovernor.target(none, 30, false, false));
+        assertEquals(Level.MINIMAL, BatchGovernor.target(none, 15, false, false));
+        assertEquals(Level.EASED, BatchGovernor.target(none, 80, false, true));
+        assertEquals(Level.REDUCED, BatchGovernor.target(none, 20, false, true));
+
+        // A floor never lifts a worse thermal level
+        assertEquals(Level.REDUCED,
+                BatchGovernor.target(BatchGovernor.THERMAL_MODERATE, 80, false, true));
+        assertEquals(Level.PAUSED,
+                BatchGovernor.target(BatchGovernor.THERMAL_CRITICAL, 10, false, true));
+    }
+
+    @Test
+    public void files_keepsOneFileRunningUntilPaused() {
+        assertEquals(4, Level.FULL.files(4));
+        assertEquals(3, Level.EASED.files(4));
+        assertEquals(2, Level.REDUCED.files(4));
+        assertEquals(1, Level.MINIMAL.files(4));
+        assertEquals(1, Level.REDUCED.files(1));
+        assertEquals(0, Level.PAUSED.files(4));
+    }
+
+    @Test
+    public void pace_restsInProportionToTheDutyCycle() throws InterruptedException {
+        assertPace(BatchGovernor.THERMAL_NONE, 100 * MS, 0);
+        assertPace(BatchGovernor.THERMAL_LIGHT, 80 * MS, 20 * MS);     // busy 0.8
+        assertPace(BatchGovernor.THERMAL_MODERATE, 100 * MS, 100 * MS); // busy 0.5
+        assertPace(BatchGovernor.THERMAL_SEVERE, 100 * MS, 300 * MS);   // busy 0.25
+        assertPace(BatchGovernor.THERMAL_CRITICAL, 100 * MS, 0);        // paused
+    }
+
+    @Test
+    public void awaitRunnable_waitsOutAPauseAndTheRaiseHold() throws InterruptedException {
+        device.thermal = BatchGovernor.THERMAL_CRITICAL;
+        assertEquals(Level.PAUSED, governor.level());
+        device.onSleep = () -> device.thermal = BatchGovernor.THERMAL_LIGHT;
+        long start = device.nanoTime();
+
+        assertEquals(Level.EASED, governor.awaitRunnable());
+
+        long waited = device.nanoTime() - start;
+        assertTrue(waited >= RAISE_HOLD_NANOS);
+        assertTrue(waited < RAISE_HOLD_NANOS + 2 * SAMPLE_INTERVAL_NANOS);
+        assertEquals(Collections.singleton(SAMPLE_INTERVAL_NANOS),
+                new HashSet<>(device.sleeps()));
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    /** Steps a fresh governor down to {@code thermal}'s level and paces one file. */
+    private static void assertPace(int thermal, long busyNanos, long expectedRestNanos)
+            throws InterruptedException {
+        ScriptedDevice device = new ScriptedDevice();
+        device.thermal = thermal;
+        BatchGovernor governor = new BatchGovernor(device, device);
+        governor.level();
+
+        long started = governor.now();
+        device.advance(busyNanos);
+        governor.pace(started);
+
+        long rested = device.sleeps().isEmpty() ? 0 : device.sleeps().get(0);
+        assertEquals(expectedRestNanos, rested, 1);
+    }
+}
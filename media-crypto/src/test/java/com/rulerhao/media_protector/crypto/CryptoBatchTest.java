@@ -0,0 +1,119 @@
+package com.rulerhao.media_protector.crypto;
+
+import static com.rulerhao.media_protector.crypto.BatchGovernor.RAISE_HOLD_NANOS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Runs batches under a governor with scripted conditions and time. */
+public class CryptoBatchTest {
+
+    private static final int MAX_FILES = 4;
+    private static final long MS = 1_000_000L;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(MAX_FILES);
+    private final ScriptedDevice device = new ScriptedDevice();
+
+    @After
+    public void shutDownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void run_withholdsFileSlotsBelowFull() throws InterruptedException {
+        assertEquals(MAX_FILES, maxInFlight(BatchGovernor.THERMAL_NONE));
+        assertEquals(2, maxInFlight(BatchGovernor.THERMAL_MODERATE));
+        assertEquals(1, maxInFlight(BatchGovernor.THERMAL_SEVERE));
+    }
+
+    @Test
+    public void run_restsAfterEachFileButTheLast() throws InterruptedException {
+        device.thermal = BatchGovernor.THERMAL_SEVERE; // one file at a time, busy 0.25
+        CryptoBatch batch = new CryptoBatch(MAX_FILES, Long.MAX_VALUE,
+                new BatchGovernor(device, device));
+
+        CryptoBatch.Result result = batch.run(files(3), file -> device.advance(100 * MS),
+                executor, new NoOpListener());
+
+        assertEquals(3, result.succeeded);
+        assertEquals(Arrays.asList(300 * MS, 300 * MS), device.sleeps());
+    }
+
+    @Test
+    public void run_startsNoFileWhilePaused() throws InterruptedException {
+        device.thermal = BatchGovernor.THERMAL_CRITICAL;
+        BatchGovernor governor = new BatchGovernor(device, device);
+        assertEquals(BatchGovernor.Level.PAUSED, governor.level());
+        long[] cooled = {-1};
+        device.onSleep = () -> {
+            if (cooled[0] < 0) {
+                cooled[0] = device.nanoTime();
+                device.thermal = BatchGovernor.THERMAL_NONE;
+            }
+        };
+        List<Long> startedAt = new ArrayList<>();
+
+        CryptoBatch.Result result = new CryptoBatch(MAX_FILES, Long.MAX_VALUE, governor).run(
+                files(MAX_FILES), file -> {
+                    synchronized (startedAt) {
+                        startedAt.add(device.nanoTime());
+                    }
+                }, executor, new NoOpListener());
+
+        assertEquals(MAX_FILES, result.succeeded);
+        assertTrue(cooled[0] > 0);
+        for (long started : startedAt) assertTrue(started - cooled[0] >= RAISE_HOLD_NANOS);
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    /** Runs a batch of slow files at {@code thermal}'s level and counts the most at once. */
+    private int maxInFlight(int thermal) throws InterruptedException {
+        device.thermal = thermal;
+        CryptoBatch batch = new CryptoBatch(MAX_FILES, Long.MAX_VALUE,
+                new BatchGovernor(device, device));
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger max = new AtomicInteger();
+
+        // Files take real time, but none on the scripted clock, so no worker rests
+        CryptoBatch.Result result = batch.run(files(3 * MAX_FILES), file -> {
+            max.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            running.decrementAndGet();
+        }, executor, new NoOpListener());
+
+        assertEquals(3 * MAX_FILES, result.succeeded);
+        return max.get();
+    }
+
+    /** Files that do not exist, so each counts as empty against the byte budget. */
+    private static List<File> files(int count) {
+        List<File> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) files.add(new File("missing-" + i));
+        return files;
+    }
+
+    private static final class NoOpListener implements CryptoBatch.Listener {
+        @Override
+        public void onProgress(int started, int total, File file, long bytesDone,
+                               long bytesTotal) {
+        }
+
+        @Override
+        public void onFailure(File file, Exception e) {
+            throw new AssertionError("Failed: " + file, e);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.rulerhao.media_protector.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.rulerhao.media_protector.crypto.HeaderObfuscator.Mode;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/** Protects copies and near-copies into a vault and checks which payloads get shared. */
+public class DedupStoreTest {
+
+    private static final int SIZE = 3 * 64 * 1024 + 17;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File vault;
+    private DedupStore store;
+
+    @Before
+    public void createVault() throws IOException {
+        vault = tmp.newFolder("vault");
+        store = DedupStore.forVault(vault);
+    }
+
+    @Test
+    public void protect_sharesTheStoredCopy() throws IOException {
+        HeaderObfuscator full = new HeaderObfuscator(Mode.FULL_CONTENT);
+        byte[] content = content(1);
+
+        assertFalse(protect(content, "a.jpg", full));
+        assertTrue(protect(content, "b.jpg", full));
+
+        assertEquals(DedupStore.resolve(reference("a.jpg")),
+                DedupStore.resolve(reference("b.jpg")));
+        assertArrayEquals(content, decrypt(reference("b.jpg")));
+    }
+
+    @Test
+    public void protect_keepsContentWithADifferentDigestApart() throws IOException {
+        HeaderObfuscator full = new HeaderObfuscator(Mode.FULL_CONTENT);
+        byte[] first = content(1);
+        byte[] second = content(2);
+        byte[] nearCopy = first.clone();
+        nearCopy[SIZE - 1] ^= 1; // only the last byte differs
+
+        assertFalse(protect(first, "a.jpg", full));
+        assertFalse(protect(second, "b.jpg", full));
+        assertFalse(protect(nearCopy, "c.jpg", full));
+        // Past two candidates whose digests differ
+        assertTrue(protect(second, "d.jpg", full));
+
+        assertEquals(DedupStore.resolve(reference("b.jpg")),
+                DedupStore.resolve(reference("d.jpg")));
+        assertNotEquals(DedupStore.resolve(reference("a.jpg")),
+                DedupStore.resolve(reference("c.jpg")));
+        assertArrayEquals(nearCopy, decrypt(reference("c.jpg")));
+    }
+
+    @Test
+    public void protect_comparesPayloadsWithoutADigest() throws IOException {
+        HeaderObfuscator headerOnly = new HeaderObfuscator(Mode.HEADER_ONLY);
+        byte[] content = content(1);
+        byte[] nearCopy = content.clone();
+        nearCopy[SIZE - 1] ^= 1;
+
+        assertFalse(protect(content, "a.jpg", headerOnly));
+        assertFalse(MprotLayout.read(DedupStore.resolve(reference("a.jpg"))).hasContentCrc());
+
+        assertFalse(protect(nearCopy, "b.jpg", headerOnly));
+        assertTrue(protect(content, "c.jpg", headerOnly));
+        assertEquals(DedupStore.resolve(reference("a.jpg")),
+                DedupStore.resolve(reference("c.jpg")));
+    }
+
+    @Test
+    public void protectStream_sharesOnlyTheCopyWithTheSameDigest() throws IOException {
+        HeaderObfuscator full = new HeaderObfuscator(Mode.FULL_CONTENT);
+        byte[] content = content(1);
+        byte[] nearCopy = content.clone();
+        nearCopy[0] ^= 1;
+
+        assertFalse(protect(content, "a.jpg", full));
+        assertFalse(store.protect(new ByteArrayInputStream(nearCopy), reference("b.jpg"),
+                full));
+        assertTrue(store.protect(new ByteArrayInputStream(content), reference("c.jpg"),
+                full));
+
+        assertEquals(DedupStore.resolve(reference("a.jpg")),
+                DedupStore.resolve(reference("c.jpg")));
+        assertArrayEquals(nearCopy, decrypt(reference("b.jpg")));
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    private boolean protect(byte[] content, String name, HeaderObfuscator encryptor)
+            throws IOException {
+        File plain = new File(vault, name);
+        try (FileOutputStream out = new FileOutputStream(plain)) {
+            out.write(content);
+        }
+        boolean shared = store.protect(plain, reference(name), encryptor);
+        assertFalse(plain.exists());
+        return shared;
+    }
+
+    private File reference(String name) {
+        return new File(vault, name + ".mprot");
+    }
+
+    private static byte[] decrypt(File reference) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new HeaderObfuscator().getDecryptedStream(reference)) {
+            byte[] buf = new byte[8192];
+            for (int n; (n = in.read(buf)) > 0; ) out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] content(long seed) {
+        byte[] content = new byte[SIZE];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,64 @@
+package com.rulerhao.media_protector.crypto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sensors and a clock that a test sets by hand. Sleeping only moves the clock forward and
+ * records how long was asked for.
+ */
+final class ScriptedDevice implements BatchGovernor.Sensors, BatchGovernor.Clock {
+
+    volatile int thermal = BatchGovernor.THERMAL_NONE;
+    volatile int batteryPercent = 100;
+    volatile boolean charging = true;
+    volatile boolean screenOn;
+    /** Runs after each sleep, on the sleeping thread, to change conditions mid-wait. */
+    volatile Runnable onSleep;
+
+    private long now = 1_000_000_000L;
+    private final List<Long> sleeps = new ArrayList<>();
+
+    synchronized void advance(long nanos) {
+        now += nanos;
+    }
+
+    synchronized List<Long> sleeps() {
+        return new ArrayList<>(sleeps);
+    }
+
+    @Override
+    public int thermalStatus() {
+        return thermal;
+    }
+
+    @Override
+    public int batteryPercent() {
+        return batteryPercent;
+    }
+
+    @Override
+    public boolean isCharging() {
+        return charging;
+    }
+
+    @Override
+    public boolean isScreenOn() {
+        return screenOn;
+    }
+
+    @Override
+    public synchronized long nanoTime() {
+        return now;
+    }
+
+    @Override
+    public void sleepNanos(long nanos) {
+        synchronized (this) {
+            now += nanos;
+            sleeps.add(nanos);
+        }
+        Runnable hook = onSleep;
+        if (hook != null) hook.run();
+    }
+}
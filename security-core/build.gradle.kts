@@ -18,5 +18,5 @@ android {
 }
 
 dependencies {
-    // No external dependencies
+    implementation(project(":media-crypto"))
 }
@@ -4,26 +4,61 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.hardware.biometrics.BiometricManager;
 import android.os.Build;
+import android.util.Base64;
+import android.util.Log;
 
+import com.rulerhao.media_protector.crypto.CryptoProviders;
+import com.rulerhao.media_protector.crypto.VaultKeys;
+
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
 
 /**
  * Helper class for managing PIN and biometric security settings.
+ *
+ * <p>The PIN also unlocks the vault: a correct PIN derives the master key that wraps each
+ * protected file's data key and caches it in {@link VaultKeys} for the rest of the process.
+ * Setting, changing or clearing the PIN switches the master key and marks a re-key pass as
+ * pending (see {@link #isRekeyPending}); the keys it replaced are kept, wrapped under the
+ * new master key, so files the pass has not reached yet stay readable.
+ *
+ * <p>No hash of the PIN is stored. An entered PIN is checked by deriving the master key
+ * from it and comparing that key's check value, which costs a guesser the full key
+ * derivation per attempt. Deriving takes a noticeable moment, so call {@link #verifyPin},
+ * {@link #verifyPinSuffix} and {@link #setPin} off the main thread.
  */
 public class SecurityHelper {
 
     private static final String PREFS_NAME = "security_prefs";
+    /** SHA-256 of the PIN, as stored before {@link #KEY_PIN_CHECK}; migrated on unlock. */
     private static final String KEY_PIN_HASH = "pin_hash";
+    private static final String KEY_PIN_CHECK = "pin_check";
     private static final String KEY_PIN_ENABLED = "pin_enabled";
     private static final String KEY_FINGERPRINT_ENABLED = "fingerprint_enabled";
     private static final String KEY_AUTO_LOCK_TIMEOUT = "auto_lock_timeout";
     private static final String KEY_LAST_ACTIVITY_TIME = "last_activity_time";
+    private static final String KEY_FULL_ENCRYPTION = "full_encryption";
+    private static final String KEY_DEDUP = "dedup_store";
+    private static final String KEY_DEEP_SCAN = "deep_scan";
+    private static final String KEY_KDF_SALT = "kdf_salt";
+    private static final String KEY_KDF_ITERATIONS = "kdf_iterations";
+    private static final String KEY_RETIRED_KEYS = "retired_keys";
+    private static final String KEY_REKEY_PENDING = "rekey_pending";
+    private static final String KEY_CRYPTO_PROVIDERS = "crypto_providers";
+
+    private static final String TAG = "SecurityHelper";
 
     /** Auto-lock timeout options in minutes. 0 = never. */
     public static final int[] TIMEOUT_OPTIONS = {0, 1, 5, 15, 30};
     public static final int DEFAULT_TIMEOUT = 5; // 5 minutes default
 
+    /** Number of digits in a PIN, as the lock screen takes them. */
+    public static final int PIN_LENGTH = 4;
+
     private SecurityHelper() {}
 
     /**
@@ -101,35 +136,149 @@ public class SecurityHelper {
     }
 
     /**
-     * Save a new PIN (hashed).
+     * Make the master key derived from a new PIN the vault's key, and remember its check
+     * value to verify the PIN by. When a PIN is already set the vault must be unlocked, so
+     * the old key can be retired.
+     *
+     * @return {@code false}, changing nothing, if a PIN is set and the vault is locked;
+     *         {@link #verifyPin} the current PIN first
      */
-    public static void setPin(Context context, String pin) {
-        String hash = hashPin(pin);
+    public static boolean setPin(Context context, String pin) {
+        if (isPinEnabled(context) && !VaultKeys.isUnlocked()) return false;
+        byte[] salt = VaultKeys.newSalt();
+        int iterations = VaultKeys.DEFAULT_ITERATIONS;
+        SecretKey master = deriveMasterKey(pin, salt, iterations);
+        VaultKeys.changeMasterKey(master);
         getPrefs(context).edit()
-                .putString(KEY_PIN_HASH, hash)
+                .remove(KEY_PIN_HASH)
+                .putInt(KEY_PIN_CHECK, VaultKeys.checkValueOf(master))
                 .putBoolean(KEY_PIN_ENABLED, true)
+                .putString(KEY_KDF_SALT, Base64.encodeToString(salt, Base64.NO_WRAP))
+                .putInt(KEY_KDF_ITERATIONS, iterations)
+                .putString(KEY_RETIRED_KEYS, exportRetiredKeys())
+                .putBoolean(KEY_REKEY_PENDING, true)
                 .apply();
+        return true;
     }
 
     /**
-     * Verify the entered PIN against the stored hash.
+     * Verify the entered PIN by the check value of the master key it derives. A correct PIN
+     * also unlocks the vault for the rest of the process.
      */
     public static boolean verifyPin(Context context, String pin) {
-        String storedHash = getPrefs(context).getString(KEY_PIN_HASH, null);
-        if (storedHash == null) return false;
-        String inputHash = hashPin(pin);
-        return storedHash.equals(inputHash);
+        SharedPreferences prefs = getPrefs(context);
+        if (!prefs.contains(KEY_PIN_CHECK)) return verifyLegacyPin(context, pin);
+        String storedSalt = prefs.getString(KEY_KDF_SALT, null);
+        if (storedSalt == null) return false;
+        byte[] salt = Base64.decode(storedSalt, Base64.NO_WRAP);
+        int iterations = prefs.getInt(KEY_KDF_ITERATIONS, VaultKeys.DEFAULT_ITERATIONS);
+        SecretKey master = deriveMasterKey(pin, salt, iterations);
+        if (VaultKeys.checkValueOf(master) != prefs.getInt(KEY_PIN_CHECK, 0)) return false;
+        if (!VaultKeys.isUnlocked()) {
+            VaultKeys.unlock(master);
+            importRetiredKeys(context);
+        }
+        return true;
+    }
+
+    /**
+     * Verify whether {@code input}, as typed into a disguise screen, ends with the PIN. Only
+     * the last {@link #PIN_LENGTH} characters can match, so this derives a single key.
+     */
+    public static boolean verifyPinSuffix(Context context, String input) {
+        if (input.length() < PIN_LENGTH) return false;
+        return verifyPin(context, input.substring(input.length() - PIN_LENGTH));
+    }
+
+    /**
+     * Verifies a PIN set by a version that stored its hash, and replaces the hash with the
+     * check value of the master key.
+     */
+    private static boolean verifyLegacyPin(Context context, String pin) {
+        SharedPreferences prefs = getPrefs(context);
+        String storedHash = prefs.getString(KEY_PIN_HASH, null);
+        if (storedHash == null || !storedHash.equals(hashPin(pin))) return false;
+        // Only a PIN unlocks a session, so an unlocked session holds this PIN's key
+        SecretKey master = VaultKeys.isUnlocked() ? VaultKeys.sessionKey() : unlockVault(context, pin);
+        prefs.edit()
+                .remove(KEY_PIN_HASH)
+                .putInt(KEY_PIN_CHECK, VaultKeys.checkValueOf(master))
+                .apply();
+        return true;
     }
 
     /**
-     * Disable PIN lock and clear stored PIN.
+     * Disable PIN lock and clear stored PIN. The vault falls back to the built-in key, so
+     * the vault must be unlocked to retire the PIN-derived one.
+     *
+     * @return {@code false}, changing nothing, if the vault is locked
      */
-    public static void clearPin(Context context) {
+    public static boolean clearPin(Context context) {
+        if (isPinEnabled(context) && !VaultKeys.isUnlocked()) return false;
+        VaultKeys.changeMasterKey(null);
         getPrefs(context).edit()
                 .remove(KEY_PIN_HASH)
+                .remove(KEY_PIN_CHECK)
                 .putBoolean(KEY_PIN_ENABLED, false)
                 .putBoolean(KEY_FINGERPRINT_ENABLED, false)
+                .remove(KEY_KDF_SALT)
+                .remove(KEY_KDF_ITERATIONS)
+                .putString(KEY_RETIRED_KEYS, exportRetiredKeys())
+                .putBoolean(KEY_REKEY_PENDING, true)
                 .apply();
+        return true;
+    }
+
+    /**
+     * Restores the vault keys that need no PIN. Call on start-up when the PIN lock is off;
+     * with a PIN, {@link #verifyPin} does this.
+     */
+    public static void openVault(Context context) {
+        if (!isPinEnabled(context)) importRetiredKeys(context);
+    }
+
+    /**
+     * Check if the vault's master key is held in memory. Biometric unlock cannot derive it,
+     * so it is only offered once the PIN has been entered since the vault was last locked.
+     */
+    public static boolean isVaultUnlocked() {
+        return VaultKeys.isUnlocked();
+    }
+
+    /**
+     * Forget the vault's master keys when the app locks. Until {@link #verifyPin} unlocks
+     * the vault again, new files are wrapped under the built-in key and the re-key pass
+     * moves them later, as for files protected before the PIN was entered.
+     */
+    public static void lockVault() {
+        VaultKeys.lock();
+    }
+
+    /**
+     * Check if some protected files may still be wrapped under a replaced master key.
+     */
+    public static boolean isRekeyPending(Context context) {
+        return getPrefs(context).getBoolean(KEY_REKEY_PENDING, false);
+    }
+
+    /**
+     * Record whether a re-key pass still has to run. Cleared by the pass once it got through.
+     */
+    public static void setRekeyPending(Context context, boolean pending) {
+        getPrefs(context).edit()
+                .putBoolean(KEY_REKEY_PENDING, pending)
+                .apply();
+    }
+
+    /**
+     * Note that a file was just protected. Files protected while the PIN lock is on but the
+     * vault is locked (e.g. shared from another app) are wrapped under the built-in key,
+     * so the next re-key pass has to move them.
+     */
+    public static void onFileProtected(Context context) {
+        if (isPinEnabled(context) && !VaultKeys.isUnlocked()) {
+            setRekeyPending(context, true);
+        }
     }
 
     /**
@@ -199,10 +348,132 @@ public class SecurityHelper {
         return minutes + " minutes";
     }
 
+    /**
+     * Check if newly protected files should have their whole content encrypted
+     * instead of only the first 1 KB.
+     */
+    public static boolean isFullEncryptionEnabled(Context context) {
+        return getPrefs(context).getBoolean(KEY_FULL_ENCRYPTION, false);
+    }
+
+    /**
+     * Enable or disable full-content encryption for newly protected files.
+     * Existing files keep the mode they were protected with.
+     */
+    public static void setFullEncryptionEnabled(Context context, boolean enabled) {
+        getPrefs(context).edit()
+                .putBoolean(KEY_FULL_ENCRYPTION, enabled)
+                .apply();
+    }
+
+    /**
+     * Check if files protected into the vault should share one encrypted copy per
+     * distinct content (see {@code DedupStore}).
+     */
+    public static boolean isDedupEnabled(Context context) {
+        return getPrefs(context).getBoolean(KEY_DEDUP, false);
+    }
+
+    /**
+     * Enable or disable deduplication for files protected from now on.
+     * Files already in the vault are left as they are.
+     */
+    public static void setDedupEnabled(Context context, boolean enabled) {
+        getPrefs(context).edit()
+                .putBoolean(KEY_DEDUP, enabled)
+                .apply();
+    }
+
+    /**
+     * Check if scans should also cover folders below the usual depth limit, listed a
+     * little at a time while the app is idle (see {@code DeepScanner}).
+     */
+    public static boolean isDeepScanEnabled(Context context) {
+        return getPrefs(context).getBoolean(KEY_DEEP_SCAN, false);
+    }
+
+    /**
+     * Enable or disable the deep scan. Takes effect with the next scan.
+     */
+    public static void setDeepScanEnabled(Context context, boolean enabled) {
+        getPrefs(context).edit()
+                .putBoolean(KEY_DEEP_SCAN, enabled)
+                .apply();
+    }
+
+    /**
+     * Pins the fastest crypto provider for each cipher the vault uses, restoring the choice
+     * made on an earlier run or, on first run and after system updates, measuring it anew
+     * (see {@code CryptoProviders}). Blocks while measuring; call off the main thread.
+     */
+    public static void selectCryptoProviders(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        if (CryptoProviders.importSelection(prefs.getString(KEY_CRYPTO_PROVIDERS, null))) return;
+
+        Map<CryptoProviders.Primitive, CryptoProviders.Selection> selected =
+                CryptoProviders.calibrate();
+        Log.i(TAG, "Crypto providers: " + selected);
+        prefs.edit()
+                .putString(KEY_CRYPTO_PROVIDERS, CryptoProviders.exportSelection())
+                .apply();
+    }
+
+    /** Unlocks the vault with a legacy PIN already verified by its hash; returns the key. */
+    private static SecretKey unlockVault(Context context, String pin) {
+        SharedPreferences prefs = getPrefs(context);
+        String storedSalt = prefs.getString(KEY_KDF_SALT, null);
+        if (storedSalt == null) {
+            // PIN set before key wrapping: start deriving from it, and move existing files
+            byte[] salt = VaultKeys.newSalt();
+            SecretKey master = deriveMasterKey(pin, salt, VaultKeys.DEFAULT_ITERATIONS);
+            VaultKeys.unlock(master);
+            prefs.edit()
+                    .putString(KEY_KDF_SALT, Base64.encodeToString(salt, Base64.NO_WRAP))
+                    .putInt(KEY_KDF_ITERATIONS, VaultKeys.DEFAULT_ITERATIONS)
+                    .putBoolean(KEY_REKEY_PENDING, true)
+                    .apply();
+            return master;
+        }
+        byte[] salt = Base64.decode(storedSalt, Base64.NO_WRAP);
+        int iterations = prefs.getInt(KEY_KDF_ITERATIONS, VaultKeys.DEFAULT_ITERATIONS);
+        SecretKey master = deriveMasterKey(pin, salt, iterations);
+        VaultKeys.unlock(master);
+        importRetiredKeys(context);
+        return master;
+    }
+
+    private static void importRetiredKeys(Context context) {
+        String retired = getPrefs(context).getString(KEY_RETIRED_KEYS, null);
+        if (retired == null) return;
+        try {
+            VaultKeys.importRetired(Base64.decode(retired, Base64.NO_WRAP));
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Could not restore retired vault keys", e);
+        }
+    }
+
+    private static String exportRetiredKeys() {
+        try {
+            return Base64.encodeToString(VaultKeys.exportRetired(), Base64.NO_WRAP);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not store retired vault keys", e);
+        }
+    }
+
+    private static SecretKey deriveMasterKey(String pin, byte[] salt, int iterations) {
+        try {
+            return VaultKeys.deriveMasterKey(pin, salt, iterations);
+        } catch (IOException e) {
+            // PBKDF2WithHmacSHA1 is part of every Android release
+            throw new IllegalStateException("Could not derive vault key", e);
+        }
+    }
+
     private static SharedPreferences getPrefs(Context context) {
         return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
     }
 
+    /** The {@link #KEY_PIN_HASH} form of {@code pin}, only to migrate it. */
     private static String hashPin(String pin) {
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-256");
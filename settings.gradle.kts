@@ -19,3 +19,4 @@ include(":media-crypto")
 include(":ui-components")
 include(":security-core")
 include(":media-crypto-android")
+include(":media-crypto-benchmarks")